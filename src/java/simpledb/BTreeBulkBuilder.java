@@ -0,0 +1,482 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * BTreeBulkBuilder builds a B+ tree from tuples in any order, using memory
+ * bounded by a fixed budget regardless of the number of tuples.
+ * <p>
+ * The tuples are first cut into runs that fit the budget; each run is
+ * sorted on the key field and spilled to a temporary file. The runs are then
+ * merged (in several passes if there are more than {@link #MERGE_FAN_IN}),
+ * and the merged stream is packed into leaf pages. Because the tuple count
+ * is known once the runs are written, the number of pages on every level,
+ * and so every page number, parent and sibling pointer, is fixed before the
+ * first page is written: leaves are written in key order as they fill, and
+ * each level keeps only the internal page it is currently filling.
+ * <p>
+ * Leaves hold about {@code fillFactor} of their capacity, spread evenly so
+ * that every page is at least half full. The file layout is leaves first,
+ * then each internal level, with the root last.
+ *
+ * @see BTreeFileEncoder
+ */
+public class BTreeBulkBuilder {
+
+	/** Default memory budget for sorting, in bytes */
+	public static final long DEFAULT_MEMORY_BYTES = 32L << 20;
+
+	/** Maximum number of runs merged at once */
+	public static final int MERGE_FAN_IN = 64;
+
+	/** approximate heap bytes of a Tuple beyond its serialized size */
+	private static final int TUPLE_OVERHEAD_BYTES = 64;
+
+	private final int keyField;
+	private final long memoryBytes;
+	private final double fillFactor;
+
+	private long tuples;
+	private int runs;
+	private int mergePasses;
+	private int pagesWritten;
+	private long buildNanos;
+	private long inputBytes;
+
+	/**
+	 * Create a builder.
+	 *
+	 * @param keyField - the index of the key field for the B+ tree
+	 * @param memoryBytes - the memory budget for sorting
+	 * @param fillFactor - the fraction of each page to fill, between 0.5
+	 * and 1; lower values leave room for later inserts
+	 */
+	public BTreeBulkBuilder(int keyField, long memoryBytes, double fillFactor) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		this.keyField = keyField;
+		this.memoryBytes = memoryBytes;
+		this.fillFactor = fillFactor;
+	}
+
+	/** @return the number of tuples the last build indexed */
+	public long getTupleCount() {
+		return tuples;
+	}
+
+	/** @return the number of sorted runs the last build spilled */
+	public int getRunCount() {
+		return runs;
+	}
+
+	/** @return the number of intermediate merge passes of the last build */
+	public int getMergePasses() {
+		return mergePasses;
+	}
+
+	/** @return the number of B+ tree pages the last build wrote */
+	public int getPagesWritten() {
+		return pagesWritten;
+	}
+
+	/** @return the tuple data indexed by the last build, in MB per second */
+	public double getThroughputMBps() {
+		return buildNanos == 0 ? 0 : (inputBytes / (double) (1 << 20)) / (buildNanos / 1e9);
+	}
+
+	/**
+	 * Build a B+ tree over the tuples of the specified file and add it to
+	 * the catalog.
+	 *
+	 * @param source - the file holding the tuples
+	 * @param bFile - the file on disk to back the B+ tree; it is replaced
+	 * @return the BTreeFile
+	 */
+	public BTreeFile build(DbFile source, File bFile)
+			throws IOException, DbException, TransactionAbortedException {
+		BTreeFile bf = new BTreeFile(bFile, keyField, source.getTupleDesc());
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		DbFileIterator it = source.iterator(new TransactionId());
+		it.open();
+		try {
+			build(it, bf);
+		} finally {
+			it.close();
+		}
+		return bf;
+	}
+
+	/**
+	 * Replace the contents of the specified B+ tree, which must be in the
+	 * catalog, with a tree built from the tuples of an open iterator.
+	 *
+	 * @param it - the tuples to index
+	 * @param bf - the B+ tree file to build
+	 */
+	public void build(DbFileIterator it, BTreeFile bf)
+			throws IOException, DbException, TransactionAbortedException {
+		long start = System.nanoTime();
+		TupleDesc td = bf.getTupleDesc();
+		tuples = 0;
+		runs = 0;
+		mergePasses = 0;
+		pagesWritten = 0;
+
+		ArrayList<File> runFiles = new ArrayList<File>();
+		int oldPages = 0;
+		try {
+			writeRuns(it, td, runFiles);
+			inputBytes = tuples * td.getSize();
+			while(runFiles.size() > MERGE_FAN_IN) {
+				mergePasses++;
+				ArrayList<File> merged = new ArrayList<File>();
+				for(int i = 0; i < runFiles.size(); i += MERGE_FAN_IN) {
+					List<File> group = runFiles.subList(i, Math.min(i + MERGE_FAN_IN, runFiles.size()));
+					File out = tempRun();
+					DataOutputStream dos = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(out)));
+					try {
+						RunMerger merger = new RunMerger(group, td);
+						Tuple t;
+						while((t = merger.next()) != null) {
+							writeTuple(dos, t);
+						}
+						merger.close();
+					} finally {
+						dos.close();
+					}
+					for(File f : group) {
+						f.delete();
+					}
+					merged.add(out);
+				}
+				runFiles = merged;
+			}
+
+			Database.getBufferPool().flushAllPages();
+			oldPages = bf.numPages();
+			bf.close();
+			new FileOutputStream(bf.getFile()).close(); // truncate
+			RunMerger merger = new RunMerger(runFiles, td);
+			try {
+				writeTree(merger, bf, td);
+			} finally {
+				merger.close();
+			}
+		} finally {
+			for(File f : runFiles) {
+				f.delete();
+			}
+		}
+		// nothing in the pool can describe the new file
+		int[] categories = { BTreePageId.LEAF, BTreePageId.INTERNAL, BTreePageId.HEADER };
+		for(int i = 1; i <= Math.max(oldPages, pagesWritten); i++) {
+			for(int category : categories) {
+				Database.getBufferPool().discardPage(new BTreePageId(bf.getId(), i, category));
+			}
+		}
+		Database.getBufferPool().discardPage(BTreeRootPtrPage.getId(bf.getId()));
+		buildNanos = System.nanoTime() - start;
+	}
+
+	private static File tempRun() throws IOException {
+		File f = File.createTempFile("btreerun", ".dat");
+		f.deleteOnExit();
+		return f;
+	}
+
+	private static void writeTuple(DataOutputStream dos, Tuple t) throws IOException {
+		for(int i = 0; i < t.getTupleDesc().numFields(); i++) {
+			t.getField(i).serialize(dos);
+		}
+	}
+
+	/**
+	 * Cut the input into runs that fit the memory budget, sort each on the
+	 * key field and spill it to a temporary file.
+	 */
+	private void writeRuns(DbFileIterator it, TupleDesc td, ArrayList<File> runFiles)
+			throws IOException, DbException, TransactionAbortedException {
+		int runTuples = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8,
+				memoryBytes / (td.getSize() + TUPLE_OVERHEAD_BYTES)));
+		BTreeFileEncoder.TupleComparator cmp = new BTreeFileEncoder.TupleComparator(keyField);
+		ArrayList<Tuple> run = new ArrayList<Tuple>();
+		boolean more = it.hasNext();
+		while(more) {
+			run.clear();
+			while(run.size() < runTuples && (more = it.hasNext())) {
+				Tuple t = it.next();
+				// decode the key while its page is still in the cache
+				t.getField(keyField);
+				run.add(t);
+			}
+			if(run.isEmpty()) {
+				break;
+			}
+			Collections.sort(run, cmp);
+			File out = tempRun();
+			runFiles.add(out);
+			runs++;
+			DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(out)));
+			try {
+				for(Tuple t : run) {
+					writeTuple(dos, t);
+				}
+			} finally {
+				dos.close();
+			}
+			tuples += run.size();
+		}
+	}
+
+	/**
+	 * Reads one sorted run back, one tuple at a time.
+	 */
+	private static class RunReader {
+		final DataInputStream in;
+		final TupleDesc td;
+		final byte[] record;
+		final int index;
+		Tuple current;
+
+		RunReader(File f, TupleDesc td, int index) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+			this.td = td;
+			this.record = new byte[td.getSize()];
+			this.index = index;
+		}
+
+		/** @return false at the end of the run */
+		boolean advance() throws IOException {
+			try {
+				in.readFully(record);
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+			ByteBuffer buf = ByteBuffer.wrap(record);
+			Tuple t = new Tuple(td);
+			int offset = 0;
+			for(int i = 0; i < td.numFields(); i++) {
+				t.setField(i, td.getFieldType(i).parse(buf, offset));
+				offset += td.getFieldType(i).getLen();
+			}
+			current = t;
+			return true;
+		}
+	}
+
+	/**
+	 * Merges sorted runs into one sorted stream. Equal keys come out in run
+	 * order, so the merge is stable.
+	 */
+	private class RunMerger {
+		final PriorityQueue<RunReader> heap;
+		final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+
+		RunMerger(List<File> runFiles, TupleDesc td) throws IOException {
+			final BTreeFileEncoder.TupleComparator cmp = new BTreeFileEncoder.TupleComparator(keyField);
+			heap = new PriorityQueue<RunReader>(Math.max(1, runFiles.size()), new Comparator<RunReader>() {
+				public int compare(RunReader a, RunReader b) {
+					int c = cmp.compare(a.current, b.current);
+					return c != 0 ? c : Integer.compare(a.index, b.index);
+				}
+			});
+			for(File f : runFiles) {
+				RunReader r = new RunReader(f, td, readers.size());
+				readers.add(r);
+				if(r.advance()) {
+					heap.add(r);
+				}
+			}
+		}
+
+		/** @return the next tuple in key order, or null at the end */
+		Tuple next() throws IOException {
+			RunReader r = heap.poll();
+			if(r == null) {
+				return null;
+			}
+			Tuple t = r.current;
+			if(r.advance()) {
+				heap.add(r);
+			}
+			return t;
+		}
+
+		void close() throws IOException {
+			for(RunReader r : readers) {
+				r.in.close();
+			}
+		}
+	}
+
+	/**
+	 * Number of items the i-th of pages pages gets when count items are
+	 * spread evenly over them.
+	 */
+	private static int share(long count, int pages, int i) {
+		return (int) (count * (i + 1) / pages - count * i / pages);
+	}
+
+	/**
+	 * One level of internal pages, filled as the level below completes its
+	 * pages.
+	 */
+	private class Level {
+		final int firstPage;
+		final int numPages;
+		final long numChildren;
+		final int childCategory;
+		final ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		BTreePageId pendingChild;
+		Field pendingChildKey;
+		Field firstKey;
+		int page;
+		int children;
+
+		Level(int firstPage, int numPages, long numChildren, int childCategory) {
+			this.firstPage = firstPage;
+			this.numPages = numPages;
+			this.numChildren = numChildren;
+			this.childCategory = childCategory;
+		}
+
+		/** @return the page number of the page the index-th child belongs to */
+		int parentOf(long index) {
+			// invert share(): the page whose range contains index
+			int p = (int) ((index * numPages) / numChildren);
+			while(p > 0 && numChildren * p / numPages > index) {
+				p--;
+			}
+			while(p < numPages - 1 && numChildren * (p + 1) / numPages <= index) {
+				p++;
+			}
+			return firstPage + p;
+		}
+	}
+
+	/**
+	 * Pack the sorted tuples into leaves and build the levels above them.
+	 */
+	private void writeTree(RunMerger merger, BTreeFile bf, TupleDesc td)
+			throws IOException, DbException {
+		int tableid = bf.getId();
+		int npagebytes = BufferPool.getPageSize();
+		Type[] typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		Type keyType = typeAr[keyField];
+
+		// same capacities as BTreeFileEncoder
+		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) / (td.getSize() * 8 + 1);
+		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1;
+		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) / (nentrybytes * 8 + 1);
+
+		int leafFill = Math.max(1, (int) (nrecords * fillFactor));
+		// at least 4, so that no internal page ends up with a single child
+		int childFill = Math.max(4, (int) ((nentries + 1) * fillFactor));
+
+		// lay out every level before writing anything
+		int numLeaves = (int) Math.max(1, (tuples + leafFill - 1) / leafFill);
+		ArrayList<Level> levels = new ArrayList<Level>();
+		int nextPage = numLeaves + 1;
+		long below = numLeaves;
+		while(below > 1) {
+			int numPages = (int) ((below + childFill - 1) / childFill);
+			int category = levels.isEmpty() ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			levels.add(new Level(nextPage, numPages, below, category));
+			nextPage += numPages;
+			below = numPages;
+		}
+		int rootPage = nextPage - 1;
+		int rootCategory = levels.isEmpty() ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+
+		bf.writePage(new BTreeRootPtrPage(BTreeRootPtrPage.getId(tableid),
+				BTreeFileEncoder.convertToRootPtrPage(rootPage, rootCategory, 0)));
+
+		ArrayList<Tuple> leaf = new ArrayList<Tuple>(leafFill);
+		for(int i = 0; i < numLeaves; i++) {
+			leaf.clear();
+			int count = share(tuples, numLeaves, i);
+			for(int j = 0; j < count; j++) {
+				leaf.add(merger.next());
+			}
+			BTreePageId pid = new BTreePageId(tableid, i + 1, BTreePageId.LEAF);
+			BTreeLeafPage page = new BTreeLeafPage(pid,
+					BTreeFileEncoder.convertToLeafPage(leaf, npagebytes, typeAr.length, typeAr, keyField),
+					keyField);
+			if(i > 0) {
+				page.setLeftSiblingId(new BTreePageId(tableid, i, BTreePageId.LEAF));
+			}
+			if(i < numLeaves - 1) {
+				page.setRightSiblingId(new BTreePageId(tableid, i + 2, BTreePageId.LEAF));
+			}
+			setParent(page, levels, 0, i, tableid);
+			bf.writePage(page);
+			pagesWritten++;
+			if(!levels.isEmpty()) {
+				addChild(levels, 0, pid, leaf.get(0).getField(keyField), bf, npagebytes, keyType);
+			}
+		}
+	}
+
+	private void setParent(BTreePage page, ArrayList<Level> levels, int level, long index, int tableid)
+			throws DbException {
+		if(level < levels.size()) {
+			page.setParentId(new BTreePageId(tableid, levels.get(level).parentOf(index),
+					BTreePageId.INTERNAL));
+		}
+		else {
+			page.setParentId(BTreeRootPtrPage.getId(tableid));
+		}
+	}
+
+	/**
+	 * Add the next child, with the smallest key in its subtree, to the
+	 * specified level, writing the level's current page once it has all of
+	 * its children.
+	 */
+	private void addChild(ArrayList<Level> levels, int level, BTreePageId child, Field minKey,
+			BTreeFile bf, int npagebytes, Type keyType) throws IOException, DbException {
+		Level l = levels.get(level);
+		if(l.children == 0) {
+			l.firstKey = minKey;
+		}
+		else if(l.children == 1) {
+			l.entries.add(new BTreeEntry(minKey, l.pendingChild, child));
+		}
+		else {
+			BTreeEntry last = l.entries.get(l.entries.size() - 1);
+			l.entries.add(new BTreeEntry(minKey, last.getRightChild(), child));
+		}
+		l.pendingChild = child;
+		l.children++;
+
+		if(l.children == share(l.numChildren, l.numPages, l.page)) {
+			int tableid = bf.getId();
+			int pageNo = l.firstPage + l.page;
+			BTreePageId pid = new BTreePageId(tableid, pageNo, BTreePageId.INTERNAL);
+			BTreeInternalPage page = new BTreeInternalPage(pid,
+					BTreeFileEncoder.convertToInternalPage(l.entries, npagebytes, keyType, l.childCategory),
+					keyField);
+			setParent(page, levels, level + 1, l.page, tableid);
+			bf.writePage(page);
+			pagesWritten++;
+			Field firstKey = l.firstKey;
+			l.entries.clear();
+			l.children = 0;
+			l.page++;
+			if(level + 1 < levels.size()) {
+				addChild(levels, level + 1, pid, firstKey, bf, npagebytes, keyType);
+			}
+		}
+	}
+}
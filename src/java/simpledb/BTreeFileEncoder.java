@@ -107,6 +107,32 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Encode the file with an external merge sort, so that inputs larger
+	 * than memory can be indexed. The input is loaded into a heap file with
+	 * {@link HeapFileBulkLoader} and then indexed by a
+	 * {@link BTreeBulkBuilder}.
+	 * 
+	 * @param inFile - the file containing the raw data
+	 * @param hFile - the data file for the HeapFile to be used as an intermediate conversion step
+	 * @param bFile - the data file for the BTreeFile
+	 * @param typeAr - array containing the types of the tuples
+	 * @param fieldSeparator - character separating fields in the raw data file
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @param memoryBytes - the memory budget for sorting
+	 * @param fillFactor - the fraction of each page to fill, between 0.5 and 1
+	 * @return the B+ tree file
+	 */
+	public static BTreeFile convertExternal(File inFile, File hFile, File bFile, Type[] typeAr,
+			char fieldSeparator, int keyField, long memoryBytes, double fillFactor)
+					throws IOException, DbException, TransactionAbortedException {
+		TupleDesc td = new TupleDesc(typeAr);
+		HeapFileBulkLoader loader = new HeapFileBulkLoader(td, fieldSeparator,
+				Runtime.getRuntime().availableProcessors(), HeapFileBulkLoader.DEFAULT_CHUNK_BYTES);
+		HeapFile heapf = loader.load(inFile, hFile, UUID.randomUUID().toString());
+		return new BTreeBulkBuilder(keyField, memoryBytes, fillFactor).build(heapf, bFile);
+	}
+
 	/** 
 	 * comparator to sort Tuples by key field
 	 */
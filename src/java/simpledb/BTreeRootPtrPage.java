@@ -14,6 +14,7 @@ public class BTreeRootPtrPage implements Page {
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
+	private volatile long lsn = 0;
 
 	private BTreePageId pid;
 	private DataInputStream dis;
@@ -131,6 +132,14 @@ public class BTreeRootPtrPage implements Page {
 		if (dirty) this.dirtier = tid;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	public TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
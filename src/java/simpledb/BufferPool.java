@@ -1,9 +1,19 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -27,9 +37,64 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Tables with more pages than this fraction of the pool are scanned
+    through a private BufferRing instead of the pool, so that a scan of a
+    large table cannot push out the pages everything else is using even if
+    the table would fit. Smaller tables are still cached by a scan, so
+    repeated scans of them stay in memory. */
+    public static final double SCAN_RING_THRESHOLD = 0.25;
+
+    /** At most this fraction of the pool's capacity is read ahead. */
+    public static final double READ_AHEAD_FRACTION = 0.25;
+
+    /** Number of threads doing read-ahead I/O for all pools. */
+    static final int READ_AHEAD_THREADS = 2;
+
+    private static ExecutorService readAheadExecutor;
+
+    /** Pools smaller than this many pages per shard use fewer shards. */
+    static final int MIN_PAGES_PER_SHARD = 64;
+
     private int numPages;
 
-    private Map<PageId, Page> pagesMap;
+    /** true if heap pages are kept in per-shard PageArenas */
+    private final boolean offHeap;
+
+    /** The page table, split by PageId hash; each shard has its own lock,
+    eviction policy and share of the capacity. */
+    private final Shard[] shards;
+
+    /** Bumped whenever a page is written or discarded, so that pages cached
+    outside the pool (in a BufferRing) can tell they may be stale. */
+    private final AtomicLong writeEpoch = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong ringHits = new AtomicLong();
+    private final AtomicLong ringMisses = new AtomicLong();
+
+    /** Pages being read ahead, keyed by id. A staged page is not resident:
+    it enters the pool (or a scan's ring) only when it is requested, through
+    the normal eviction path, so read-ahead never pushes out anything. */
+    private final Map<PageId, FutureTask<Page>> staged = new ConcurrentHashMap<>();
+    private final int maxStaged;
+    private final AtomicLong prefetches = new AtomicLong();
+    private final AtomicLong prefetchHits = new AtomicLong();
+    private final AtomicLong prefetchWaits = new AtomicLong();
+
+    /** The background writer is woken early once this fraction of a shard
+    has been dirtied since its last pass. */
+    public static final double WRITER_DIRTY_FRACTION = 0.25;
+
+    /** guards starting and stopping the background writer; never held
+    while taking the pool, shard or log locks */
+    private final Object writerLock = new Object();
+    private volatile BackgroundWriter writer;
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong pageWrites = new AtomicLong();
+
+    /** the page locks of the transactions using this pool */
+    private final LockManager locks = new LockManager();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -37,10 +102,101 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, EvictionPolicy.Kind.CLOCK);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * them with the specified policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use
+     */
+    public BufferPool(int numPages, EvictionPolicy.Kind policyKind) {
+        this(numPages, policyKind, defaultShards(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into the
+     * specified number of independently locked shards.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use in every shard
+     * @param numShards the number of shards; each gets an equal share of
+     *   numPages (at least one page)
+     */
+    public BufferPool(int numPages, EvictionPolicy.Kind policyKind, int numShards) {
+        this(numPages, policyKind, numShards, false);
+    }
+
+    /**
+     * Creates a sharded BufferPool that optionally keeps the contents of
+     * resident heap pages off the Java heap. In off-heap mode each shard
+     * allocates a {@link PageArena} with one frame per page of its share up
+     * front, and a HeapPage lives in a frame for as long as it is resident.
+     * Pages leaving the pool are copied back onto the heap, so references
+     * held by callers stay valid.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policyKind the replacement policy to use in every shard
+     * @param numShards the number of shards
+     * @param offHeap true to hold heap page contents in off-heap frames
+     */
+    public BufferPool(int numPages, EvictionPolicy.Kind policyKind, int numShards, boolean offHeap) {
+        if (numShards < 1 || numShards > Math.max(1, numPages))
+            throw new IllegalArgumentException("invalid shard count " + numShards);
         this.numPages = numPages;
-        this.pagesMap = new ConcurrentHashMap<>();
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            // spread the remainder over the first shards
+            int share = numPages / numShards + (i < numPages % numShards ? 1 : 0);
+            shards[i] = new Shard(Math.max(1, share), policyKind, offHeap);
+        }
+        this.offHeap = offHeap;
+        this.maxStaged = Math.max(1, (int) (numPages * READ_AHEAD_FRACTION));
     }
-    
+
+    /**
+     * One shard per core, but never so many that a shard's share of a small
+     * pool gets too small to absorb hash skew.
+     */
+    static int defaultShards(int numPages) {
+        int shards = Math.min(Runtime.getRuntime().availableProcessors(),
+                numPages / MIN_PAGES_PER_SHARD);
+        return Math.max(1, shards);
+    }
+
+    /** @return the lock manager that keeps this pool's page locks */
+    public LockManager getLockManager() {
+        return locks;
+    }
+
+    /** @return the number of shards the page table is split into */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /** @return true if resident heap pages are held in off-heap frames */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /** @return the number of off-heap frames currently holding a page */
+    public int getFramesInUse() {
+        int inUse = 0;
+        for (Shard shard : shards) {
+            if (shard.arena != null)
+                inUse += shard.arena.getNumFrames() - shard.arena.getFreeFrames();
+        }
+        return inUse;
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -69,19 +225,211 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *   the victim of a deadlock (see {@link LockManager})
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
-        if (pagesMap.containsKey(pid)) {
-            return pagesMap.get(pid);
-        } else {
-            if (pagesMap.size() >= this.numPages) {
-                evictPage();
+        if (tid != null)
+            locks.acquire(tid, pid, perm);
+        return shardFor(pid).getPage(pid);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a large sequential scan.
+     * Pages resident in the pool are returned from the pool (without counting
+     * as a reference for the eviction policy); all other pages are read into
+     * the scan's private ring and never enter the pool.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page; pages requested
+     *   READ_WRITE always go through the pool
+     * @param ring the scan's ring, or null to use the pool
+     * @see #useScanRing(int)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+        throws TransactionAbortedException, DbException {
+        if (ring == null || perm == Permissions.READ_WRITE)
+            return getPage(tid, pid, perm);
+
+        if (tid != null)
+            locks.acquire(tid, pid, perm);
+        Page page = shardFor(pid).pages.get(pid);
+        if (page != null) {
+            hits.incrementAndGet();
+            return page;
+        }
+        long epoch = writeEpoch.get();
+        page = ring.get(pid, epoch);
+        if (page != null) {
+            ringHits.incrementAndGet();
+            return page;
+        }
+        ringMisses.incrementAndGet();
+        page = takeStaged(pid);
+        if (page == null)
+            page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        ring.put(page, epoch);
+        return page;
+    }
+
+    /**
+     * @return true if a sequential scan over a table of the specified size
+     *   should read through a BufferRing
+     */
+    public boolean useScanRing(int tablePages) {
+        // a pool that is not much bigger than a ring has nothing to protect
+        return numPages >= 2 * BufferRing.DEFAULT_SIZE
+                && tablePages > numPages * SCAN_RING_THRESHOLD;
+    }
+
+    /**
+     * Start reading the specified page in the background, so that a later
+     * getPage for it doesn't have to wait for the disk. Nothing is evicted:
+     * the page is held aside until it is requested, and the pool only
+     * stages a limited number of pages at a time.
+     *
+     * @return true if a read was started; false if the page is resident or
+     *   already staged, or too many pages are staged
+     * @see ReadAhead
+     */
+    public boolean prefetch(final PageId pid) {
+        if (staged.size() >= maxStaged || staged.containsKey(pid)
+                || shardFor(pid).pages.containsKey(pid))
+            return false;
+        FutureTask<Page> task = new FutureTask<Page>(new Callable<Page>() {
+            public Page call() {
+                return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
             }
-            Page newPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            this.pagesMap.put(pid, newPage);
-            return newPage;
+        });
+        if (staged.putIfAbsent(pid, task) != null)
+            return false;
+        prefetches.incrementAndGet();
+        readAheadExecutor().execute(task);
+        return true;
+    }
+
+    /** @return true if the specified page is in the pool */
+    public boolean isResident(PageId pid) {
+        return shardFor(pid).pages.containsKey(pid);
+    }
+
+    /** @return true if a copy of the specified page has been read ahead */
+    public boolean isStaged(PageId pid) {
+        return staged.containsKey(pid);
+    }
+
+    /**
+     * @return true if the specified page is being read ahead and the read
+     *   has not finished yet
+     */
+    public boolean prefetchPending(PageId pid) {
+        FutureTask<Page> task = staged.get(pid);
+        return task != null && !task.isDone();
+    }
+
+    /** Drop the staged copy of the specified page, if any. */
+    public void cancelPrefetch(PageId pid) {
+        FutureTask<Page> task = staged.remove(pid);
+        if (task != null)
+            task.cancel(false);
+    }
+
+    /**
+     * Remove the staged copy of a page, waiting for its read if necessary.
+     *
+     * @return the page, or null if it was not staged or its read failed
+     */
+    private Page takeStaged(PageId pid) {
+        FutureTask<Page> task = staged.remove(pid);
+        if (task == null)
+            return null;
+        if (!task.isDone())
+            prefetchWaits.incrementAndGet();
+        try {
+            Page page = task.get();
+            prefetchHits.incrementAndGet();
+            return page;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // read it again in the caller, which reports the error
+        } catch (CancellationException e) {
+            // invalidated while we waited
+        }
+        return null;
+    }
+
+    private static synchronized ExecutorService readAheadExecutor() {
+        if (readAheadExecutor == null) {
+            readAheadExecutor = Executors.newFixedThreadPool(READ_AHEAD_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-readahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
+        return readAheadExecutor;
+    }
+
+    /** @return the number of pages read ahead */
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    /** @return the number of page requests served by a page read ahead */
+    public long getPrefetchHitCount() {
+        return prefetchHits.get();
+    }
+
+    /** @return the number of those requests that still had to wait for the read */
+    public long getPrefetchWaitCount() {
+        return prefetchWaits.get();
+    }
+
+    /** @return the number of dirty pages written by {@link #writeDirtyPages} */
+    public long getPagesWrittenCount() {
+        return pagesWritten.get();
+    }
+
+    /** @return the number of write requests those pages took */
+    public long getPageWriteCount() {
+        return pageWrites.get();
+    }
+
+    /** @return the number of page requests served from the pool */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** @return the number of page requests that read a page into the pool */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** @return the number of scan requests served from a BufferRing */
+    public long getRingHitCount() {
+        return ringHits.get();
+    }
+
+    /** @return the number of scan requests that read a page into a BufferRing */
+    public long getRingMissCount() {
+        return ringMisses.get();
+    }
+
+    /** Reset all hit and miss counters to zero. */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        ringHits.set(0);
+        ringMisses.set(0);
+        prefetches.set(0);
+        prefetchHits.set(0);
+        prefetchWaits.set(0);
+        pagesWritten.set(0);
+        pageWrites.set(0);
     }
 
     /**
@@ -94,8 +442,8 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (tid != null)
+            locks.release(tid, pid);
     }
 
     /**
@@ -104,28 +452,41 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return tid != null && locks.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * A commit writes the pages the transaction dirtied (see
+     * {@link #flushPages(TransactionId)}) and makes their current contents
+     * the before images of the next update. An abort drops them from the
+     * pool, so they are read again as they are on disk; LogFile has rolled
+     * back anything of the transaction that was written there.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (commit)
+            flushPages(tid);
+        for (PageId pid : locks.lockedPages(tid)) {
+            Page p = shardFor(pid).pages.get(pid);
+            if (p == null)
+                continue;
+            if (commit)
+                p.setBeforeImage();
+            else if (tid.equals(p.isDirty()))
+                discardPage(pid);
+        }
+        locks.releaseAll(tid);
     }
 
     /**
@@ -148,24 +509,27 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = file.insertTuple(tid, t);
 
-        synchronized (this) {
-            for (Page p : pages) {
-                p.markDirty(true, tid);
+        installDirtyPages(tid, pages);
+    }
 
-                // if page in pool already, done.
-                if (pagesMap.get(p.getId()) != null) {
-                    // replace old page with new one in case addTuple returns a
-                    // new copy of the page
-                    pagesMap.put(p.getId(), p);
-                } else {
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, through {@link DbFile#insertTuples}. Behaves like calling
+     * {@link #insertTuple} for each tuple, but the dirtied pages are
+     * installed in the pool once for the whole batch. All pages a batch
+     * dirties stay in the pool until they are flushed, so callers should
+     * keep batches to a small fraction of the pool.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        ArrayList<Page> pages = file.insertTuples(tid, tuples);
 
-                    // put page in pool
-                    if (pagesMap.size() >= numPages)
-                        evictPage();
-                    pagesMap.put(p.getId(), p);
-                }
-            }
-        }
+        installDirtyPages(tid, pages);
     }
 
     /**
@@ -186,23 +550,18 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> dirtypages = file.deleteTuple(tid, t);
 
-        synchronized (this) {
-            for (Page p : dirtypages) {
-                p.markDirty(true, tid);
-
-                // if page in pool already, done.
-                if (pagesMap.get(p.getId()) != null) {
-                    // replace old page with new one in case deleteTuple returns
-                    // a new copy of the page
-                    pagesMap.put(p.getId(), p);
-                } else {
+        installDirtyPages(tid, dirtypages);
+    }
 
-                    // put page in pool
-                    if (pagesMap.size() >= numPages)
-                        evictPage();
-                    pagesMap.put(p.getId(), p);
-                }
-            }
+    /**
+     * Marks the pages returned by a DbFile update as dirty and makes sure the
+     * pool holds exactly those versions.
+     */
+    private void installDirtyPages(TransactionId tid, List<Page> pages)
+        throws DbException {
+        for (Page p : pages) {
+            p.markDirty(true, tid);
+            shardFor(p.getId()).installDirty(p);
         }
     }
 
@@ -212,9 +571,217 @@ public class BufferPool {
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        Iterator<PageId> i = pagesMap.keySet().iterator();
-        while (i.hasNext())
-            flushPage(i.next());
+        writeDirtyPages();
+    }
+
+    /**
+     * Write every dirty page in the pool to disk. Update records for all
+     * of them are logged and the log is forced once, before any page is
+     * written. The pages are then written sorted by table and page number,
+     * and runs of adjacent pages go to the file in a single write (see
+     * {@link DbFile#writePages}).
+     * <p>
+     * No lock is held during the I/O, so pages may change while they are
+     * written; a page is only marked clean if it still holds what was
+     * written, and is otherwise left dirty for the next pass.
+     *
+     * @return the number of pages written
+     */
+    public int writeDirtyPages() throws IOException {
+        ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.dirtied = 0;
+                for (Page p : shard.pages.values()) {
+                    TransactionId dirtier = p.isDirty();
+                    if (dirtier != null) {
+                        shard.dirtiedAt(p.getId());
+                        batch.add(new PendingWrite(shard, p, dirtier));
+                    }
+                }
+            }
+        }
+        return write(batch);
+    }
+
+    /**
+     * Log, write and mark clean a batch of dirty pages, as described in
+     * {@link #writeDirtyPages}.
+     *
+     * @return the number of pages written
+     */
+    private int write(ArrayList<PendingWrite> batch) throws IOException {
+        if (batch.isEmpty())
+            return 0;
+        Collections.sort(batch);
+
+        // write-ahead: the log reaches the disk before any of the pages
+        LogFile log = Database.getLogFile();
+        long lsn = 0;
+        for (PendingWrite w : batch) {
+            lsn = log.logWrite(w.dirtier, w.page.getBeforeImage(), w.image);
+            w.page.setLSN(lsn);
+        }
+        log.force(lsn);
+
+        int from = 0;
+        while (from < batch.size()) {
+            int tableId = batch.get(from).image.getId().getTableId();
+            int to = from;
+            ArrayList<Page> images = new ArrayList<Page>();
+            while (to < batch.size() && batch.get(to).image.getId().getTableId() == tableId)
+                images.add(batch.get(to++).image);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            pageWrites.addAndGet(file.writePages(images));
+            from = to;
+        }
+        pagesWritten.addAndGet(batch.size());
+        writeEpoch.incrementAndGet();
+
+        for (PendingWrite w : batch) {
+            PageId pid = w.page.getId();
+            // a copy read ahead before this write is stale
+            cancelPrefetch(pid);
+            synchronized (w.shard) {
+                if (w.shard.pages.get(pid) == w.page && w.dirtier.equals(w.page.isDirty())
+                        && Arrays.equals(w.data, w.page.getPageData())) {
+                    w.page.markDirty(false, null);
+                    w.shard.recLsns.remove(pid);
+                    w.shard.policy.setEvictable(pid, true);
+                }
+            }
+        }
+        return batch.size();
+    }
+
+    /**
+     * Take a snapshot of the dirty page table: each dirty page in the pool
+     * with its recovery LSN, an LSN no later than any update record logged
+     * for the page that may not be on disk yet.  Recovery has to redo the
+     * log from the smallest of them.  No locks are taken, so pages may be
+     * dirtied or written while the snapshot is taken; a page dirtied after
+     * it only has update records later in the log.
+     *
+     * @return the recovery LSN of each dirty page, by page id
+     */
+    public Map<PageId, Long> dirtyPageTable() {
+        HashMap<PageId, Long> table = new HashMap<PageId, Long>();
+        for (Shard shard : shards) {
+            for (Map.Entry<PageId, Long> e : shard.recLsns.entrySet()) {
+                Page p = shard.pages.get(e.getKey());
+                if (p != null && p.isDirty() != null)
+                    table.put(e.getKey(), e.getValue());
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Start a thread that writes dirty pages in the background with
+     * {@link #writeDirtyPages}, so that pages are clean by the time the
+     * eviction policy picks them and a miss never finds only dirty victims.
+     * The thread runs a pass every intervalMillis, and sooner when a shard
+     * has had {@link #WRITER_DIRTY_FRACTION} of its capacity dirtied.
+     * <p>
+     * The writer steals pages of running transactions, so it must only be
+     * used together with a LogFile that can roll them back.
+     *
+     * @param intervalMillis the longest time between two passes
+     */
+    public void startBackgroundWriter(long intervalMillis) {
+        synchronized (writerLock) {
+            if (writer != null)
+                return;
+            writer = new BackgroundWriter(intervalMillis);
+            writer.start();
+        }
+    }
+
+    /**
+     * Stop the background writer, waiting for a pass in progress to finish.
+     */
+    public void stopBackgroundWriter() {
+        synchronized (writerLock) {
+            BackgroundWriter w = writer;
+            if (w == null)
+                return;
+            writer = null;
+            w.running = false;
+            LockSupport.unpark(w);
+            boolean interrupted = false;
+            while (w.isAlive()) {
+                try {
+                    w.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return true if the background writer is running */
+    public boolean isBackgroundWriterRunning() {
+        return writer != null;
+    }
+
+    private class BackgroundWriter extends Thread {
+        final long intervalNanos;
+        volatile boolean running = true;
+
+        BackgroundWriter(long intervalMillis) {
+            super("simpledb-writer");
+            this.intervalNanos = intervalMillis * 1000000L;
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (running) {
+                LockSupport.parkNanos(this, intervalNanos);
+                if (!running)
+                    break;
+                try {
+                    writeDirtyPages();
+                } catch (IOException e) {
+                    // the pages stay dirty and are tried again next pass
+                    e.printStackTrace();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A dirty page picked for a batch write, with the image of
+     * it that gets logged and written. Orders by table, then page number.
+     */
+    private static class PendingWrite implements Comparable<PendingWrite> {
+        final Shard shard;
+        final Page page;
+        final TransactionId dirtier;
+        final byte[] data;
+        final Page image;
+
+        PendingWrite(Shard shard, Page page, TransactionId dirtier) {
+            this.shard = shard;
+            this.page = page;
+            this.dirtier = dirtier;
+            this.data = page.getPageData();
+            // heap pages may live in a frame that is reused once the page
+            // leaves the pool, so write a private copy of them
+            this.image = page instanceof HeapPage
+                    ? ((HeapPage) page).withData(ByteBuffer.wrap(data))
+                    : page;
+        }
+
+        public int compareTo(PendingWrite o) {
+            PageId a = image.getId(), b = o.image.getId();
+            if (a.getTableId() != b.getTableId())
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            return Integer.compare(a.getPageNumber(), b.getPageNumber());
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -225,73 +792,238 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        Page p = pagesMap.get(pid);
-        if (p != null) {
-            pagesMap.remove(pid);
-        }
+    public void discardPage(PageId pid) {
+        shardFor(pid).discard(pid);
+        writeEpoch.incrementAndGet();
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        Page p = pagesMap.get(pid);
-        if (p == null)
-            return; // not in buffer pool -- doesn't need to be flushed
-
-        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        file.writePage(p);
-        p.markDirty(false, null);
+    private synchronized void flushPage(PageId pid) throws IOException {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            shard.flush(pid);
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
+        They are written like the pages of {@link #writeDirtyPages}: the
+        log is forced once, and adjacent pages go out in one write.  Only
+        the pages the transaction has locked are looked at.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+    public void flushPages(TransactionId tid) throws IOException {
+        ArrayList<PendingWrite> batch = new ArrayList<PendingWrite>();
+        for (PageId pid : locks.lockedPages(tid)) {
+            Shard shard = shardFor(pid);
+            synchronized (shard) {
+                Page p = shard.pages.get(pid);
+                TransactionId dirtier = p == null ? null : p.isDirty();
+                if (dirtier != null) {
+                    shard.dirtiedAt(pid);
+                    batch.add(new PendingWrite(shard, p, dirtier));
+                }
+            }
+        }
+        write(batch);
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A slice of the page table. Every method that touches the eviction
+     * policy runs with the shard's monitor held; lookups of resident pages
+     * only read the concurrent map.
      */
-    private synchronized  void evictPage() throws DbException {
-        // pick a random page and flush it.
-        // XXX this will work for lab1, but not for lab4.
-        // XXX this can cause pages to be evicted that have uncommitted updates
-        // on them
-        Random random = new Random();
-        Object pids[] = pagesMap.keySet().toArray();
-        PageId pid = (PageId) pids[random.nextInt(pids.length)];
-        try {
-            Page p = pagesMap.get(pid);
-            if (p.isDirty() != null) { // if this is dirty, remove first
-                // non-dirty
-                boolean gotNew = false;
-                for (PageId pg : pagesMap.keySet()) {
-                    if (pagesMap.get(pg).isDirty() == null) {
-                        pid = pg;
-                        gotNew = true;
-                        break;
-                    }
+    private class Shard {
+        final Map<PageId, Page> pages;
+        final EvictionPolicy policy;
+        final int capacity;
+        /** frames for resident heap pages, or null for an on-heap pool */
+        final PageArena arena;
+        /** pages dirtied since the last writeDirtyPages pass */
+        int dirtied;
+        /** recovery LSNs of the dirty pages; see dirtyPageTable */
+        final Map<PageId, Long> recLsns = new ConcurrentHashMap<>();
+
+        Shard(int capacity, EvictionPolicy.Kind policyKind, boolean offHeap) {
+            this.pages = new ConcurrentHashMap<>();
+            this.policy = policyKind.create(capacity);
+            this.capacity = capacity;
+            this.arena = offHeap ? new PageArena(capacity, getPageSize()) : null;
+        }
+
+        Page getPage(PageId pid) throws DbException {
+            Page page = pages.get(pid);
+            if (page != null) {
+                hits.incrementAndGet();
+                synchronized (this) {
+                    policy.pageAccessed(pid);
+                }
+                return page;
+            }
+            synchronized (this) {
+                // another thread may have loaded the page while we waited
+                page = pages.get(pid);
+                if (page != null) {
+                    hits.incrementAndGet();
+                    policy.pageAccessed(pid);
+                    return page;
+                }
+                misses.incrementAndGet();
+                if (pages.size() >= capacity) {
+                    evictPage();
+                }
+                page = takeStaged(pid);
+                if (page == null)
+                    page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                install(page);
+                return page;
+            }
+        }
+
+        synchronized void installDirty(Page p) throws DbException {
+            // if page in pool already, done.
+            if (pages.get(p.getId()) != null) {
+                // replace old page with new one in case the file returns a
+                // new copy of the page
+                Page old = pages.put(p.getId(), p);
+                if (old != p) {
+                    release(old);
+                    attach(p);
                 }
-                if (!gotNew) {
-                    throw new DbException(
-                            "All buffer pool slots contain dirty pages;  COMMIT or ROLLBACK to continue.");
+                policy.pageAccessed(p.getId());
+            } else {
+
+                // put page in pool
+                if (pages.size() >= capacity)
+                    evictPage();
+                install(p);
+            }
+            policy.setEvictable(p.getId(), false);
+            dirtiedAt(p.getId());
+            BackgroundWriter w = writer;
+            if (w != null && ++dirtied >= capacity * WRITER_DIRTY_FRACTION) {
+                dirtied = 0;
+                LockSupport.unpark(w);
+            }
+        }
+
+        /**
+         * Gives a dirty page a recovery LSN unless it has one. Nothing
+         * logged for the page from now on can have an LSN below the end
+         * of the log on disk, and reading that takes no lock.  Called
+         * with the shard lock held.
+         */
+        void dirtiedAt(PageId pid) {
+            if (!recLsns.containsKey(pid))
+                recLsns.put(pid, Database.getLogFile().getDurableLsn());
+        }
+
+        /** Adds a page that is not resident yet to this shard. */
+        private void install(Page p) {
+            // the resident copy is the one that counts from now on
+            cancelPrefetch(p.getId());
+            pages.put(p.getId(), p);
+            attach(p);
+            policy.pageAdded(p.getId());
+            if (p.isDirty() != null)
+                policy.setEvictable(p.getId(), false);
+        }
+
+        /** Moves a heap page that just became resident into a frame. */
+        private void attach(Page p) {
+            if (arena == null || !(p instanceof HeapPage))
+                return;
+            ByteBuffer frame = arena.allocate();
+            if (frame != null && !((HeapPage) p).moveTo(frame))
+                arena.release(frame);
+        }
+
+        /** Takes back the frame of a page that is no longer resident. */
+        private void release(Page p) {
+            if (arena == null || !(p instanceof HeapPage))
+                return;
+            ByteBuffer frame = ((HeapPage) p).detach();
+            if (frame != null)
+                arena.release(frame);
+        }
+
+        synchronized void discard(PageId pid) {
+            cancelPrefetch(pid);
+            Page p = pages.remove(pid);
+            recLsns.remove(pid);
+            if (p != null) {
+                release(p);
+                policy.pageRemoved(pid);
+            }
+        }
+
+        /**
+         * Writes the page if it is resident, logging it first if it is
+         * dirty. The caller holds the pool lock and then the shard lock, the
+         * order LogFile takes them in.
+         */
+        void flush(PageId pid) throws IOException {
+            Page p = pages.get(pid);
+            if (p == null)
+                return; // not in buffer pool -- doesn't need to be flushed
+
+            TransactionId dirtier = p.isDirty();
+            LogFile log = Database.getLogFile();
+            if (dirtier != null) {
+                dirtiedAt(pid);
+                p.setLSN(log.logWrite(dirtier, p.getBeforeImage(), p));
+            }
+            // write-ahead: the page's last logged update reaches the disk first
+            log.force(p.getLSN());
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(p);
+            writeEpoch.incrementAndGet();
+            // a copy read ahead before this write is stale
+            cancelPrefetch(pid);
+            p.markDirty(false, null);
+            recLsns.remove(pid);
+            policy.setEvictable(pid, true);
+        }
+
+        /**
+         * Discards a page from this shard.
+         * The eviction policy only offers clean pages, so the victim never
+         * has to be written back.
+         */
+        private void evictPage() throws DbException {
+            PageId pid = chooseCleanVictim();
+            if (pid == null) {
+                // pages can be cleaned or dirtied behind the pool's back (e.g.
+                // by a DbFile), so resync the policy once before giving up
+                for (Map.Entry<PageId, Page> e : pages.entrySet())
+                    policy.setEvictable(e.getKey(), e.getValue().isDirty() == null);
+                pid = chooseCleanVictim();
+            }
+            if (pid == null) {
+                throw new DbException(
+                        "All buffer pool slots contain dirty pages;  COMMIT or ROLLBACK to continue.");
+            }
+            release(pages.remove(pid));
+            recLsns.remove(pid);
+            policy.pageRemoved(pid);
+        }
+
+        private PageId chooseCleanVictim() {
+            PageId pid;
+            while ((pid = policy.chooseVictim()) != null) {
+                Page p = pages.get(pid);
+                if (p == null) {
+                    policy.pageRemoved(pid);
+                } else if (p.isDirty() != null) {
+                    // dirtied without going through insertTuple/deleteTuple
+                    policy.setEvictable(pid, false);
+                } else {
+                    return pid;
                 }
             }
-            // XXX: The above code makes sure page is not dirty.
-            // Assuming we have FORCE, Why do we flush it to disk?
-            // Answer: yes we don't need this if we have FORCE, but we do need
-            // it if we don't.
-            // it doesn't hurt to keep it here.
-            flushPage(pid);
-        } catch (IOException e) {
-            throw new DbException("could not evict page");
-        }
-        pagesMap.remove(pid);
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,72 @@
+package simpledb;
+
+/**
+ * BufferRing is a small, private set of page frames used by large
+ * sequential scans instead of the shared BufferPool. Pages read through the
+ * ring are recycled round-robin inside it, so a scan over a big table never
+ * pushes the pool's working set out.
+ * <p>
+ * A ring belongs to a single iterator and is not thread safe.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    /** Number of frames in a ring unless specified otherwise. */
+    public static final int DEFAULT_SIZE = 8;
+
+    private final Page[] frames;
+    /** the pool's write epoch at the time each frame was filled */
+    private final long[] epochs;
+    private int next;
+
+    public BufferRing() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size the number of frames in this ring
+     */
+    public BufferRing(int size) {
+        this.frames = new Page[size];
+        this.epochs = new long[size];
+    }
+
+    /**
+     * Look up a page in the ring.
+     *
+     * @param epoch the current write epoch of the pool; frames filled before
+     *   a later write are treated as stale
+     * @return the page, or null if it is not in the ring or may be stale
+     */
+    Page get(PageId pid, long epoch) {
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null && frames[i].getId().equals(pid))
+                return epochs[i] == epoch ? frames[i] : null;
+        }
+        return null;
+    }
+
+    /**
+     * Store a page in the next frame, replacing the oldest one.
+     */
+    void put(Page p, long epoch) {
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null && frames[i].getId().equals(p.getId())) {
+                frames[i] = p;
+                epochs[i] = epoch;
+                return;
+            }
+        }
+        frames[next] = p;
+        epochs[next] = epoch;
+        next = (next + 1) % frames.length;
+    }
+
+    /** Drop every page held by this ring. */
+    public void clear() {
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = null;
+        next = 0;
+    }
+}
@@ -40,8 +40,12 @@ public class Catalog {
      * @param pkeyField the name of the primary key field
      */
     public void addTable(DbFile file, String name, String pkeyField) {
-        namesMap.put(name, file);
-        idsMap.put(file.getId(), new TableInfo(file, pkeyField, name));
+        DbFile replacedByName = namesMap.put(name, file);
+        TableInfo replacedById = idsMap.put(file.getId(), new TableInfo(file, pkeyField, name));
+        if (replacedByName != null && replacedByName != file)
+            replacedByName.close();
+        if (replacedById != null && replacedById.getFile() != file)
+            replacedById.getFile().close();
     }
 
     public void addTable(DbFile file, String name) {
@@ -114,14 +118,27 @@ public class Catalog {
         throw new NoSuchElementException();
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
+        for (TableInfo info : idsMap.values())
+            info.getFile().close();
         this.namesMap.clear();
         this.idsMap.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as
+     * <pre>name (field type [pk], field type, ...) [option ...]</pre>
+     * where the supported options are:
+     * <ul>
+     * <li><code>mmap</code>: read the table through a memory mapping
+     * (see {@link HeapFile#HeapFile(File, TupleDesc, boolean)})</li>
+     * <li><code>slotted</code>: store the table in the variable-length
+     * {@link SlottedHeapPage} format</li>
+     * <li><code>columnar</code>: store each column in its own chain of
+     * pages (see {@link ColumnFile})</li>
+     * </ul>
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -162,7 +179,27 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                boolean mapped = false;
+                boolean slotted = false;
+                boolean columnar = false;
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                for (String option : options.split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.toLowerCase().equals("mmap"))
+                        mapped = true;
+                    else if (option.toLowerCase().equals("slotted"))
+                        slotted = true;
+                    else if (option.toLowerCase().equals("columnar"))
+                        columnar = true;
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
+                File tableFile = new File(baseFolder+"/"+name + ".dat");
+                DbFile tabHf = columnar ? new ColumnFile(tableFile, t)
+                        : new HeapFile(tableFile, t, mapped, slotted);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
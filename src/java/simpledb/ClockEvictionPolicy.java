@@ -0,0 +1,62 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CLOCK (second chance) replacement. Evictable pages sit on a ring in the
+ * order they became evictable, each with a reference bit that is set on
+ * every access. The hand clears set bits as it sweeps and stops at the first
+ * page whose bit is already clear, so each victim costs amortized O(1).
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    /** Evictable pages in hand order, mapped to their reference bit. */
+    private final LinkedHashMap<PageId, Boolean> ring;
+    /** Resident pages that may not be evicted right now. */
+    private final Set<PageId> pinned;
+
+    public ClockEvictionPolicy() {
+        this.ring = new LinkedHashMap<>();
+        this.pinned = new HashSet<>();
+    }
+
+    public void pageAdded(PageId pid) {
+        pinned.remove(pid);
+        ring.put(pid, true);
+    }
+
+    public void pageAccessed(PageId pid) {
+        if (ring.containsKey(pid))
+            ring.put(pid, true);
+    }
+
+    public void pageRemoved(PageId pid) {
+        ring.remove(pid);
+        pinned.remove(pid);
+    }
+
+    public void setEvictable(PageId pid, boolean evictable) {
+        if (evictable) {
+            if (pinned.remove(pid))
+                ring.put(pid, true);
+        } else if (ring.remove(pid) != null) {
+            pinned.add(pid);
+        }
+    }
+
+    public PageId chooseVictim() {
+        // every page is passed over at most once, so two laps always suffice
+        for (int swept = 0, laps = 2 * ring.size(); swept <= laps; swept++) {
+            Iterator<Map.Entry<PageId, Boolean>> hand = ring.entrySet().iterator();
+            if (!hand.hasNext())
+                return null;
+            Map.Entry<PageId, Boolean> e = hand.next();
+            if (!e.getValue())
+                return e.getKey();
+            // second chance: clear the bit and move the page behind the hand
+            hand.remove();
+            ring.put(e.getKey(), false);
+        }
+        return null;
+    }
+}
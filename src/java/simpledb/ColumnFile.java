@@ -0,0 +1,312 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * ColumnFile is an implementation of a DbFile that stores each column of a
+ * table in its own chain of {@link ColumnPage}s, so a scan that needs only
+ * some of the columns reads only their pages. The chain of column i lives in
+ * the file named like the table's file with ".i" appended; row r of the table
+ * is slot r % n of page r / n of every chain, where n is the number of values
+ * a page of that column holds.
+ * <p>
+ * Rows are appended at the end of the table. A deleted row is cleared in
+ * every column and its row number is only reused if it was the last one when
+ * the file is opened again. Pages go through the BufferPool like those of a
+ * HeapFile; a RecordId names the row's page and slot in the chain of column
+ * 0.
+ *
+ * @see SeqScan#SeqScan(TransactionId, int, String, boolean[])
+ */
+public class ColumnFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    /** the chain of each column, one file per column */
+    private final PageChannel[] channels;
+    /** number of values a page of each column holds */
+    private final int[] slotsPerPage;
+
+    /** number of rows handed out, or -1 before the first insert reads it
+    from disk */
+    private int rows = -1;
+
+    /**
+     * Constructs a column file whose column chains are stored next to the
+     * specified file.
+     *
+     * @param f
+     *            the file whose name, with the column number appended, names
+     *            the files of the column chains; it also gives the table id.
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this.f = f;
+        this.td = td;
+        this.channels = new PageChannel[td.numFields()];
+        this.slotsPerPage = new int[td.numFields()];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = new PageChannel(getColumnFile(i));
+            slotsPerPage[i] = ColumnPage.slotsPerPage(td.getFieldType(i));
+        }
+    }
+
+    /**
+     * @return the file that names this table; the columns are stored in the
+     *   files given by {@link #getColumnFile}
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /** @return the file that stores the chain of the specified column */
+    public File getColumnFile(int column) {
+        return new File(f.getPath() + "." + column);
+    }
+
+    /**
+     * Returns an ID uniquely identifying this ColumnFile, the hash of the
+     * absolute file name like a HeapFile's.
+     */
+    public int getId() {
+        return f.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of pages in the chain of the specified column */
+    public int numPages(int column) {
+        return (int) Math.ceil((double) getColumnFile(column).length() / BufferPool.getPageSize());
+    }
+
+    /** @return the number of pages of all columns */
+    public int numPages() {
+        return numPages(null);
+    }
+
+    /**
+     * @return the number of pages a scan of the specified columns reads, or
+     *   of all columns if columns is null
+     */
+    public int numPages(boolean[] columns) {
+        int pages = 0;
+        for (int i = 0; i < channels.length; i++) {
+            if (columns == null || columns[i])
+                pages += numPages(i);
+        }
+        return pages;
+    }
+
+    /**
+     * Read the specified page of a column chain from disk.
+     *
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     */
+    public Page readPage(PageId id) {
+        ColumnPageId pid = (ColumnPageId) id;
+        if (pid.getPageNumber() >= numPages(pid.getColumn()))
+            throw new IllegalArgumentException("PageId is too big");
+        byte[] data = new byte[BufferPool.getPageSize()];
+        try {
+            channels[pid.getColumn()].read(ByteBuffer.wrap(data), (long) pid.getPageNumber() * data.length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("page number out of bounds");
+        }
+        return new ColumnPage(pid, data);
+    }
+
+    public void writePage(Page page) throws IOException {
+        ColumnPageId pid = (ColumnPageId) page.getId();
+        channels[pid.getColumn()].write(ByteBuffer.wrap(page.getPageData()),
+                (long) pid.getPageNumber() * BufferPool.getPageSize());
+    }
+
+    /**
+     * Closes the channels to the column files; they are reopened on the next
+     * page access.
+     */
+    public void close() {
+        for (PageChannel channel : channels)
+            channel.close();
+    }
+
+    /**
+     * Hands out the number of the next row, first counting the rows on disk
+     * if this is the first insert, and grows every column chain that has no
+     * page for it yet.
+     */
+    private synchronized int nextRow() throws IOException {
+        if (rows < 0) {
+            int pages = numPages(0);
+            rows = 0;
+            if (pages > 0) {
+                ColumnPage last = (ColumnPage) readPage(new ColumnPageId(getId(), 0, pages - 1));
+                rows = (pages - 1) * slotsPerPage[0] + last.lastUsedSlot() + 1;
+            }
+        }
+        int row = rows++;
+        for (int i = 0; i < channels.length; i++) {
+            while (numPages(i) <= row / slotsPerPage[i])
+                channels[i].append(ByteBuffer.wrap(new byte[BufferPool.getPageSize()]));
+        }
+        return row;
+    }
+
+    /** @return the page of the specified column that holds the specified row */
+    private ColumnPageId pageOf(int column, int row) {
+        return new ColumnPageId(getId(), column, row / slotsPerPage[column]);
+    }
+
+    /**
+     * Appends the tuple as a new row, writing one value into a page of every
+     * column.
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in insertTuple");
+        int row = nextRow();
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int i = 0; i < channels.length; i++) {
+            ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pageOf(i, row),
+                    Permissions.READ_WRITE);
+            page.setValue(row % slotsPerPage[i], t.getField(i));
+            page.markDirty(true, tid);
+            pages.add(page);
+        }
+        t.setRecordId(new RecordId(pageOf(0, row), row % slotsPerPage[0]));
+        return pages;
+    }
+
+    /**
+     * Clears the tuple's row in every column.
+     *
+     * @throws DbException if the tuple is not a row of this file
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof ColumnPageId)
+                || rid.getPageId().getTableId() != getId())
+            throw new DbException("tried to delete tuple on invalid page or table");
+        int row = rid.getPageId().getPageNumber() * slotsPerPage[0] + rid.getTupleNumber();
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int i = 0; i < channels.length; i++) {
+            ColumnPage page = (ColumnPage) Database.getBufferPool().getPage(tid, pageOf(i, row),
+                    Permissions.READ_WRITE);
+            page.clearValue(row % slotsPerPage[i]);
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    public DbFileIterator iterator(TransactionId tid) {
+        return new ColumnFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator that reads only the pages of the specified
+     * columns. The tuples it returns have the file's TupleDesc, but only the
+     * fields of those columns are set.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean[] columns) {
+        return new ColumnFileIterator(tid, columns);
+    }
+
+    private class ColumnFileIterator implements DbFileIterator {
+
+        private final TransactionId tid;
+        /** the columns read */
+        private final int[] columns;
+        /** the column whose used slots tell which rows exist: the read column
+        with the fewest pages */
+        private final int driver;
+        /** the current page of each read column, by position in columns */
+        private final ColumnPage[] pages;
+        private ColumnPage driverPage;
+
+        /** the next row to look at, or -1 when closed */
+        private int row = -1;
+        /** the number of rows the driver column has room for */
+        private int end;
+        private boolean found;
+
+        ColumnFileIterator(TransactionId tid, boolean[] read) {
+            this.tid = tid;
+            int n = 0;
+            for (int i = 0; i < td.numFields(); i++) {
+                if (read == null || read[i])
+                    n++;
+            }
+            columns = new int[n];
+            n = 0;
+            for (int i = 0; i < td.numFields(); i++) {
+                if (read == null || read[i])
+                    columns[n++] = i;
+            }
+            int best = 0;
+            for (int c : columns) {
+                if (slotsPerPage[c] > slotsPerPage[best] || (read != null && !read[best]))
+                    best = c;
+            }
+            driver = best;
+            pages = new ColumnPage[columns.length];
+        }
+
+        private ColumnPage page(ColumnPage current, int column) throws DbException, TransactionAbortedException {
+            ColumnPageId pid = pageOf(column, row);
+            if (current != null && current.getId().equals(pid))
+                return current;
+            return (ColumnPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            row = 0;
+            end = numPages(driver) * slotsPerPage[driver];
+            found = false;
+            driverPage = null;
+            Arrays.fill(pages, null);
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (row < 0)
+                return false;
+            while (!found && row < end) {
+                driverPage = page(driverPage, driver);
+                if (driverPage.isSlotUsed(row % slotsPerPage[driver]))
+                    found = true;
+                else
+                    row++;
+            }
+            return found;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException("not opened or no tuple remained");
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < columns.length; i++) {
+                int c = columns[i];
+                pages[i] = c == driver ? driverPage : page(pages[i], c);
+                t.setField(c, pages[i].getValue(row % slotsPerPage[c]));
+            }
+            t.setRecordId(new RecordId(pageOf(0, row), row % slotsPerPage[0]));
+            row++;
+            found = false;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public void close() {
+            row = -1;
+            driverPage = null;
+            Arrays.fill(pages, null);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Each instance of ColumnPage stores the values of one column for a run of
+ * consecutive rows of a {@link ColumnFile}. Like a HeapPage it starts with
+ * header bits, one per slot, telling which slots hold a value, followed by
+ * the value slots; a slot is a single field of the column's type, so a page
+ * holds floor((BufferPool.getPageSize()*8) / (field size * 8 + 1)) values.
+ * Slot i of page p of a column holds the value of row p * slotsPerPage + i.
+ * <p>
+ * Values are read and written in place and decoded when they are asked for.
+ *
+ * @see ColumnFile
+ */
+public class ColumnPage implements Page {
+
+    final ColumnPageId pid;
+    final Type type;
+    final int numSlots;
+    final int headerSize;
+
+    private final ByteBuffer data;
+
+    /** The page before its first change since setBeforeImage(), or null if
+    it has not changed since */
+    private byte[] oldData;
+    private final Object oldDataLock = new Object();
+    private volatile TransactionId dirtierId;
+    private volatile long lsn = 0;
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk, in the
+     * format described above. The column type is looked up in the catalog.
+     */
+    public ColumnPage(ColumnPageId id, byte[] data) {
+        this.pid = id;
+        this.type = Database.getCatalog().getTupleDesc(id.getTableId()).getFieldType(id.getColumn());
+        this.numSlots = slotsPerPage(type);
+        this.headerSize = (numSlots + 7) / 8;
+        this.data = ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize()));
+    }
+
+    /** @return the number of values a page of a column of the specified type holds */
+    static int slotsPerPage(Type type) {
+        return (int) Math.floor((double) BufferPool.getPageSize() * 8 / (type.getLen() * 8 + 1));
+    }
+
+    public ColumnPageId getId() {
+        return pid;
+    }
+
+    /** @return true if the specified slot holds a value */
+    public boolean isSlotUsed(int i) {
+        return (data.get(i / 8) & (1 << (i % 8))) != 0;
+    }
+
+    /** @return the highest slot that holds a value, or -1 if the page is empty */
+    public int lastUsedSlot() {
+        for (int i = numSlots - 1; i >= 0; i--) {
+            if (isSlotUsed(i))
+                return i;
+        }
+        return -1;
+    }
+
+    /** @return the value in the specified slot, which must be in use */
+    public Field getValue(int i) {
+        return type.parse(data, headerSize + i * type.getLen());
+    }
+
+    /**
+     * Store a value in the specified slot and mark the slot used.
+     *
+     * @throws DbException if the value is not of the column's type
+     */
+    public void setValue(int i, Field f) throws DbException {
+        if (f.getType() != type)
+            throw new DbException("type mismatch, in setValue");
+        captureBeforeImage();
+        int offset = headerSize + i * type.getLen();
+        if (type == Type.INT_TYPE) {
+            data.putInt(offset, ((IntField) f).getValue());
+        } else {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(type.getLen());
+            try {
+                f.serialize(new DataOutputStream(baos));
+            } catch (IOException e) {
+                // this really shouldn't happen
+                throw new DbException("could not serialize value: " + e.getMessage());
+            }
+            byte[] bytes = baos.toByteArray();
+            for (int j = 0; j < bytes.length; j++)
+                data.put(offset + j, bytes[j]);
+        }
+        data.put(i / 8, (byte) (data.get(i / 8) | (1 << (i % 8))));
+    }
+
+    /**
+     * Clear the value in the specified slot and mark the slot empty.
+     *
+     * @throws DbException if the slot is already empty
+     */
+    public void clearValue(int i) throws DbException {
+        if (!isSlotUsed(i))
+            throw new DbException("tried to delete null value.");
+        captureBeforeImage();
+        int offset = headerSize + i * type.getLen();
+        for (int j = 0; j < type.getLen(); j++)
+            data.put(offset + j, (byte) 0);
+        data.put(i / 8, (byte) (data.get(i / 8) & ~(1 << (i % 8))));
+    }
+
+    public byte[] getPageData() {
+        return data.array().clone();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtierId = dirty ? tid : null;
+    }
+
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
+    public TransactionId isDirty() {
+        return dirtierId;
+    }
+
+    public ColumnPage getBeforeImage() {
+        byte[] oldDataRef;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
+        }
+        return new ColumnPage(pid, oldDataRef == null ? getPageData() : oldDataRef);
+    }
+
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            // the image is taken lazily, on the next change
+            oldData = null;
+        }
+    }
+
+    private void captureBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null)
+                oldData = getPageData();
+        }
+    }
+}
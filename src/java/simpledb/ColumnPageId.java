@@ -0,0 +1,74 @@
+package simpledb;
+
+/** Unique identifier for ColumnPage objects: a page of one column of a table. */
+public class ColumnPageId implements PageId {
+
+    private final int tableId;
+    private final int column;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of the
+     * chain of one column of a specific table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column The column whose chain the page belongs to
+     * @param pgNo The page number in that column's chain.
+     */
+    public ColumnPageId(int tableId, int column, int pgNo) {
+        this.tableId = tableId;
+        this.column = column;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the column whose chain this page belongs to */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return the page number in the chain of column getColumn() of table
+     *   getTableId()
+     */
+    public int getPageNumber() {
+        return pgNo;
+    }
+
+    public int hashCode() {
+        return (31 * tableId + column) * 31 + pgNo;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against
+     * @return true if o is a ColumnPageId of the same table, column and page
+     */
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof ColumnPageId))
+            return false;
+        ColumnPageId another = (ColumnPageId) o;
+        return tableId == another.tableId && column == another.column && pgNo == another.pgNo;
+    }
+
+    /**
+     *  Return a representation of this object as an array of
+     *  integers, for writing to disk: the table, the column and the page
+     *  number.
+     */
+    public int[] serialize() {
+        return new int[] { tableId, column, pgNo };
+    }
+
+    @Override
+    public String toString() {
+        return "TableId " + tableId + " Column " + column + " Page No. " + pgNo;
+    }
+}
@@ -55,11 +55,19 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- install the specified buffer pool (e.g. one
+     * built with a different eviction policy) and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool pool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +83,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // release the files of the tables the old catalog had open
+        _instance.get()._catalog.clear();
         _instance.set(new Database());
     }
 
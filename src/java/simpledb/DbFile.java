@@ -28,6 +28,20 @@ public interface DbFile {
      */
     public void writePage(Page p) throws IOException;
 
+    /**
+     * Push the specified pages to disk. The pages are sorted by page
+     * number; implementations may merge adjacent pages into one write.
+     *
+     * @param pages the pages to write, all from this file
+     * @return the number of write requests issued
+     * @throws IOException if a write fails
+     */
+    public default int writePages(List<Page> pages) throws IOException {
+        for (Page p : pages)
+            writePage(p);
+        return pages.size();
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -43,6 +57,31 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts all of the specified tuples to the file on behalf of
+     * transaction, as {@link #insertTuple} would one at a time. Every page
+     * modified is marked dirty right away, so that the buffer pool keeps it
+     * until the caller installs the whole batch.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add. Each tuple is updated to reflect
+     *          that it is now stored in this file.
+     * @return An ArrayList containing each page that was modified, once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public default ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashMap<PageId, Page> dirtied = new LinkedHashMap<PageId, Page>();
+        while (tuples.hasNext()) {
+            for (Page p : insertTuple(tid, tuples.next())) {
+                p.markDirty(true, tid);
+                dirtied.put(p.getId(), p);
+            }
+        }
+        return new ArrayList<Page>(dirtied.values());
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -68,6 +107,32 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile that
+     * only needs to fill in the specified columns; the other fields of the
+     * tuples it returns may be left unset. Files that store whole rows
+     * return the same iterator as {@link #iterator(TransactionId)}.
+     *
+     * @param columns for each field of the TupleDesc, true if it is read;
+     *   null to read all of them
+     */
+    public default DbFileIterator iterator(TransactionId tid, boolean[] columns) {
+        return iterator(tid);
+    }
+
+    /**
+     * Returns an iterator like {@link #iterator(TransactionId, boolean[])}
+     * that may leave out pages on which no tuple can satisfy all of the
+     * specified predicates. It may still return tuples that don't satisfy
+     * them; the caller filters. Files without page summaries ignore the
+     * predicates.
+     *
+     * @param pagePredicates predicates on fields of the TupleDesc, or null
+     */
+    public default DbFileIterator iterator(TransactionId tid, boolean[] columns, Predicate[] pagePredicates) {
+        return iterator(tid, columns);
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -88,4 +153,12 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Releases any operating system resources (such as open file handles)
+     * held by this file. The file stays usable; resources are acquired again
+     * on demand. Called when the Catalog drops the table.
+     */
+    public default void close() {
+    }
 }
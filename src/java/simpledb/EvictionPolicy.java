@@ -0,0 +1,69 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * needs a free frame.
+ * <p>
+ * The BufferPool reports every page it installs, every cache hit and every
+ * page it drops. Pages that must stay resident (dirty pages under NO STEAL,
+ * or pages the pool has pinned) are marked as not evictable and are kept out
+ * of the replacement structures, so choosing a victim never has to walk past
+ * them.
+ * <p>
+ * Implementations are not thread safe; the BufferPool calls them with the
+ * lock that protects its page table held.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /** The replacement policies a BufferPool can be built with. */
+    public enum Kind {
+        CLOCK, LRU_K, TWO_Q;
+
+        /**
+         * Create a fresh policy of this kind.
+         *
+         * @param capacity the number of frames the policy manages
+         */
+        public EvictionPolicy create(int capacity) {
+            switch (this) {
+            case LRU_K:
+                return new LruKEvictionPolicy(LruKEvictionPolicy.DEFAULT_K);
+            case TWO_Q:
+                return new TwoQueueEvictionPolicy(capacity);
+            default:
+                return new ClockEvictionPolicy();
+            }
+        }
+    }
+
+    /**
+     * A page was just installed in the pool. New pages start out evictable.
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * A resident page was just requested again. Calls for pages the policy
+     * does not track are ignored.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * The page left the pool (evicted or discarded).
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Allow or forbid choosing the specified page as a victim.
+     */
+    public void setEvictable(PageId pid, boolean evictable);
+
+    /**
+     * Pick the next page to evict. The page is not removed from the policy;
+     * the caller reports that with {@link #pageRemoved} once the page is gone.
+     *
+     * @return the victim, or null if no resident page is evictable
+     */
+    public PageId chooseVictim();
+}
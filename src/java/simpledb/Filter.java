@@ -36,12 +36,26 @@ public class Filter extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        pushDown();
         child.open();
         super.open();
         filterIterator = createFilterIterator();
         filterIterator.open();
     }
 
+    /**
+     * Hand the predicate to the scan below this filter, through any other
+     * filters, so that it can skip pages none of whose tuples pass. Every
+     * tuple the scan returns is still checked here.
+     */
+    private void pushDown() {
+        OpIterator below = child;
+        while (below instanceof Filter)
+            below = ((Filter) below).child;
+        if (below instanceof SeqScan)
+            ((SeqScan) below).addPagePredicate(p);
+    }
+
     private TupleIterator createFilterIterator() throws DbException, TransactionAbortedException {
         List<Tuple> tuples = new ArrayList<>();
         while (child.hasNext()) {
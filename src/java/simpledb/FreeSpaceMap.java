@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one empty
+ * slot, so that an insert can go straight to a page with room instead of
+ * reading the file from the start.
+ * <p>
+ * The map is a hint: a page marked as having room may turn out to be full
+ * (the caller then marks it full and asks again), and a page that gained room
+ * behind the map's back is only found again once something marks it. It
+ * never causes a tuple to be placed wrongly.
+ *
+ * @Threadsafe
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    /** bit i is set if page i is believed to have an empty slot */
+    private final BitSet room = new BitSet();
+    /** no page below this one has its bit set */
+    private int lowest = 0;
+
+    /**
+     * @return the lowest page believed to have an empty slot, or -1 if there
+     *   is none
+     */
+    public synchronized int nextPageWithRoom() {
+        int pageNo = room.nextSetBit(lowest);
+        lowest = pageNo < 0 ? room.length() : pageNo;
+        return pageNo;
+    }
+
+    /**
+     * @return the lowest page at or after from believed to have an empty
+     *   slot, or -1 if there is none
+     */
+    public synchronized int nextPageWithRoom(int from) {
+        if (from <= lowest)
+            return nextPageWithRoom();
+        return room.nextSetBit(from);
+    }
+
+    /** Record that the specified page has at least one empty slot. */
+    public synchronized void markRoom(int pageNo) {
+        room.set(pageNo);
+        if (pageNo < lowest)
+            lowest = pageNo;
+    }
+
+    /** Record that the specified page is full. */
+    public synchronized void markFull(int pageNo) {
+        room.clear(pageNo);
+    }
+
+    /** @return true if the specified page is believed to have an empty slot */
+    public synchronized boolean hasRoom(int pageNo) {
+        return room.get(pageNo);
+    }
+}
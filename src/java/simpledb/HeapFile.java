@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -17,6 +18,38 @@ public class HeapFile implements DbFile {
 
     private final File f;
     private final TupleDesc td;
+    /** all page I/O goes through this one channel */
+    private final PageChannel channel;
+    /** true if pages are read as views of a memory mapping of the file */
+    private final boolean mapped;
+    /** true if pages are in the variable-length SlottedHeapPage format */
+    private final boolean slotted;
+
+    /** Number of pages the file grows by when an insert needs a new page */
+    public static final int EXTENT_PAGES = 8;
+
+    /** empty pages at the end of the file that were allocated with an extent
+    but not handed out yet; they are not counted by numPages() */
+    private volatile int reservedPages;
+    /** true once the reserved pages a previous run left at the end of the
+    file have been found */
+    private volatile boolean tailChecked;
+    /** bytes after the last page that record the last extent, so its
+    reserved pages are still known after a restart; see checkTail() */
+    private volatile int trailerBytes;
+
+    /** Size of the record of the last extent at the end of the file: a
+    magic number, and the first and last page (exclusive) of the extent */
+    static final int TRAILER_SIZE = 12;
+    private static final int TRAILER_MAGIC = 0x48465854;
+
+    /** pages with room, built from the page headers on disk by the first
+    insert, or null before that */
+    private FreeSpaceMap freeSpace;
+    /** number of pages whose state freeSpace knows */
+    private int freeSpaceKnown;
+    /** value ranges of the int columns of each page, for skipping pages */
+    private final ZoneMap zones;
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -25,8 +58,77 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally read
+     * through a memory mapping. A mapped heap file serves readPage with a
+     * read-only view of the mapping instead of copying the page, which
+     * suits tables that are loaded once and then mostly scanned. A page
+     * gets its own copy of its bytes the first time it is changed; writes
+     * still go through the file, and the mapping is extended as the file
+     * grows.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            true to read pages through a memory mapping
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped) {
+        this(f, td, mapped, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally read
+     * through a memory mapping, whose pages are either in the fixed-length
+     * HeapPage format or in the variable-length SlottedHeapPage format. The
+     * slotted format stores strings at their real length; the two formats
+     * can't be mixed in one file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            true to read pages through a memory mapping
+     * @param slotted
+     *            true if the pages are SlottedHeapPages
+     */
+    public HeapFile(File f, TupleDesc td, boolean mapped, boolean slotted) {
         this.f = f;
         this.td = td;
+        this.channel = new PageChannel(f);
+        this.mapped = mapped;
+        this.slotted = slotted;
+        this.zones = new ZoneMap(td);
+    }
+
+    /**
+     * @return true if pages of this file are read through a memory mapping
+     */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /**
+     * @return the per-page value ranges scans of this file use to skip
+     *   pages, and their skipped and read counters
+     */
+    public ZoneMap getZoneMap() {
+        return zones;
+    }
+
+    /**
+     * @return true if pages of this file are in the SlottedHeapPage format
+     */
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    /** @return a page of this file's format that owns the specified buffer */
+    private HeapPage newPage(HeapPageId pid, ByteBuffer data) {
+        return slotted ? new SlottedHeapPage(pid, data) : new HeapPage(pid, data);
     }
 
     /**
@@ -71,23 +173,27 @@ public class HeapFile implements DbFile {
         Database.getBufferPool();
         int totalPages = numPages();
 
-        byte[] page = new byte[BufferPool.getPageSize()];
-
         //If the pid's page number exceeds the pages in the file return exception
         if (pid.getPageNumber() >= totalPages) {
             throw new IllegalArgumentException("PageId is too big");
         }
 
-        //Try to read the page from the file with fileinputstream and return it in a HeapPage
-        // If the file is not found or page number is out of bounds, throw exception
+        long position = (long) pid.getPageNumber() * BufferPool.getPageSize();
+        if (mapped) {
+            try {
+                return newPage((HeapPageId) pid, channel.map(position, BufferPool.getPageSize()));
+            } catch (EOFException e) {
+                // a partial last page can't be mapped; read it instead
+            } catch (IOException e) {
+                throw new IllegalArgumentException("page number out of bounds");
+            }
+        }
+
+        //Read the page straight into the buffer the HeapPage will own
+        ByteBuffer page = ByteBuffer.allocate(BufferPool.getPageSize());
         try {
-            FileInputStream fis = new FileInputStream(f);
-            fis.skip(pid.getPageNumber() * BufferPool.getPageSize());
-            fis.read(page);
-            fis.close();
-            return new HeapPage((HeapPageId) pid, page);
-        } catch (FileNotFoundException e) {
-            throw new IllegalArgumentException("file not found");
+            channel.read(page, position);
+            return newPage((HeapPageId) pid, page);
         } catch (IOException i) {
             throw new IllegalArgumentException("page number out of bounds");
         }
@@ -96,53 +202,224 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         HeapPage p = (HeapPage) page;
+        channel.write(p.pageBuffer(), (long) p.getId().getPageNumber() * BufferPool.getPageSize());
+    }
+
+    /**
+     * Writes runs of adjacent pages with one gathering write each.
+     */
+    public int writePages(List<Page> pages) throws IOException {
+        int writes = 0;
+        int i = 0;
+        while (i < pages.size()) {
+            int first = pages.get(i).getId().getPageNumber();
+            int j = i + 1;
+            while (j < pages.size() && pages.get(j).getId().getPageNumber() == first + (j - i))
+                j++;
+            ByteBuffer[] run = new ByteBuffer[j - i];
+            for (int k = i; k < j; k++)
+                run[k - i] = ((HeapPage) pages.get(k)).pageBuffer();
+            channel.write(run, (long) first * BufferPool.getPageSize());
+            writes++;
+            i = j;
+        }
+        return writes;
+    }
 
-        byte[] data = p.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(p.getId().getPageNumber() * BufferPool.getPageSize());
-        rf.write(data);
-        rf.close();
+    /**
+     * Closes the channel to the backing file; it is reopened on the next
+     * page access.
+     */
+    public void close() {
+        channel.close();
     }
 
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int) Math.ceil((double) f.length() / BufferPool.getPageSize());
+        if (!tailChecked)
+            checkTail();
+        return (int) Math.ceil((double) (f.length() - trailerBytes) / BufferPool.getPageSize())
+                - reservedPages;
     }
 
-    // see DbFile.java for javadocs
-    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
-            throws DbException, IOException, TransactionAbortedException {
-        ArrayList<Page> affectedPages = new ArrayList<>();
+    /**
+     * Finds the pages of the last extent that were never handed out, which
+     * are only counted in memory: after a restart they are the zeroed pages
+     * at the end of the extent recorded in the trailer, if the file still
+     * ends with that trailer. A page that was handed out but never written
+     * holds no tuples either, so nothing is lost by handing it out again;
+     * empty pages written any other way are never taken for reserved ones.
+     */
+    private synchronized void checkTail() {
+        if (tailChecked)
+            return;
+        int pageSize = BufferPool.getPageSize();
+        long length = f.length();
+        int unused = 0;
+        if (length % pageSize == TRAILER_SIZE) {
+            try {
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+                channel.read(trailer, length - TRAILER_SIZE);
+                int first = trailer.getInt(4);
+                int last = trailer.getInt(8);
+                if (trailer.getInt(0) == TRAILER_MAGIC && last == length / pageSize
+                        && first >= 0 && first < last) {
+                    trailerBytes = TRAILER_SIZE;
+                    byte[] pages = new byte[(last - first) * pageSize];
+                    channel.read(ByteBuffer.wrap(pages), (long) first * pageSize);
+                    for (int i = last - first - 1; i >= 0 && isZero(pages, i * pageSize, pageSize); i--)
+                        unused++;
+                }
+            } catch (IOException e) {
+                // count them all as pages, as they would be without extents
+                unused = 0;
+            }
+        }
+        reservedPages = unused;
+        tailChecked = true;
+    }
 
-        for (int i = 0; i < numPages(); i++) {
-            HeapPageId pid = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() != 0) {
-                //page的insertTuple已经负责修改tuple信息表明其存储在该page上
-                page.insertTuple(t);
-                page.markDirty(true, tid);
-                affectedPages.add(page);
-                return affectedPages;
+    private static boolean isZero(byte[] b, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (b[i] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the free-space map of this file, first reading the headers of
+     * pages it doesn't know about yet (all pages, the first time) from disk.
+     */
+    private synchronized FreeSpaceMap freeSpace() throws IOException {
+        if (freeSpace == null)
+            freeSpace = new FreeSpaceMap();
+        int pages = numPages();
+        if (freeSpaceKnown < pages) {
+            int numSlots = HeapPage.slotsPerPage(td);
+            byte[] header = new byte[slotted ? SlottedHeapPage.HEADER_SIZE : (numSlots + 7) / 8];
+            for (int i = freeSpaceKnown; i < pages; i++) {
+                Arrays.fill(header, (byte) 0);
+                channel.read(ByteBuffer.wrap(header), (long) i * BufferPool.getPageSize());
+                if (slotted ? SlottedHeapPage.hasRoom(ByteBuffer.wrap(header), td)
+                        : HeapPage.hasEmptySlot(header, numSlots))
+                    freeSpace.markRoom(i);
             }
+            freeSpaceKnown = pages;
         }
-        synchronized (this) {
-            BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
-            byte[] emptyData = HeapPage.createEmptyPageData();
-            bw.write(emptyData);
-            bw.close();
+        return freeSpace;
+    }
+
+    /**
+     * Hands out the next empty page at the end of the file, growing the file
+     * by {@link #EXTENT_PAGES} zeroed pages when none is reserved. The
+     * extent and a trailer that records it go in a single write over the
+     * previous trailer; if only part of it reaches the disk, the file does
+     * not end in a valid trailer and all its pages are counted.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int allocatePage() throws IOException {
+        if (!tailChecked)
+            checkTail();
+        if (reservedPages == 0) {
+            int first = numPages();
+            int extentBytes = EXTENT_PAGES * BufferPool.getPageSize();
+            ByteBuffer extent = ByteBuffer.allocate(extentBytes + TRAILER_SIZE);
+            extent.putInt(extentBytes, TRAILER_MAGIC);
+            extent.putInt(extentBytes + 4, first);
+            extent.putInt(extentBytes + 8, first + EXTENT_PAGES);
+            trailerBytes = TRAILER_SIZE;
+            channel.write(extent, (long) first * BufferPool.getPageSize());
+            reservedPages = EXTENT_PAGES;
+        }
+        reservedPages--;
+        int pageNo = numPages() - 1;
+        freeSpaceKnown = Math.max(freeSpaceKnown, pageNo + 1);
+        zones.pageAllocated(pageNo);
+        return pageNo;
+    }
+
+    /**
+     * Returns a page of this file with room for the specified tuple, fetched
+     * for writing: the first one the free-space map knows of, or else a
+     * newly allocated page. A slotted page that has room, just not for this
+     * tuple, stays in the map for smaller tuples.
+     */
+    private HeapPage pageWithRoom(TransactionId tid, FreeSpaceMap map, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        // try the pages the free-space map believes have room
+        int pageNo;
+        int from = 0;
+        BufferPool bp = Database.getBufferPool();
+        while ((pageNo = map.nextPageWithRoom(from)) >= 0) {
+            HeapPageId pid = new HeapPageId(getId(), pageNo);
+            boolean held = bp.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+            if (page.hasRoomFor(t))
+                return page;
+            if (page.getNumEmptySlots() == 0)
+                map.markFull(pageNo);
+            // nothing was read or changed, so a lock taken just to look
+            // can go before the transaction ends
+            if (!held)
+                bp.releasePage(tid, pid);
+            from = pageNo + 1;
         }
+        pageNo = allocatePage();
 
         // by virtue of writing these bits to the HeapFile, it is now visible.
         // so some other dude may have obtained a read lock on the empty page
         // we just created---which is ok, we haven't yet added the tuple.
         // we just need to lock the page before we can add the tuple to it.
 
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), numPages() - 1),
+        map.markRoom(pageNo);
+        return (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pageNo),
                 Permissions.READ_WRITE);
-        p.insertTuple(t);
-        affectedPages.add(p);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> affectedPages = new ArrayList<>();
+        FreeSpaceMap map = freeSpace();
+        HeapPage page = pageWithRoom(tid, map, t);
+        //page的insertTuple已经负责修改tuple信息表明其存储在该page上
+        page.insertTuple(t);
+        page.markDirty(true, tid);
+        zones.tupleInserted(page.getId().getPageNumber(), t);
+        if (page.getNumEmptySlots() == 0)
+            map.markFull(page.getId().getPageNumber());
+        affectedPages.add(page);
+        return affectedPages;
+    }
+
+    /**
+     * Fills one page completely before looking for the next, so the
+     * free-space map is consulted once per page rather than once per tuple.
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> affectedPages = new ArrayList<>();
+        FreeSpaceMap map = freeSpace();
+        HeapPage page = null;
+        while (tuples.hasNext()) {
+            Tuple t = tuples.next();
+            if (page == null || !page.hasRoomFor(t)) {
+                if (page != null && page.getNumEmptySlots() == 0)
+                    map.markFull(page.getId().getPageNumber());
+                page = pageWithRoom(tid, map, t);
+                page.markDirty(true, tid);
+                if (!affectedPages.contains(page))
+                    affectedPages.add(page);
+            }
+            page.insertTuple(t);
+            zones.tupleInserted(page.getId().getPageNumber(), t);
+        }
+        if (page != null && page.getNumEmptySlots() == 0)
+            map.markFull(page.getId().getPageNumber());
         return affectedPages;
     }
 
@@ -154,6 +431,13 @@ public class HeapFile implements DbFile {
         HeapPageId pageId = new HeapPageId(getId(), t.getRecordId().getPageId().getPageNumber());
         HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        synchronized (this) {
+            // mark it even before the map is built: building only adds
+            // pages, and the header on disk doesn't show this delete yet
+            if (freeSpace == null)
+                freeSpace = new FreeSpaceMap();
+            freeSpace.markRoom(pageId.getPageNumber());
+        }
         pages.add(page);
         return pages;
 
@@ -161,7 +445,17 @@ public class HeapFile implements DbFile {
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
-        return new HeapFileIterator(tid);
+        return new HeapFileIterator(tid, null);
+    }
+
+    /**
+     * Returns an iterator that skips the pages whose zone shows that no
+     * tuple on them satisfies all of the specified predicates. The
+     * predicates only pick pages; the tuples of a page that is read are
+     * all returned.
+     */
+    public DbFileIterator iterator(TransactionId tid, boolean[] columns, Predicate[] pagePredicates) {
+        return new HeapFileIterator(tid, pagePredicates);
     }
 
     /**
@@ -179,19 +473,49 @@ public class HeapFile implements DbFile {
 
         private TransactionId tid;
 
-        public HeapFileIterator(TransactionId tid) {
+        /** private frames for scans over tables too big for the pool, or null */
+        private BufferRing ring;
+
+        /** reads the next pages in the background once the scan is sequential */
+        private ReadAhead readAhead;
+
+        /** pages whose zone rules out any of these are skipped, or null */
+        private final Predicate[] pagePredicates;
+
+        public HeapFileIterator(TransactionId tid, Predicate[] pagePredicates) {
             this.tid = tid;
+            this.pagePredicates = pagePredicates != null && pagePredicates.length > 0 ? pagePredicates : null;
         }
 
         public Iterator<Tuple> getTuplesInPage(HeapPageId pid) throws TransactionAbortedException, DbException {
+            int pageNo = pid.getPageNumber();
+            if (pagePredicates != null) {
+                for (Predicate p : pagePredicates) {
+                    if (!zones.mayMatch(pageNo, p)) {
+                        zones.pageSkipped();
+                        return Collections.<Tuple>emptyIterator();
+                    }
+                }
+                zones.pageRead();
+            }
             // 不能直接使用HeapFile的readPage方法，而是通过BufferPool来获得page，理由见readPage()方法的Javadoc
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (readAhead != null)
+                readAhead.pageRequested(pid, numPages());
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY, ring);
+            if (!zones.isKnown(pageNo))
+                zones.learn(pageNo, page);
             return page.iterator();
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
             pagePos = 0;
+            // big tables are read through a ring so they don't flush the pool
+            if (ring == null && Database.getBufferPool().useScanRing(numPages()))
+                ring = new BufferRing();
+            // a mapped file needs no read-ahead: a page read is a memory access
+            if (readAhead == null && !mapped)
+                readAhead = new ReadAhead(Database.getBufferPool());
             HeapPageId pid = new HeapPageId(getId(), pagePos);
             //加载第一页的tuples
             tuplesInPage = getTuplesInPage(pid);
@@ -210,13 +534,15 @@ public class HeapFile implements DbFile {
             //如果遍历完当前页，测试是否还有页未遍历
             //注意要减一，这里与for循环的一般判断逻辑（迭代变量<长度）不同，是因为我们要在接下来代码中将pagePos加1才使用
             //如果不理解，可以自己举一个例子想象运行过程
-            if (pagePos < numPages() - 1) {
+            //空页（或被跳过的页）之后可能还有tuple，所以要一直往后找
+            while (pagePos < numPages() - 1) {
                 pagePos++;
                 HeapPageId pid = new HeapPageId(getId(), pagePos);
                 tuplesInPage = getTuplesInPage(pid);
-                //这时不能直接return ture，有可能返回的新的迭代器是不含有tuple的
-                return tuplesInPage.hasNext();
-            } else return false;
+                if (tuplesInPage.hasNext())
+                    return true;
+            }
+            return false;
         }
 
         @Override
@@ -237,6 +563,11 @@ public class HeapFile implements DbFile {
         public void close() {
             pagePos = 0;
             tuplesInPage = null;
+            ring = null;
+            if (readAhead != null) {
+                readAhead.cancel();
+                readAhead = null;
+            }
         }
     }
 }
@@ -0,0 +1,371 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * HeapFileBulkLoader converts a delimited text file into a heap file in the
+ * format of {@link HeapPage}, like {@link HeapFileEncoder}, but streams the
+ * input and uses several threads.
+ * <p>
+ * The input is read in chunks of about {@link #getChunkBytes()} bytes, cut
+ * at line ends. Worker threads parse the lines of a chunk and encode them
+ * into complete page images; the calling thread appends the pages of each
+ * chunk, in input order, to the output file. Only a few chunks per worker
+ * are in memory at once, so files of any size can be loaded with a small
+ * heap.
+ * <p>
+ * Each chunk starts a new page, so the last page of a chunk may have empty
+ * slots. With the default chunk size that wastes well under one page in a
+ * thousand, and later inserts fill those slots. A file that fits in one
+ * chunk is encoded byte for byte like HeapFileEncoder would.
+ * <p>
+ * Fields are parsed as in HeapFileEncoder: surrounding blanks are trimmed,
+ * and strings longer than {@link Type#STRING_LEN} are truncated. Blank lines
+ * are skipped. The input is read as single-byte characters.
+ */
+public class HeapFileBulkLoader {
+
+    /** Default amount of input text handed to a worker at a time. */
+    public static final int DEFAULT_CHUNK_BYTES = 4 << 20;
+
+    /** Chunks per worker that may be read but not yet written. */
+    static final int CHUNKS_PER_THREAD = 2;
+
+    private final TupleDesc td;
+    private final char fieldSeparator;
+    private final int threads;
+    private final int chunkBytes;
+
+    private long rowsLoaded;
+    private long pagesWritten;
+    private long bytesRead;
+
+    /**
+     * Create a loader for comma separated input, with one worker per core
+     * and the default chunk size.
+     *
+     * @param td the schema of the input lines; only INT_TYPE and
+     *   STRING_TYPE fields are supported
+     */
+    public HeapFileBulkLoader(TupleDesc td) {
+        this(td, ',', Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_BYTES);
+    }
+
+    /**
+     * Create a loader.
+     *
+     * @param td the schema of the input lines
+     * @param fieldSeparator the character between two fields of a line
+     * @param threads the number of worker threads parsing and encoding
+     * @param chunkBytes the approximate size of the input chunks; a chunk
+     *   is extended to the end of its last line
+     */
+    public HeapFileBulkLoader(TupleDesc td, char fieldSeparator, int threads, int chunkBytes) {
+        if (threads < 1 || chunkBytes < 1)
+            throw new IllegalArgumentException("threads and chunkBytes must be positive");
+        this.td = td;
+        this.fieldSeparator = fieldSeparator;
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /** @return the approximate size of the input chunks, in bytes */
+    public int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /** @return the number of rows the last conversion loaded */
+    public long getRowsLoaded() {
+        return rowsLoaded;
+    }
+
+    /** @return the number of pages the last conversion wrote */
+    public long getPagesWritten() {
+        return pagesWritten;
+    }
+
+    /** @return the number of input bytes the last conversion read */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Convert the input file into a heap file and add it to the catalog.
+     *
+     * @param inFile the text file to read
+     * @param outFile the heap file to create; an existing file is replaced
+     * @param name the name of the new table
+     * @return the new table
+     * @throws IOException if the input can't be read, a line is malformed,
+     *   or the output can't be written
+     */
+    public HeapFile load(File inFile, File outFile, String name) throws IOException {
+        convert(inFile, outFile);
+        HeapFile hf = new HeapFile(outFile, td);
+        Database.getCatalog().addTable(hf, name);
+        return hf;
+    }
+
+    /**
+     * Convert the input file into a heap file.
+     *
+     * @param inFile the text file to read
+     * @param outFile the heap file to create; an existing file is replaced
+     * @throws IOException if the input can't be read, a line is malformed,
+     *   or the output can't be written
+     */
+    public void convert(File inFile, File outFile) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            Type type = td.getFieldType(i);
+            if (type != Type.INT_TYPE && type != Type.STRING_TYPE)
+                throw new IllegalArgumentException("cannot load fields of type " + type);
+        }
+        rowsLoaded = 0;
+        pagesWritten = 0;
+        bytesRead = 0;
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "simpledb-bulkload");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        ArrayDeque<Future<EncodedChunk>> inFlight = new ArrayDeque<Future<EncodedChunk>>();
+        InputStream in = new FileInputStream(inFile);
+        new FileOutputStream(outFile).close(); // truncate
+        PageChannel out = new PageChannel(outFile);
+        try {
+            byte[] carry = new byte[0];
+            long lineNo = 1;
+            while (true) {
+                byte[] chunk = readChunk(in, carry);
+                if (chunk == null)
+                    break;
+                int end = lastLineEnd(chunk);
+                if (end < 0 && chunk.length < carry.length + chunkBytes) {
+                    // the input ended without a final newline
+                    end = chunk.length;
+                }
+                if (end < 0) {
+                    // a line longer than the chunk: keep reading
+                    carry = chunk;
+                    continue;
+                }
+                carry = Arrays.copyOfRange(chunk, end, chunk.length);
+                bytesRead += end;
+                final byte[] text = chunk;
+                final int length = end;
+                final long firstLine = lineNo;
+                lineNo += countLines(chunk, end);
+                if (inFlight.size() >= threads * CHUNKS_PER_THREAD)
+                    write(out, inFlight.poll());
+                inFlight.add(workers.submit(new Callable<EncodedChunk>() {
+                    public EncodedChunk call() throws IOException {
+                        return encode(text, length, firstLine);
+                    }
+                }));
+            }
+            while (!inFlight.isEmpty())
+                write(out, inFlight.poll());
+            if (pagesWritten == 0) {
+                // like HeapFileEncoder, an empty table still has one page
+                out.append(ByteBuffer.wrap(HeapPage.createEmptyPageData()));
+                pagesWritten++;
+            }
+            out.force();
+        } finally {
+            for (Future<EncodedChunk> f : inFlight)
+                f.cancel(true);
+            workers.shutdownNow();
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Read the next chunk of input after the carried-over bytes.
+     *
+     * @return the chunk, or null if there is no input left
+     */
+    private byte[] readChunk(InputStream in, byte[] carry) throws IOException {
+        byte[] chunk = Arrays.copyOf(carry, carry.length + chunkBytes);
+        int filled = carry.length;
+        int n;
+        while (filled < chunk.length && (n = in.read(chunk, filled, chunk.length - filled)) > 0)
+            filled += n;
+        if (filled == 0)
+            return null;
+        return filled == chunk.length ? chunk : Arrays.copyOf(chunk, filled);
+    }
+
+    /** @return the offset just past the last newline in buf, or -1 */
+    private static int lastLineEnd(byte[] buf) {
+        for (int i = buf.length - 1; i >= 0; i--) {
+            if (buf[i] == '\n')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    private static int countLines(byte[] buf, int length) {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (buf[i] == '\n')
+                lines++;
+        }
+        return lines;
+    }
+
+    /** Append the pages of a chunk once its worker has finished it. */
+    private void write(PageChannel out, Future<EncodedChunk> pending) throws IOException {
+        EncodedChunk chunk;
+        try {
+            chunk = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("bulk load interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+        if (chunk.pages > 0)
+            out.append(ByteBuffer.wrap(chunk.data, 0, chunk.pages * BufferPool.getPageSize()));
+        pagesWritten += chunk.pages;
+        rowsLoaded += chunk.rows;
+    }
+
+    /** The encoded pages of one chunk. */
+    private static class EncodedChunk {
+        final byte[] data;
+        final int pages;
+        final int rows;
+
+        EncodedChunk(byte[] data, int pages, int rows) {
+            this.data = data;
+            this.pages = pages;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * Parse the lines in text[0, length) and encode them into pages.
+     *
+     * @param firstLine the line number of the first line, for errors
+     */
+    private EncodedChunk encode(byte[] text, int length, long firstLine) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int slots = HeapPage.slotsPerPage(td);
+        int headerBytes = (slots + 7) / 8;
+        int tupleBytes = td.getSize();
+        int numFields = td.numFields();
+
+        // a guess; grown below when the rows are smaller than that
+        byte[] data = new byte[Math.max(1, length / pageSize) * pageSize];
+        int page = 0;
+        int slot = 0;
+        int rows = 0;
+
+        long lineNo = firstLine;
+        int pos = 0;
+        while (pos < length) {
+            int lineEnd = pos;
+            while (lineEnd < length && text[lineEnd] != '\n')
+                lineEnd++;
+            int end = lineEnd;
+            if (end > pos && text[end - 1] == '\r')
+                end--;
+            if (end > pos) {
+                if (slot == 0 && (page + 1) * pageSize > data.length)
+                    data = Arrays.copyOf(data, 2 * data.length);
+                int base = page * pageSize;
+                int out = base + headerBytes + slot * tupleBytes;
+                int fieldStart = pos;
+                for (int f = 0; f < numFields; f++) {
+                    int fieldEnd = fieldStart;
+                    while (fieldEnd < end && text[fieldEnd] != fieldSeparator)
+                        fieldEnd++;
+                    if (fieldEnd == end && f < numFields - 1)
+                        throw new IOException("line " + lineNo + ": expected " + numFields + " fields");
+                    out = encodeField(td.getFieldType(f), text, fieldStart, fieldEnd, data, out, lineNo);
+                    fieldStart = fieldEnd + 1;
+                }
+                data[base + slot / 8] |= (byte) (1 << (slot % 8));
+                rows++;
+                if (++slot == slots) {
+                    slot = 0;
+                    page++;
+                }
+            }
+            pos = lineEnd + 1;
+            lineNo++;
+        }
+        return new EncodedChunk(data, slot == 0 ? page : page + 1, rows);
+    }
+
+    /**
+     * Encode the field in text[start, end) at data[out].
+     *
+     * @return the offset just past the encoded field
+     */
+    private static int encodeField(Type type, byte[] text, int start, int end,
+            byte[] data, int out, long lineNo) throws IOException {
+        while (start < end && text[start] <= ' ')
+            start++;
+        while (end > start && text[end - 1] <= ' ')
+            end--;
+        if (type == Type.INT_TYPE) {
+            int value;
+            try {
+                value = parseInt(text, start, end);
+            } catch (NumberFormatException e) {
+                throw new IOException("line " + lineNo + ": bad integer \""
+                        + new String(text, start, end - start, "ISO-8859-1") + "\"");
+            }
+            data[out] = (byte) (value >>> 24);
+            data[out + 1] = (byte) (value >>> 16);
+            data[out + 2] = (byte) (value >>> 8);
+            data[out + 3] = (byte) value;
+            return out + 4;
+        }
+        int len = Math.min(end - start, Type.STRING_LEN);
+        data[out] = (byte) (len >>> 24);
+        data[out + 1] = (byte) (len >>> 16);
+        data[out + 2] = (byte) (len >>> 8);
+        data[out + 3] = (byte) len;
+        System.arraycopy(text, start, data, out + 4, len);
+        return out + 4 + Type.STRING_LEN;
+    }
+
+    /** Integer.parseInt over bytes, without building a String. */
+    private static int parseInt(byte[] text, int start, int end) {
+        if (start == end)
+            throw new NumberFormatException();
+        boolean negative = text[start] == '-';
+        int i = negative || text[start] == '+' ? start + 1 : start;
+        if (i == end)
+            throw new NumberFormatException();
+        // accumulate negatively so that Integer.MIN_VALUE fits
+        long limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = text[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException();
+            value = value * 10 - digit;
+            if (value < limit)
+                throw new NumberFormatException();
+        }
+        return (int) (negative ? value : -value);
+    }
+}
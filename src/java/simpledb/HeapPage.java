@@ -2,28 +2,65 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps its contents in the on-disk format: header bits and
+ * tuple slots are read and written in place. Tuples are created the first
+ * time their slot is visited, and each field is only decoded when it is
+ * read, so a scan that looks at one column never decodes the others.
+ * <p>
+ * The bytes normally live in a heap buffer owned by the page; an off-heap
+ * BufferPool moves them into a frame of its PageArena while the page is
+ * resident, and a memory-mapped HeapFile hands out pages that read a
+ * read-only view of the mapping until they are first changed.
+ * <p>
+ * This class implements the fixed-length slot format; {@link SlottedHeapPage}
+ * overrides the slot handling for tables that store records at their real
+ * length, and shares the buffer management here.
  *
  * @see HeapFile
  * @see BufferPool
+ * @see PageArena
  *
  */
 public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
-
-    private Map<RecordId, Integer> tuplesMap;
+    final int headerSize;
+    /** offset of each field within a tuple slot */
+    private final int[] fieldOffsets;
+
+    /** Tuples handed out for each slot, allocated on first use */
+    private Tuple[] decoded;
+
+    private static final LongAdder tuplesDecoded = new LongAdder();
+    private static final LongAdder fieldsDecoded = new LongAdder();
+
+    /** The page bytes: a heap buffer, a read-only view of a file mapping, or
+    an arena frame while framed is set */
+    private volatile ByteBuffer data;
+    private volatile boolean framed;
+    /** Held for writing while the bytes move into or out of a frame. A frame
+    goes back to the arena, and on to another page, once this page left it,
+    so reads check a stamp and are redone under the read lock if the bytes
+    moved meanwhile; changes hold the read lock throughout */
+    private final StampedLock frameLock = new StampedLock();
+
+    /** The page before its first change since setBeforeImage(), or null if
+    it has not changed since */
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock = new Object();
     private volatile boolean dirty;
     private volatile TransactionId dirtierId;
+    private volatile long lsn = 0;
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -41,36 +78,39 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Create a HeapPage that takes ownership of the specified buffer, which
+     * holds one page in the format described at {@link #HeapPage(HeapPageId, byte[])}.
+     * A read-only buffer is copied the first time the page is changed.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-        this.tuplesMap = new HashMap<>();
+        this.headerSize = getHeaderSize();
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
+        this.data = data;
         this.dirty = false;
         this.dirtierId = null;
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() {
+        return slotsPerPage(td);
+    }
+
+    /**
+     * @return the number of tuple slots on a page of a table with the
+     *   specified schema
+     */
+    static int slotsPerPage(TupleDesc td) {
         double tuplesheaderbits = td.getSize() * 8 + 1;
 
         // the double here is very important, or it may return a wrong result.
@@ -90,25 +130,40 @@ public class HeapPage implements Page {
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
-        try {
-            byte[] oldDataRef = null;
-            synchronized(oldDataLock)
-            {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid,oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        byte[] oldDataRef = null;
+        synchronized(oldDataLock)
+        {
+            oldDataRef = oldData;
         }
-        return null;
+        if (oldDataRef == null)
+            oldDataRef = getPageData();
+        return withData(ByteBuffer.wrap(oldDataRef.clone()));
+    }
+
+    /**
+     * @return a page of the same format and id that owns the specified
+     *   buffer. Used for before images and for the copies the BufferPool
+     *   writes.
+     */
+    HeapPage withData(ByteBuffer data) {
+        return new HeapPage(pid, data);
     }
     
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // the image is taken lazily, on the next change
+        oldData = null;
+        }
+    }
+
+    /** Keeps the current contents as the before image if this is the first
+        change since setBeforeImage() */
+    private void captureBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
         }
     }
 
@@ -119,38 +174,116 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** Take the before image and make the buffer writable, ahead of a change */
+    void prepareWrite() {
+        captureBeforeImage();
+        ensureWritable();
+    }
+
+    /** @return the current page bytes; read again after prepareWrite() */
+    ByteBuffer buffer() {
+        return data;
+    }
+
+    /** @return a stamp to validate() once the page bytes have been read */
+    long startRead() {
+        return frameLock.tryOptimisticRead();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * @return true if the page bytes did not move since the stamp was
+     *   taken. Otherwise what was read may belong to another page, and must
+     *   be read again under lockRead().
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    boolean validate(long stamp) {
+        return frameLock.validate(stamp);
+    }
+
+    /** Keep the page bytes where they are until unlockRead() */
+    long lockRead() {
+        return frameLock.readLock();
+    }
+
+    void unlockRead(long stamp) {
+        frameLock.unlockRead(stamp);
+    }
+
+    /** @return a copy of length bytes of buf, starting at offset */
+    static byte[] copy(ByteBuffer buf, int offset, int length) {
+        ByteBuffer src = buf.duplicate();
+        src.clear();
+        src.position(offset);
+        byte[] bytes = new byte[length];
+        src.get(bytes);
+        return bytes;
+    }
+
+    /** @return the largest slot number a tuple can have, plus one */
+    int slotCapacity() {
+        return numSlots;
+    }
+
+    /** @return the offset of the specified slot in the page data */
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
+    }
+
+    /**
+     * @return the tuple stored in the specified slot, which must be in use.
+     *   Its fields are decoded as they are read.
+     */
+    Tuple tuple(int slotId) {
+        Tuple[] cache = decoded;
+        if (cache == null) {
+            cache = new Tuple[slotCapacity()];
+            decoded = cache;
+        }
+        Tuple t = cache[slotId];
+        if (t == null) {
+            t = new Tuple(this, slotId);
+            t.setRecordId(new RecordId(pid, slotId));
+            cache[slotId] = t;
+            tuplesDecoded.increment();
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Decode one field of the tuple in the specified slot.
+     */
+    Field readField(int slotId, int field) {
+        fieldsDecoded.increment();
+        Type type = td.getFieldType(field);
+        int offset = slotOffset(slotId) + fieldOffsets[field];
+        // the bytes are copied out and checked before they are parsed, as a
+        // string length read from a recycled frame could be anything
+        long stamp = startRead();
+        byte[] bytes = copy(data, offset, type.getLen());
+        if (!validate(stamp)) {
+            stamp = lockRead();
+            try {
+                bytes = copy(data, offset, type.getLen());
+            } finally {
+                unlockRead(stamp);
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
+        return type.parse(ByteBuffer.wrap(bytes), 0);
+    }
 
-        return t;
+    /** @return the number of tuples HeapPages have created from page data */
+    public static long getTuplesDecoded() {
+        return tuplesDecoded.sum();
+    }
+
+    /** @return the number of fields HeapPages have decoded from page data */
+    public static long getFieldsDecoded() {
+        return fieldsDecoded.sum();
+    }
+
+    /** Reset the decoding counters to zero. */
+    public static void resetDecodeStatistics() {
+        tuplesDecoded.reset();
+        fieldsDecoded.reset();
     }
 
     /**
@@ -165,64 +298,35 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
+        // empty slots and the padding are kept zeroed, so the buffer already
+        // is the serialized page
+        long stamp = startRead();
+        byte[] bytes = copy(data, 0, data.capacity());
+        if (validate(stamp))
+            return bytes;
+        stamp = lockRead();
         try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
+            return copy(data, 0, data.capacity());
+        } finally {
+            unlockRead(stamp);
         }
+    }
 
+    /**
+     * @return the bytes of this page as a read-only buffer, positioned at
+     *   zero, without copying them unless they are in an arena frame, which
+     *   may be reused before the buffer is written. Used to write the page
+     *   to disk.
+     */
+    ByteBuffer pageBuffer() {
+        long stamp = lockRead();
         try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            ByteBuffer buf = framed ? ByteBuffer.wrap(copy(data, 0, data.capacity())) : data.asReadOnlyBuffer();
+            buf.clear();
+            return buf;
+        } finally {
+            unlockRead(stamp);
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -252,7 +356,18 @@ public class HeapPage implements Page {
             throw new DbException("tried to delete tuple on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null tuple.");
-        markSlotUsed(rid.getTupleNumber(), false);
+        long stamp = lockRead();
+        try {
+            prepareWrite();
+            forget(rid.getTupleNumber());
+            markSlotUsed(rid.getTupleNumber(), false);
+            ByteBuffer buf = data;
+            int offset = slotOffset(rid.getTupleNumber());
+            for (int i = 0; i < td.getSize(); i++)
+                buf.put(offset + i, (byte) 0);
+        } finally {
+            unlockRead(stamp);
+        }
     }
 
     /**
@@ -277,12 +392,123 @@ public class HeapPage implements Page {
         if (goodSlot == -1)
             throw new DbException("called addTuple on page with no empty slots.");
 
-        markSlotUsed(goodSlot, true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        byte[] bytes = baos.toByteArray();
+
+        long stamp = lockRead();
+        try {
+            prepareWrite();
+            ByteBuffer buf = data;
+            int offset = slotOffset(goodSlot);
+            for (int i = 0; i < bytes.length; i++)
+                buf.put(offset + i, bytes[i]);
+            markSlotUsed(goodSlot, true);
+        } finally {
+            unlockRead(stamp);
+        }
         Debug.log(1, "HeapPage.addTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(),
                 pid.getPageNumber(), goodSlot);
         RecordId rid = new RecordId(pid, goodSlot);
         t.setRecordId(rid);
-        tuples[goodSlot] = t;
+        remember(goodSlot, t);
+    }
+
+    /** Hand out t for the specified slot, into which it was just inserted */
+    void remember(int slotId, Tuple t) {
+        if (decoded != null)
+            decoded[slotId] = t;
+    }
+
+    /**
+     * Drop the tuple handed out for the specified slot before the slot is
+     * emptied; whoever still holds the tuple keeps its values.
+     */
+    void forget(int slotId) {
+        Tuple[] cache = decoded;
+        if (cache != null && cache[slotId] != null) {
+            cache[slotId].materialize();
+            cache[slotId] = null;
+        }
+    }
+
+    /**
+     * @return true if the specified tuple fits on this page, which for
+     *   fixed-length slots means an empty slot is left
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
+    /**
+     * Give this page its own copy of a read-only (mapped) buffer before it
+     * is changed. Called under lockRead(), so the bytes are not in a frame.
+     */
+    private synchronized void ensureWritable() {
+        if (data.isReadOnly())
+            data = ByteBuffer.wrap(getPageData());
+    }
+
+    /**
+     * Copy this page into the specified frame and keep working on the
+     * frame from now on. Used by the BufferPool when the page enters an
+     * off-heap pool.
+     *
+     * @return false if the page is already framed or does not fit, in
+     *   which case the frame was not used
+     */
+    boolean moveTo(ByteBuffer frame) {
+        long stamp = frameLock.writeLock();
+        try {
+            ByteBuffer buf = data;
+            if (framed || frame.capacity() != buf.capacity())
+                return false;
+            ByteBuffer src = buf.duplicate();
+            src.clear();
+            ByteBuffer dst = frame.duplicate();
+            dst.clear();
+            dst.put(src);
+            data = frame;
+            framed = true;
+            return true;
+        } finally {
+            frameLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Copy this page out of its arena frame into a heap buffer, so that the
+     * page stays usable after it left the pool. Waits for reads and
+     * changes that are using the frame, and makes reads that started on it
+     * read again, so the frame can be reused as soon as this returns.
+     *
+     * @return the frame the page no longer uses, or null if it was not framed
+     */
+    ByteBuffer detach() {
+        long stamp = frameLock.writeLock();
+        try {
+            if (!framed)
+                return null;
+            ByteBuffer frame = data;
+            data = ByteBuffer.wrap(copy(frame, 0, frame.capacity()));
+            framed = false;
+            return frame;
+        } finally {
+            frameLock.unlockWrite(stamp);
+        }
+    }
+
+    /** @return true if the page data currently lives in an arena frame */
+    boolean isFramed() {
+        return framed;
     }
 
     /**
@@ -294,6 +520,14 @@ public class HeapPage implements Page {
         this.dirtierId = dirty ? tid : null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
@@ -313,13 +547,36 @@ public class HeapPage implements Page {
         return NumEmptySlots;
     }
 
+    /**
+     * @return true if the page header in the first bytes of header has an
+     *   empty slot among the first numSlots slots
+     */
+    static boolean hasEmptySlot(byte[] header, int numSlots) {
+        int fullBytes = numSlots / 8;
+        for (int i = 0; i < fullBytes; i++) {
+            if (header[i] != (byte) 0xFF)
+                return true;
+        }
+        int rest = numSlots % 8;
+        return rest != 0 && (header[fullBytes] & ((1 << rest) - 1)) != (1 << rest) - 1;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
         int byteNum = i / 8;//计算在第几个字节
         int posInByte = i % 8;//计算在该字节的第几位,从右往左算（这是因为JVM用big-ending）
-        return isOne(header[byteNum], posInByte);
+        long stamp = startRead();
+        boolean used = isOne(data.get(byteNum), posInByte);
+        if (validate(stamp))
+            return used;
+        stamp = lockRead();
+        try {
+            return isOne(data.get(byteNum), posInByte);
+        } finally {
+            unlockRead(stamp);
+        }
     }
 
     /**
@@ -339,7 +596,8 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         int byteNum = i / 8;//计算在第几个字节
         int posInByte = i % 8;//计算在该字节的第几位,从右往左算（这是因为JVM用big-ending）
-        header[byteNum] = editBitInByte(header[byteNum], posInByte, value);
+        ByteBuffer buf = data;
+        buf.put(byteNum, editBitInByte(buf.get(byteNum), posInByte, value));
     }
 
     /**
@@ -364,13 +622,55 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        List<Tuple> temp = new ArrayList<>();
-        for (int i = 0; i < this.getNumTuples(); i++) {
-            if (isSlotUsed(i))
-                temp.add(tuples[i]);
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(0);
+
+            public boolean hasNext() {
+                return next < numSlots;
+            }
+
+            public Tuple next() {
+                if (next >= numSlots)
+                    throw new NoSuchElementException();
+                Tuple t = tuple(next);
+                next = nextUsedSlot(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** @return the first used slot at or after from, or numSlots if none */
+    private int nextUsedSlot(int from) {
+        long stamp = startRead();
+        int next = nextUsedSlot(data, from);
+        if (validate(stamp))
+            return next;
+        stamp = lockRead();
+        try {
+            return nextUsedSlot(data, from);
+        } finally {
+            unlockRead(stamp);
         }
-        return temp.iterator();
     }
 
-}
+    private int nextUsedSlot(ByteBuffer buf, int from) {
+        int i = from;
+        while (i < numSlots) {
+            byte b = buf.get(i / 8);
+            if (b == 0 && i % 8 == 0) {
+                // skip a whole byte of empty slots
+                i += 8;
+                continue;
+            }
+            if (isOne(b, i % 8))
+                return i;
+            i++;
+        }
+        return numSlots;
+    }
 
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -9,6 +10,10 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Tuples handed to the BufferPool in one insertTuples call. */
+    public static final int BATCH_SIZE = 512;
+
     private final TransactionId tid;
     private OpIterator child;
     private int tableId;
@@ -70,20 +75,26 @@ public class Insert extends Operator {
      *
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
+     * @throws DbException if a batch could not be inserted
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if (processed) return null;
         int count = 0;
+        ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
         while (child.hasNext()) {
-            Tuple t = child.next();
+            batch.clear();
+            while (batch.size() < BATCH_SIZE && child.hasNext())
+                batch.add(child.next());
             try {
-                Database.getBufferPool().insertTuple(tid, tableId, t);
-                count++;
+                Database.getBufferPool().insertTuples(tid, tableId, batch.iterator());
             } catch (IOException e) {
-                e.printStackTrace();
+                // part of the batch may be in the table, so no count would
+                // be right; the transaction has to abort
+                throw new DbException("insert failed: " + e.getMessage());
             }
+            count += batch.size();
         }
         processed = true;
         Tuple tuple = new Tuple(insertTupleDesc);
@@ -0,0 +1,477 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager keeps the page locks of a BufferPool: shared locks for
+ * READ_ONLY access and exclusive locks for READ_WRITE access, which
+ * transactions hold until they complete. A transaction that holds the only
+ * shared lock on a page can upgrade it to an exclusive one, and one that
+ * holds an exclusive lock can read the page too.
+ * <p>
+ * The lock table is split into stripes by page, each with its own monitor,
+ * so transactions locking different pages rarely wait for each other to
+ * look up their locks; a transaction waiting for a lock waits on the
+ * monitor of the page's stripe. Each transaction also keeps the set of
+ * pages it has locked, so releasing all its locks only visits those pages.
+ * <p>
+ * Deadlocks are found with a wait-for graph: an edge runs from each waiting
+ * transaction to each transaction holding a lock that blocks it. Whenever a
+ * transaction starts to wait, or the holders blocking it change, it looks
+ * for a cycle through itself, and if there is one the youngest transaction
+ * on the cycle is aborted with a TransactionAbortedException; the others
+ * keep waiting. Older transactions, having done more work, are never
+ * aborted in favor of younger ones, so every deadlock is broken and the
+ * oldest transaction always makes progress.
+ * <p>
+ * Transactions wait for locks as long as it takes unless a lock timeout is
+ * set: then one that waits longer than the timeout, plus up to as much again
+ * at random so two deadlocked transactions rarely give up together, is
+ * aborted whether or not it is deadlocked. With deadlock detection turned
+ * off, a timeout is what breaks deadlocks.
+ *
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions)
+ */
+public class LockManager {
+    /** the default number of stripes of the lock table */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /** The holders of the locks on one page. */
+    private static class PageLock {
+        TransactionId exclusive;
+        final HashSet<TransactionId> shared = new HashSet<TransactionId>(4);
+        int waiters;
+
+        boolean grantable(TransactionId tid, boolean exclusiveMode) {
+            if (exclusive != null)
+                return exclusive.equals(tid);
+            if (!exclusiveMode)
+                return true;
+            return shared.isEmpty() || (shared.size() == 1 && shared.contains(tid));
+        }
+
+        /** @return true if the holders of the lock changed */
+        boolean grant(TransactionId tid, boolean exclusiveMode) {
+            if (tid.equals(exclusive))
+                return false;
+            if (exclusiveMode) {
+                shared.remove(tid);
+                exclusive = tid;
+                return true;
+            }
+            return shared.add(tid);
+        }
+
+        /** @return the holders that keep tid from being granted the lock */
+        Set<TransactionId> blockers(TransactionId tid, boolean exclusiveMode) {
+            HashSet<TransactionId> blocking = new HashSet<TransactionId>(4);
+            if (exclusive != null) {
+                if (!exclusive.equals(tid))
+                    blocking.add(exclusive);
+            } else if (exclusiveMode) {
+                blocking.addAll(shared);
+                blocking.remove(tid);
+            }
+            return blocking;
+        }
+
+        boolean isFree() {
+            return exclusive == null && shared.isEmpty() && waiters == 0;
+        }
+    }
+
+    /** A slice of the lock table; protected by its own monitor. */
+    private static class Stripe {
+        final HashMap<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+    }
+
+    /** A waiting transaction: a node of the wait-for graph. */
+    private static class Waiter {
+        final Stripe stripe;
+        /** the transactions it waits for; protected by the graph's monitor */
+        Set<TransactionId> blockers;
+        /** set when it is chosen to break a deadlock */
+        volatile boolean doomed;
+
+        Waiter(Stripe stripe) {
+            this.stripe = stripe;
+        }
+    }
+
+    private final Stripe[] stripes;
+    /** the pages each transaction has locked */
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> held =
+        new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    /** the wait-for graph; protected by its own monitor */
+    private final HashMap<TransactionId, Waiter> graph = new HashMap<TransactionId, Waiter>();
+    /** the time each running transaction has spent waiting, in ns */
+    private final ConcurrentHashMap<TransactionId, Long> waited = new ConcurrentHashMap<TransactionId, Long>();
+    /** the lock timeout in ms, or 0 for none */
+    private volatile long timeoutMillis;
+    private volatile boolean detection = true;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong deadlocks = new AtomicLong();
+    private final AtomicLong aborts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong longestWaitNanos = new AtomicLong();
+
+    /** Create a lock manager with the default number of stripes. */
+    public LockManager() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a lock manager.
+     *
+     * @param numStripes the number of stripes of the lock table
+     */
+    public LockManager(int numStripes) {
+        if (numStripes < 1)
+            throw new IllegalArgumentException("invalid number of stripes " + numStripes);
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Set the shortest time a transaction waits for a lock before it is
+     * aborted. There is no timeout unless one is set.
+     *
+     * @param millis the timeout, in ms, or 0 to wait as long as it takes
+     */
+    public void setTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("invalid lock timeout " + millis);
+        this.timeoutMillis = millis;
+    }
+
+    /**
+     * Turn deadlock detection on or off. With it off, deadlocked
+     * transactions wait until the lock timeout, which should then be set,
+     * aborts one of them.
+     */
+    public void setDeadlockDetection(boolean on) {
+        this.detection = on;
+    }
+
+    /**
+     * Lock a page on behalf of a transaction, waiting while other
+     * transactions hold conflicting locks on it.
+     *
+     * @param tid the transaction
+     * @param pid the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *   break a deadlock, waited longer than the lock timeout if one is
+     *   set, or was interrupted while waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Stripe stripe = stripeFor(pid);
+        PageLock lock;
+        Set<TransactionId> blockers;
+        synchronized (stripe) {
+            lock = stripe.locks.get(pid);
+            if (lock == null) {
+                lock = new PageLock();
+                stripe.locks.put(pid, lock);
+            }
+            if (lock.grantable(tid, exclusive)) {
+                grant(stripe, lock, pid, tid, exclusive);
+                acquired.incrementAndGet();
+                return;
+            }
+            lock.waiters++;
+            blockers = lock.blockers(tid, exclusive);
+        }
+        await(stripe, pid, lock, tid, exclusive, blockers);
+        acquired.incrementAndGet();
+    }
+
+    /** Grant a lock; the caller holds the stripe's monitor. */
+    private void grant(Stripe stripe, PageLock lock, PageId pid, TransactionId tid,
+                       boolean exclusive) {
+        // recorded first, so that a lock is never granted untracked
+        pagesOf(tid).add(pid);
+        // a new holder may block the waiters; they must update their edges
+        if (lock.grant(tid, exclusive) && lock.waiters > 0)
+            stripe.notifyAll();
+    }
+
+    /**
+     * Wait on the stripe's monitor until the lock can be granted. The
+     * caller has counted itself among the lock's waiters. Each time the
+     * holders blocking the transaction change, its edges in the wait-for
+     * graph are replaced and checked for a deadlock, outside the stripe's
+     * monitor.
+     */
+    private void await(Stripe stripe, PageId pid, PageLock lock, TransactionId tid,
+                       boolean exclusive, Set<TransactionId> blockers)
+        throws TransactionAbortedException {
+        waits.incrementAndGet();
+        long start = System.nanoTime();
+        long timeout = timeoutMillis;
+        boolean timed = timeout > 0;
+        if (timed)
+            timeout += ThreadLocalRandom.current().nextLong(timeout + 1);
+        long deadline = start + timeout * 1000000L;
+        Waiter self = new Waiter(stripe);
+        Set<TransactionId> pending = blockers;
+        boolean granted = false;
+        try {
+            while (true) {
+                if (pending != null) {
+                    if (detection)
+                        detect(tid, self, pending);
+                    blockers = pending;
+                    pending = null;
+                }
+                synchronized (stripe) {
+                    if (self.doomed) {
+                        aborts.incrementAndGet();
+                        throw new TransactionAbortedException();
+                    }
+                    if (lock.grantable(tid, exclusive)) {
+                        grant(stripe, lock, pid, tid, exclusive);
+                        granted = true;
+                        break;
+                    }
+                    if (timed) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            timeouts.incrementAndGet();
+                            throw new TransactionAbortedException();
+                        }
+                        stripe.wait(left / 1000000L, (int) (left % 1000000L));
+                    } else {
+                        stripe.wait();
+                    }
+                    if (!lock.grantable(tid, exclusive)) {
+                        Set<TransactionId> now = lock.blockers(tid, exclusive);
+                        if (!now.equals(blockers))
+                            pending = now;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        } finally {
+            synchronized (stripe) {
+                lock.waiters--;
+                if (!granted && lock.isFree())
+                    stripe.locks.remove(pid);
+            }
+            synchronized (graph) {
+                graph.remove(tid, self);
+            }
+            long elapsed = System.nanoTime() - start;
+            waitNanos.addAndGet(elapsed);
+            Long before = waited.get(tid);
+            waited.put(tid, before == null ? elapsed : before + elapsed);
+        }
+    }
+
+    /**
+     * Record that a transaction waits for the given ones, and break the
+     * deadlock if that closes a cycle in the wait-for graph: the youngest
+     * transaction on the cycle is aborted. Cycles that do not pass through
+     * tid were already found when their last edge was added.
+     *
+     * @throws TransactionAbortedException if tid itself is the victim
+     */
+    private void detect(TransactionId tid, Waiter self, Set<TransactionId> blockers)
+        throws TransactionAbortedException {
+        Waiter victim;
+        synchronized (graph) {
+            self.blockers = blockers;
+            graph.put(tid, self);
+            ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+            if (!onCycle(tid, tid, cycle, new HashSet<TransactionId>()))
+                return;
+            deadlocks.incrementAndGet();
+            TransactionId youngest = tid;
+            for (TransactionId t : cycle) {
+                if (t.getId() > youngest.getId())
+                    youngest = t;
+            }
+            if (youngest.equals(tid)) {
+                graph.remove(tid);
+                aborts.incrementAndGet();
+                throw new TransactionAbortedException();
+            }
+            // doomed waiters are left out of later searches, so one
+            // deadlock never costs two aborts
+            victim = graph.get(youngest);
+            victim.doomed = true;
+        }
+        synchronized (victim.stripe) {
+            victim.stripe.notifyAll();
+        }
+    }
+
+    /**
+     * Depth-first search of the wait-for graph from tid for a path back to
+     * start; the caller holds the graph's monitor.
+     *
+     * @param path filled with the transactions on the cycle, if one is found
+     * @return true if there is a cycle through start
+     */
+    private boolean onCycle(TransactionId tid, TransactionId start, List<TransactionId> path,
+                            Set<TransactionId> visited) {
+        Waiter w = graph.get(tid);
+        if (w == null || w.doomed)
+            return false;
+        path.add(tid);
+        for (TransactionId next : w.blockers) {
+            if (next.equals(start))
+                return true;
+            if (visited.add(next) && onCycle(next, start, path, visited))
+                return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    private Set<PageId> pagesOf(TransactionId tid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages == null) {
+            pages = ConcurrentHashMap.newKeySet();
+            Set<PageId> raced = held.putIfAbsent(tid, pages);
+            if (raced != null)
+                pages = raced;
+        }
+        return pages;
+    }
+
+    /**
+     * Release the lock a transaction holds on a page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages != null)
+            unlock(tid, pid, pages);
+    }
+
+    private void unlock(TransactionId tid, PageId pid, Set<PageId> pages) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            pages.remove(pid);
+            PageLock lock = stripe.locks.get(pid);
+            if (lock == null)
+                return;
+            if (tid.equals(lock.exclusive))
+                lock.exclusive = null;
+            lock.shared.remove(tid);
+            if (lock.waiters > 0)
+                stripe.notifyAll();
+            else if (lock.isFree())
+                stripe.locks.remove(pid);
+        }
+    }
+
+    /**
+     * Release every lock a transaction holds. Only the stripes of the
+     * pages the transaction locked are visited. The transaction's set of
+     * pages is dropped last, so a release cut short can be repeated.
+     */
+    public void releaseAll(TransactionId tid) {
+        Long w = waited.remove(tid);
+        if (w != null) {
+            long longest;
+            while (w > (longest = longestWaitNanos.get()) && !longestWaitNanos.compareAndSet(longest, w))
+                ;
+        }
+        Set<PageId> pages = held.get(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages)
+            unlock(tid, pid, pages);
+        held.remove(tid, pages);
+    }
+
+    /** @return true if the transaction holds a lock on the page */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    /** @return true if the transaction holds an exclusive lock on the page */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        Stripe stripe = stripeFor(pid);
+        synchronized (stripe) {
+            PageLock lock = stripe.locks.get(pid);
+            return lock != null && tid.equals(lock.exclusive);
+        }
+    }
+
+    /** @return the pages the transaction holds locks on */
+    public Collection<PageId> lockedPages(TransactionId tid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages == null)
+            return Collections.<PageId>emptySet();
+        return Collections.unmodifiableSet(pages);
+    }
+
+    /** @return the number of locks granted so far */
+    public long getAcquireCount() {
+        return acquired.get();
+    }
+
+    /** @return the number of lock requests that had to wait */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /** @return the number of transactions aborted for waiting too long */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /** @return the number of deadlocks found in the wait-for graph */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    /** @return the number of transactions aborted to break deadlocks */
+    public long getAbortCount() {
+        return aborts.get();
+    }
+
+    /**
+     * @return the time the transaction has spent waiting for locks, in ns,
+     *   until it releases them all
+     */
+    public long getWaitNanos(TransactionId tid) {
+        Long w = waited.get(tid);
+        return w == null ? 0 : w;
+    }
+
+    /** @return the time all transactions have spent waiting for locks, in ns */
+    public long getTotalWaitNanos() {
+        return waitNanos.get();
+    }
+
+    /** @return the longest time one completed transaction waited for locks, in ns */
+    public long getLongestWaitNanos() {
+        return longestWaitNanos.get();
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * LogBuffer collects the records LogFile appends in memory, and writes them
+ * to the end of the log's segments in large pieces: when the buffer fills
+ * up and when the log is forced.
+ * <p>
+ * LogBuffer is not thread safe; LogFile only uses it with its monitor held.
+ */
+class LogBuffer extends OutputStream {
+
+    private final byte[] buf;
+    private int count = 0;
+    private LogSegments segments;
+    /** the LSN of buf[0] */
+    private long start;
+    private long writes = 0;
+
+    /** Create a buffer of the specified size, in bytes. */
+    LogBuffer(int size) {
+        buf = new byte[size];
+    }
+
+    /**
+     * Append to the specified segments from the specified LSN on,
+     * dropping anything still buffered.
+     */
+    void reset(LogSegments segments, long lsn) {
+        this.segments = segments;
+        this.start = lsn;
+        this.count = 0;
+    }
+
+    /** @return the LSN the next byte appended goes to */
+    long offset() {
+        return start + count;
+    }
+
+    /** @return the number of writes to the log's segments so far */
+    long getWriteCount() {
+        return writes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buf.length)
+            flush();
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > buf.length - count) {
+            flush();
+            if (len >= buf.length) {
+                write(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /** Write the buffered bytes to the log's segments, without forcing them. */
+    @Override
+    public void flush() throws IOException {
+        if (count == 0)
+            return;
+        write(ByteBuffer.wrap(buf, 0, count));
+        count = 0;
+    }
+
+    private void write(ByteBuffer bb) throws IOException {
+        int n = bb.remaining();
+        segments.write(bb, start);
+        start += n;
+        writes++;
+    }
+}
@@ -3,6 +3,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.lang.reflect.*;
 
 /**
@@ -32,6 +35,11 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+logCommit waits for the log force outside the LogFile monitor, on a
+separate group commit lock; that lock may be taken while holding the
+LogFile monitor, but never the other way around.
 */
 
 /**
@@ -39,20 +47,30 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself is a control file.  Its first long integer
+represents the offset of the last written checkpoint, or -1 if there
+are no checkpoints, and an integer segment size follows it.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files of that size next to
+the control file (see LogSegments).  Offsets are log sequence numbers
+(LSNs): positions in the sequence of all bytes ever written to the log,
+which stay the same when old segments are truncated.  The first record
+is at offset 8, so LSN 0 belongs to no record.  Records are collected in
+a LogBuffer and reach the segments when the log is forced or the buffer
+fills.
+
+<li> Log records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing the
+position in the log where the record began.  The log ends at the first
+record that does not end with its own offset, since segments are reused
+and the bytes past the end are left from earlier records.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+and CHECKPOINT
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +79,29 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> A page image begins with a byte tag naming the page class, then
+a byte count and the integers of the serialized page id, then an
+integer length and the page data.  Page classes are registered with
+a tag and a LogPageFactory (see registerPageType); the image of a page
+whose class is not registered has tag 0, followed by the page and page
+id class names, and is read back through reflection.
+
+<li> DELTA records log an update by the byte ranges it changed instead
+of two page images.  They consist of a page image without its data (the
+tag, class names and page id), an integer page length, an integer count
+of ranges and, for each range, an integer offset, an integer length and
+the bytes of the range before and after the update.  See logWrite for
+when updates get a DELTA record.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table of the BufferPool.  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id and a long integer first record offset for each active
+transaction, then an integer count of dirty pages, as well as an integer
+table id, an integer page number and a long integer recovery offset (the
+offset of the recovery LSN, see BufferPool.dirtyPageTable) for each
+dirty page.
 
 </ul>
 
@@ -74,7 +110,10 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the control file
+    private final LogSegments segments;
+    private final int segmentSize;
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,17 +121,160 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    /** bytes of the control file */
+    static final int CONTROL_SIZE = LONG_SIZE + INT_SIZE;
+
+    long currentOffset = -1;//LSN of the next record; protected by this
+    /** LSN of the end of the log on disk; records start after the header,
+        so a page with LSN 0 has nothing to wait for */
+    private volatile long durableLsn = LONG_SIZE;
+    static final int BUFFER_SIZE = 1 << 20;
+    private final LogBuffer buffer = new LogBuffer(BUFFER_SIZE); // protected by this
+    private final DataOutputStream out = new DataOutputStream(buffer); // protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    // group commit: a committer appends its COMMIT record and waits
+    // until some force covers it; see logCommit
+    private volatile long lastCommit = 0; // protected by this
+    private final Object groupLock = new Object();
+    private long forcedCommit = 0; // protected by groupLock
+    private boolean forcing = false; // protected by groupLock
+    private volatile long groupWindowNanos = 0;
+    private volatile int maxGroupSize = 64;
+    private final LongAdder forces = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+
+    /** bytes of a range in a DELTA record besides its data; ranges closer
+        than this are logged as one */
+    static final int RANGE_HEADER_SIZE = 2 * INT_SIZE;
+    /** the most bytes a record read back can hold */
+    static final int MAX_RECORD_SIZE = 1 << 26;
+    private volatile int deltaLimit = Integer.MAX_VALUE;
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+    /** adjacent pages redone by the same worker, so they are written together */
+    static final int REDO_RUN_PAGES = 8;
+    /** updates the log reader hands a redo worker at a time */
+    static final int REDO_BATCH = 256;
+    /** batches a redo worker may have waiting */
+    static final int REDO_QUEUE = 16;
+    // bytes each live transaction has logged as changed, by page; see logWrite
+    private final HashMap<Long, HashMap<PageId, BitSet>> loggedBytes =
+        new HashMap<Long, HashMap<PageId, BitSet>>(); // protected by this
+
+    /** tag of a page image that names its page and id classes instead */
+    static final int REFLECTIVE_PAGE = 0;
+
+    private static final Map<Class<?>, Integer> pageTags = new ConcurrentHashMap<Class<?>, Integer>();
+    private static final Map<Integer, LogPageFactory> pageFactories = new ConcurrentHashMap<Integer, LogPageFactory>();
+
+    static {
+        registerPageType(1, HeapPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new HeapPageId(id[0], id[1]);
+            }
+            public Page create(int[] id, byte[] data) throws IOException {
+                return new HeapPage(new HeapPageId(id[0], id[1]), data);
+            }
+        });
+        registerPageType(2, SlottedHeapPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new HeapPageId(id[0], id[1]);
+            }
+            public Page create(int[] id, byte[] data) throws IOException {
+                return new SlottedHeapPage(new HeapPageId(id[0], id[1]), data);
+            }
+        });
+        registerPageType(3, BTreeLeafPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new BTreePageId(id[0], id[1], id[2]);
+            }
+            public Page create(int[] id, byte[] data) throws IOException {
+                return new BTreeLeafPage(new BTreePageId(id[0], id[1], id[2]), data, keyField(id[0]));
+            }
+        });
+        registerPageType(4, BTreeInternalPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new BTreePageId(id[0], id[1], id[2]);
+            }
+            public Page create(int[] id, byte[] data) throws IOException {
+                return new BTreeInternalPage(new BTreePageId(id[0], id[1], id[2]), data, keyField(id[0]));
+            }
+        });
+        registerPageType(5, BTreeHeaderPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new BTreePageId(id[0], id[1], id[2]);
+            }
+            public Page create(int[] id, byte[] data) throws IOException {
+                return new BTreeHeaderPage(new BTreePageId(id[0], id[1], id[2]), data);
+            }
+        });
+        registerPageType(6, BTreeRootPtrPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new BTreePageId(id[0], id[1], id[2]);
+            }
+            public Page create(int[] id, byte[] data) throws IOException {
+                return new BTreeRootPtrPage(new BTreePageId(id[0], id[1], id[2]), data);
+            }
+        });
+        registerPageType(7, ColumnPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new ColumnPageId(id[0], id[1], id[2]);
+            }
+            public Page create(int[] id, byte[] data) {
+                return new ColumnPage(new ColumnPageId(id[0], id[1], id[2]), data);
+            }
+        });
+    }
+
+    /** @return the key field of the B+ tree with the specified table id */
+    private static int keyField(int tableId) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(tableId)).keyField();
+    }
+
+    /**
+     * Register a page class, so that its images in the log are written
+     * with a one byte tag instead of class names and read back through the
+     * specified factory instead of reflection. Tags 1 to 7 belong to the
+     * page classes of SimpleDb.
+     *
+     * @param tag the tag of the page class, from 1 to 255
+     * @param pageClass the page class
+     * @param factory creates pages of the class from their images
+     * @throws IllegalArgumentException if the tag is out of range or
+     *   registered to another class
+     */
+    public static synchronized void registerPageType(int tag, Class<? extends Page> pageClass,
+                                                     LogPageFactory factory) {
+        if (tag <= REFLECTIVE_PAGE || tag > 255)
+            throw new IllegalArgumentException("page type tag out of range: " + tag);
+        Integer old = pageTags.get(pageClass);
+        if (pageFactories.containsKey(tag) && (old == null || old != tag))
+            throw new IllegalArgumentException("page type tag " + tag + " is already registered");
+        if (old != null)
+            pageFactories.remove(old);
+        pageFactories.put(tag, factory);
+        pageTags.put(pageClass, tag);
+    }
+
+    /**
+     * Remove the registration of a page class; images of it written from
+     * now on name the class and are read back through reflection. Images
+     * already in the log with the class's tag can no longer be read.
+     */
+    public static synchronized void unregisterPageType(Class<? extends Page> pageClass) {
+        Integer tag = pageTags.remove(pageClass);
+        if (tag != null)
+            pageFactories.remove(tag);
+    }
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,8 +287,31 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Initialize and back the log file with the specified control file,
+        and segments of the specified size when the log is started over.
+        A log that is recovered keeps the segment size it was written with.
+
+        @param f The log file's name
+        @param segmentSize The size of a segment file, in bytes
+    */
+    public LogFile(File f, int segmentSize) throws IOException {
 	this.logFile = f;
+        if (segmentSize < CONTROL_SIZE)
+            throw new IllegalArgumentException("log segments of " + segmentSize + " bytes");
+        this.segmentSize = segmentSize;
         raf = new RandomAccessFile(f, "rw");
+        int existingSize = segmentSize;
+        if (raf.length() >= CONTROL_SIZE) {
+            raf.seek(LONG_SIZE);
+            existingSize = raf.readInt();
+            if (existingSize < CONTROL_SIZE)
+                existingSize = segmentSize;
+        }
+        segments = new LogSegments(f, existingSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,14 +332,21 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            writeControl(NO_CHECKPOINT_ID, segmentSize);
+            segments.reset(segmentSize);
+            currentOffset = LONG_SIZE;
+            buffer.reset(segments, currentOffset);
         }
     }
 
+    /** Write the control file: the checkpoint offset and segment size. */
+    private void writeControl(long checkpoint, int segmentSize) throws IOException {
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(checkpoint);
+        raf.writeInt(segmentSize);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -158,141 +370,528 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = buffer.offset();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                loggedBytes.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        Concurrent commits share forces: the first committer to find no
+        force in progress leads the group, waits up to the group commit
+        window for others to append their COMMIT records, and forces the
+        log once for all of them.  The others wait for that force, or lead
+        the next group if their record came too late for it.
 
         @param tid The committing transaction.
+        @see #setGroupCommit
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commit;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = buffer.offset();
+            tidToFirstLogRecord.remove(tid.getId());
+            loggedBytes.remove(tid.getId());
+            commit = ++lastCommit;
+        }
+        commits.increment();
+        awaitForce(commit);
+    }
+
+    /** Wait until the specified commit is on disk, leading a group
+        force if none is in progress. */
+    private void awaitForce(long commit) throws IOException {
+        synchronized (groupLock) {
+            if (forcing)
+                groupLock.notifyAll(); // the leader may be waiting for the group to fill
+            while (forcedCommit < commit && forcing)
+                waitForGroup(0);
+            if (forcedCommit >= commit)
+                return;
+            forcing = true;
+            try {
+                long deadline = System.nanoTime() + groupWindowNanos;
+                long left;
+                while (lastCommit - forcedCommit < maxGroupSize
+                       && (left = deadline - System.nanoTime()) > 0) {
+                    waitForGroup(left);
+                }
+            } catch (IOException e) {
+                forcing = false;
+                groupLock.notifyAll();
+                throw e;
+            }
+        }
+        try {
+            force();
+        } finally {
+            synchronized (groupLock) {
+                forcing = false;
+                groupLock.notifyAll();
+            }
+        }
+    }
+
+    /** Wait on groupLock for at most the specified time, or until
+        notified if it is 0. */
+    private void waitForGroup(long nanos) throws IOException {
+        try {
+            groupLock.wait(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for log force");
+        }
+    }
+
+    /**
+     * Configure group commit. A committer that leads a group force waits
+     * until maxGroupSize commits are waiting, or at most windowMicros,
+     * before it forces the log; with a window of 0 it forces at once and
+     * groups only the commits that arrived during the previous force.
+     *
+     * @param windowMicros the longest a group leader waits, in microseconds
+     * @param maxGroupSize the number of waiting commits that ends the wait
+     */
+    public void setGroupCommit(long windowMicros, int maxGroupSize) {
+        if (windowMicros < 0 || maxGroupSize < 1)
+            throw new IllegalArgumentException("bad group commit window " + windowMicros + "us, " + maxGroupSize);
+        this.groupWindowNanos = windowMicros * 1000;
+        this.maxGroupSize = maxGroupSize;
+    }
+
+    /**
+     * Make sure the log is on disk up to and including the record with
+     * the specified LSN, forcing it only if it is not already.  The
+     * BufferPool calls this with the LSN of a page before it writes the
+     * page, so that the page's updates are logged first.
+     *
+     * @param lsn the LSN of a record, as returned by logWrite
+     */
+    public void force(long lsn) throws IOException {
+        if (lsn < durableLsn)
+            return;
+        synchronized (this) {
+            if (lsn < durableLsn)
+                return;
+            force();
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /** @return the LSN the next record will get */
+    public synchronized long getNextLsn() {
+        return Math.max(currentOffset, LONG_SIZE);
     }
 
-    /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+    /** @return the LSN of the end of the log on disk; every record
+        with a smaller LSN is on disk */
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    /** @return the number of writes of buffered records to the log file */
+    public synchronized long getLogWriteCount() {
+        return buffer.getWriteCount();
+    }
+
+    /** @return the number of segment files of the log, spares included */
+    public int getSegmentCount() {
+        return segments.getSegmentCount();
+    }
+
+    /** @return the number of segment files created so far */
+    public long getSegmentsCreated() {
+        return segments.getCreatedCount();
+    }
+
+    /** @return the number of truncated segments kept for reuse so far */
+    public long getSegmentsRecycled() {
+        return segments.getRecycledCount();
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getForceCount() {
+        return forces.sum();
+    }
+
+    /** @return the number of COMMIT records written */
+    public long getCommitCount() {
+        return commits.sum();
+    }
+
+    /** Write an UPDATE or DELTA record to disk for the specified tid and
+        page (with provided         before and after images.)
+        <p>
+        The record is a DELTA record when the byte ranges it needs take
+        less room than one page image (and less than the delta limit.)
+        Those ranges cover the bytes this update changed and the bytes
+        earlier records of the transaction logged for the page, since they
+        all share the same before image: replaying the records in log order
+        then leaves each byte as the last record had it, whatever state of
+        the page is on disk.
+
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
+        @return The LSN of the record; the log is on disk up to the
+        record once force(lsn) returns
         @see simpledb.Page#getBeforeImage
+        @see #setDeltaLimit
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        Debug.log("WRITE, offset = " + currentOffset);
+        long lsn = currentOffset;
+        byte[] beforeData = before.getPageData();
+        byte[] afterData = after.getPageData();
+        int[] ranges = changedRanges(tid, after.getId(), beforeData, afterData);
+        if (ranges != null) {
+            /* delta record consists of
+
+               record type
+               transaction id
+               page image header (see writeImageHeader)
+               page length
+               number of ranges
+               offset, length, before bytes and after bytes of each range
+               start offset
+            */
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            writeImageHeader(out, after);
+            out.writeInt(afterData.length);
+            out.writeInt(ranges.length / 2);
+            for (int i = 0; i < ranges.length; i += 2) {
+                int length = ranges[i + 1] - ranges[i];
+                out.writeInt(ranges[i]);
+                out.writeInt(length);
+                out.write(beforeData, ranges[i], length);
+                out.write(afterData, ranges[i], length);
+            }
+        } else {
+            /* update record conists of
+
+               record type
+               transaction id
+               before page data (see writePageData)
+               after page data
+               start offset
+            */
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        out.writeLong(currentOffset);
+        currentOffset = buffer.offset();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /**
+     * Work out the byte ranges a DELTA record for an update has to hold,
+     * and remember the bytes it changed for the transaction's next record
+     * of the page.  Changed bytes closer than a range header are put in
+     * one range.
+     *
+     * @return the start and end offset of each range, or null if the
+     *   update is better logged as full images
+     */
+    private int[] changedRanges(TransactionId tid, PageId pid, byte[] before, byte[] after) {
+        HashMap<PageId, BitSet> pages = loggedBytes.get(tid.getId());
+        if (pages == null) {
+            pages = new HashMap<PageId, BitSet>();
+            loggedBytes.put(tid.getId(), pages);
+        }
+        BitSet changed = pages.get(pid);
+        if (changed == null) {
+            changed = new BitSet(after.length);
+            pages.put(pid, changed);
+        }
+        int n = Math.min(before.length, after.length);
+        for (int i = 0; i < n; i++) {
+            if (before[i] != after[i])
+                changed.set(i);
+        }
+        if (before.length != after.length)
+            return null;
+
+        int limit = Math.min(deltaLimit, after.length);
+        int[] ranges = new int[16];
+        int count = 0;
+        int size = INT_SIZE;
+        int start = changed.nextSetBit(0);
+        while (start >= 0 && size < limit) {
+            int end = changed.nextClearBit(start);
+            int next = changed.nextSetBit(end);
+            while (next >= 0 && next - end < RANGE_HEADER_SIZE) {
+                end = changed.nextClearBit(next);
+                next = changed.nextSetBit(end);
+            }
+            size += RANGE_HEADER_SIZE + 2 * (end - start);
+            if (count == ranges.length)
+                ranges = Arrays.copyOf(ranges, 2 * count);
+            ranges[count++] = start;
+            ranges[count++] = end;
+            start = next;
+        }
+        return size < limit ? Arrays.copyOf(ranges, count) : null;
+    }
+
+    /**
+     * Set the size above which logWrite logs an update as full page
+     * images rather than as a DELTA record of the bytes it changed.
+     * Updates whose delta would not be smaller than a page image are
+     * always logged as full images.
+     *
+     * @param bytes the largest DELTA record body, or 0 to log every update
+     *   as full images
+     */
+    public void setDeltaLimit(int bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("negative delta limit " + bytes);
+        this.deltaLimit = bytes;
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /**
+     * Set the number of worker threads recovery redoes and undoes updates
+     * on.  Each page is redone by one of them, in log order.
+     *
+     * @param threads the number of workers; by default one per core
+     */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("recovery needs at least one thread, not " + threads);
+        this.recoveryThreads = threads;
+    }
+
+    /** Write the image of a page, in the format described above. */
+    void writePageData(DataOutput out, Page p) throws IOException {
+        writeImageHeader(out, p);
+        byte[] pageData = p.getPageData();
+        out.writeInt(pageData.length);
+        out.write(pageData);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Write the tag, class names and id that start the image of a page. */
+    private static void writeImageHeader(DataOutput out, Page p) throws IOException {
+        PageId pid = p.getId();
+        Integer tag = pageTags.get(p.getClass());
+        if (tag == null)
+            new ImageHeader(REFLECTIVE_PAGE, p.getClass().getName(), pid.getClass().getName(), pid.serialize()).write(out);
+        else
+            new ImageHeader(tag, null, null, pid.serialize()).write(out);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Read a page image written by writePageData. */
+    Page readPageData(DataInput in) throws IOException {
+        ImageHeader header = ImageHeader.read(in);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return header.page(pageData);
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+    /** Skip over a page image written by writePageData. */
+    void skipPageData(DataInput in) throws IOException {
+        if (in.readUnsignedByte() == REFLECTIVE_PAGE) {
+            in.readUTF();
+            in.readUTF();
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        in.skipBytes(in.readUnsignedByte() * INT_SIZE);
+        in.skipBytes(in.readInt());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /**
+     * The start of a page image: the tag of the page class, or the class
+     * names of a page whose class is not registered, and the page id.
+     */
+    private static class ImageHeader {
+        final int tag;
+        final String pageClassName;
+        final String idClassName;
+        final int[] id;
+
+        ImageHeader(int tag, String pageClassName, String idClassName, int[] id) {
+            this.tag = tag;
+            this.pageClassName = pageClassName;
+            this.idClassName = idClassName;
+            this.id = id;
+        }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        static ImageHeader read(DataInput in) throws IOException {
+            int tag = in.readUnsignedByte();
+            String pageClassName = null;
+            String idClassName = null;
+            if (tag == REFLECTIVE_PAGE) {
+                pageClassName = in.readUTF();
+                idClassName = in.readUTF();
+            }
+            int id[] = new int[in.readUnsignedByte()];
+            for (int i = 0; i < id.length; i++) {
+                id[i] = in.readInt();
+            }
+            return new ImageHeader(tag, pageClassName, idClassName, id);
+        }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+        void write(DataOutput out) throws IOException {
+            out.writeByte(tag);
+            if (tag == REFLECTIVE_PAGE) {
+                out.writeUTF(pageClassName);
+                out.writeUTF(idClassName);
+            }
+            out.writeByte(id.length);
+            for (int i = 0; i < id.length; i++) {
+                out.writeInt(id[i]);
+            }
+        }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+        private LogPageFactory factory() throws IOException {
+            LogPageFactory factory = pageFactories.get(tag);
+            if (factory == null)
+                throw new IOException("unknown page type " + tag + " in log");
+            return factory;
+        }
+
+        PageId pageId() throws IOException {
+            if (tag != REFLECTIVE_PAGE)
+                return factory().createId(id);
+            try {
+                // page ids take their serialized ints as constructor arguments
+                Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+                Object idArgs[] = new Object[id.length];
+                for (int i = 0; i < id.length; i++) {
+                    idArgs[i] = Integer.valueOf(id[i]);
+                }
+                return (PageId)idConsts[0].newInstance(idArgs);
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("cannot create page id " + idClassName + " from log", e);
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        Page page(byte[] pageData) throws IOException {
+            if (tag != REFLECTIVE_PAGE)
+                return factory().create(id, pageData);
+            try {
+                // pages have other constructors too; use the (id, bytes) one
+                Constructor<?>[] pageConsts = Class.forName(pageClassName).getDeclaredConstructors();
+                Constructor<?> pageConst = pageConsts[0];
+                for (Constructor<?> c : pageConsts) {
+                    Class<?>[] params = c.getParameterTypes();
+                    if (params.length == 2 && params[1] == byte[].class)
+                        pageConst = c;
+                }
+                return (Page)pageConst.newInstance(pageId(), pageData);
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("cannot create page " + pageClassName + " from log", e);
+            }
+        }
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /**
+     * An UPDATE or DELTA record read back from the log: the page it
+     * updated and byte ranges of the page before and after the update.
+     * An UPDATE record has one range, the whole page.
+     */
+    private static class LoggedUpdate {
+        final long tid;
+        final ImageHeader header;
+        private PageId pid;
+        final int pageLength;
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        LoggedUpdate(long tid, ImageHeader header, int pageLength, int[] offsets,
+                     byte[][] before, byte[][] after) {
+            this.tid = tid;
+            this.header = header;
+            this.pageLength = pageLength;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        PageId pageId() throws IOException {
+            if (pid == null)
+                pid = header.pageId();
+            return pid;
+        }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        boolean isFullImage() {
+            return offsets.length == 1 && after[0].length == pageLength;
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** Read the rest of an UPDATE or DELTA record, up to its start offset. */
+    private LoggedUpdate readUpdate(DataInput in, int type, long tid) throws IOException {
+        if (type == UPDATE_RECORD) {
+            ImageHeader header = ImageHeader.read(in);
+            byte[] before = new byte[readCount(in, 1)];
+            in.readFully(before);
+            ImageHeader.read(in);
+            byte[] after = new byte[readCount(in, 1)];
+            in.readFully(after);
+            return new LoggedUpdate(tid, header, after.length, new int[] { 0 },
+                                    new byte[][] { before }, new byte[][] { after });
         }
-        return newPage;
+        ImageHeader header = ImageHeader.read(in);
+        int pageLength = readCount(in, 1);
+        int[] offsets = new int[readCount(in, RANGE_HEADER_SIZE)];
+        byte[][] before = new byte[offsets.length][];
+        byte[][] after = new byte[offsets.length][];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = in.readInt();
+            before[i] = new byte[readCount(in, 2)];
+            in.readFully(before[i]);
+            after[i] = new byte[before[i].length];
+            in.readFully(after[i]);
+        }
+        return new LoggedUpdate(tid, header, pageLength, offsets, before, after);
+    }
+
+    /**
+     * Read the number of items that follow in a record.  Past the end of
+     * the log there may be zeros or old records, so a count that cannot
+     * be right is taken to mean the log ended.
+     *
+     * @param itemSize the fewest bytes each item takes up
+     * @throws EOFException if the count is negative or too large
+     */
+    private static int readCount(DataInput in, int itemSize) throws IOException {
+        int n = in.readInt();
+        if (n < 0 || (long) n * itemSize > MAX_RECORD_SIZE)
+            throw new EOFException("bad count " + n + " in log record");
+        return n;
+    }
 
+    /** Write the body of a DELTA record read by readUpdate. */
+    private void writeDelta(DataOutput out, LoggedUpdate u) throws IOException {
+        u.header.write(out);
+        out.writeInt(u.pageLength);
+        out.writeInt(u.offsets.length);
+        for (int i = 0; i < u.offsets.length; i++) {
+            out.writeInt(u.offsets[i]);
+            out.writeInt(u.before[i].length);
+            out.write(u.before[i]);
+            out.write(u.after[i]);
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +906,122 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = buffer.offset();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        Checkpoints are fuzzy: no page is written, and neither the
+        BufferPool nor any of its shards is locked.  The record holds the
+        active transactions and a snapshot of the dirty page table, and
+        recovery starts from the oldest record either of them needs; the
+        background writer (or page evictions) moves that point forward as
+        pages get written.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            startCpOffset = currentOffset;
+            // pages dirtied after this only have records after the checkpoint
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                out.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                out.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                out.writeInt(e.getKey().getTableId());
+                out.writeInt(e.getKey().getPageNumber());
+                out.writeLong(Math.max(e.getValue(), LONG_SIZE));
             }
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            out.writeLong(currentOffset);
+            currentOffset = buffer.offset();
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /** Bytes of a dirty page table entry in a CHECKPOINT record. */
+    private static final int DIRTY_PAGE_SIZE = 2 * INT_SIZE + LONG_SIZE;
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
+        consumption
+        <p>
+        The log is cut a whole segment at a time: the segments that only
+        hold records before the oldest one recovery needs are deleted, or
+        kept as spares to be written again.  The log is only locked while
+        the checkpoint record is read, so appends do not wait for segment
+        files to be renamed or deleted.
+    */
+    public void logTruncate() throws IOException {
+        long minLogRecord;
+        synchronized (this) {
+            preAppend();
+            buffer.flush();
+            minLogRecord = firstNeededOffset();
+        }
+        segments.truncate(minLogRecord);
+    }
+
+    /** @return the offset of the oldest record recovery needs: the last
+        checkpoint, the first record of a transaction active at it or the
+        recovery offset of a page dirty at it, whichever is oldest */
+    private synchronized long firstNeededOffset() throws IOException {
         raf.seek(0);
         long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return LONG_SIZE;
 
-        long minLogRecord = cpLoc;
+        DataInputStream in = new DataInputStream(new LogInput(segments, cpLoc));
+        int cpType = in.readInt();
+        @SuppressWarnings("unused")
+        long cpTid = in.readLong();
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpType != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        long minLogRecord = cpLoc;
+        int numOutstanding = in.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            @SuppressWarnings("unused")
+            long tid = in.readLong();
+            minLogRecord = Math.min(minLogRecord, in.readLong());
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        // redo from the oldest update that may not be on disk
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            in.skipBytes(2 * INT_SIZE);
+            minLogRecord = Math.min(minLogRecord, in.readLong());
+        }
+        return minLogRecord;
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -466,19 +1037,225 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    throw new NoSuchElementException("no log records for transaction " + tid.getId());
+
+                // the transaction's updates, in log order
+                ArrayList<LoggedUpdate> updates = new ArrayList<LoggedUpdate>();
+                buffer.flush();
+                LogInput li = new LogInput(segments, firstRecord);
+                DataInputStream in = new DataInputStream(li);
+                while (li.offset < currentOffset) {
+                    int type = in.readInt();
+                    long recordTid = in.readLong();
+                    if (type == UPDATE_RECORD || type == DELTA_RECORD) {
+                        LoggedUpdate u = readUpdate(in, type, recordTid);
+                        if (recordTid == tid.getId())
+                            updates.add(u);
+                    } else if (type == CHECKPOINT_RECORD) {
+                        in.skipBytes(in.readInt() * 2 * LONG_SIZE);
+                        in.skipBytes(in.readInt() * DIRTY_PAGE_SIZE);
+                    }
+                    in.readLong();
+                }
+
+                LinkedHashMap<PageId, byte[]> pages = new LinkedHashMap<PageId, byte[]>();
+                HashMap<PageId, ImageHeader> headers = new HashMap<PageId, ImageHeader>();
+                undo(updates, pages, headers);
+                restore(pages, headers);
+            }
+        }
+    }
+
+    /**
+     * Apply an update to the contents of the page it updated, reading the
+     * page from its file the first time unless the update is a full
+     * image.  A page past the end of its file starts out as zeros.
+     *
+     * @param u the update
+     * @param redo whether to install the bytes after the update, or
+     *   the bytes before it
+     * @param pages the contents of the pages updated so far
+     * @param headers the image headers of the pages updated so far
+     */
+    private void apply(LoggedUpdate u, boolean redo, Map<PageId, byte[]> pages,
+                       Map<PageId, ImageHeader> headers) throws IOException {
+        PageId pid = u.pageId();
+        byte[] data = pages.get(pid);
+        if (data == null) {
+            if (u.isFullImage()) {
+                data = new byte[u.pageLength];
+            } else {
+                try {
+                    data = Database.getCatalog().getDatabaseFile(pid.getTableId())
+                        .readPage(pid).getPageData();
+                } catch (IllegalArgumentException e) {
+                    data = new byte[u.pageLength];
+                }
             }
+            pages.put(pid, data);
+            headers.put(pid, u.header);
         }
+        byte[][] ranges = redo ? u.after : u.before;
+        for (int i = 0; i < ranges.length; i++)
+            System.arraycopy(ranges[i], 0, data, u.offsets[i], ranges[i].length);
+    }
+
+    /** Undo a transaction's updates, latest first. */
+    private void undo(List<LoggedUpdate> updates, Map<PageId, byte[]> pages,
+                      Map<PageId, ImageHeader> headers) throws IOException {
+        for (int i = updates.size() - 1; i >= 0; i--)
+            apply(updates.get(i), false, pages, headers);
+    }
+
+    /** Write pages to their files and drop any cached copies of them. */
+    private void restore(Map<PageId, byte[]> pages, Map<PageId, ImageHeader> headers)
+        throws IOException {
+        writeBack(pages, headers);
+        for (PageId pid : pages.keySet())
+            Database.getBufferPool().discardPage(pid);
+    }
+
+    /**
+     * Write pages to their files, sorted by table and page number, so
+     * that runs of adjacent pages go to a file in one write (see
+     * {@link DbFile#writePages}).
+     *
+     * @return the number of writes issued
+     */
+    private static int writeBack(Map<PageId, byte[]> pages, Map<PageId, ImageHeader> headers)
+        throws IOException {
+        ArrayList<PageId> pids = new ArrayList<PageId>(pages.keySet());
+        Collections.sort(pids, new Comparator<PageId>() {
+            public int compare(PageId a, PageId b) {
+                if (a.getTableId() != b.getTableId())
+                    return a.getTableId() < b.getTableId() ? -1 : 1;
+                return Integer.compare(a.getPageNumber(), b.getPageNumber());
+            }
+        });
+        int writes = 0;
+        int from = 0;
+        while (from < pids.size()) {
+            int tableId = pids.get(from).getTableId();
+            ArrayList<Page> run = new ArrayList<Page>();
+            while (from < pids.size() && pids.get(from).getTableId() == tableId) {
+                PageId pid = pids.get(from++);
+                run.add(headers.get(pid).page(pages.get(pid)));
+            }
+            writes += Database.getCatalog().getDatabaseFile(tableId).writePages(run);
+        }
+        return writes;
+    }
+
+    /** An update for a redo worker to install or take back. */
+    private static class RedoStep {
+        final LoggedUpdate update;
+        final boolean redo;
+
+        RedoStep(LoggedUpdate update, boolean redo) {
+            this.update = update;
+            this.redo = redo;
+        }
+    }
+
+    /**
+     * A recovery thread that owns some of the pages being recovered.  The
+     * log reader hands it the updates of its pages in batches, in log
+     * order; it applies them to its copies of the pages, and writes the
+     * pages back when the log is done.
+     */
+    private class RedoWorker extends Thread {
+        private final ArrayBlockingQueue<List<RedoStep>> queue =
+            new ArrayBlockingQueue<List<RedoStep>>(REDO_QUEUE);
+        /** steps not handed over yet; only used by the log reader */
+        private ArrayList<RedoStep> pending = new ArrayList<RedoStep>(REDO_BATCH);
+        final HashMap<PageId, byte[]> pages = new HashMap<PageId, byte[]>();
+        final HashMap<PageId, ImageHeader> headers = new HashMap<PageId, ImageHeader>();
+        volatile Exception failure;
+
+        RedoWorker(int n) {
+            super("simpledb-recovery-" + n);
+            setDaemon(true);
+        }
+
+        void add(LoggedUpdate u, boolean redo) throws IOException {
+            pending.add(new RedoStep(u, redo));
+            if (pending.size() == REDO_BATCH) {
+                handOver(pending);
+                pending = new ArrayList<RedoStep>(REDO_BATCH);
+            }
+        }
+
+        /** Hand over the last steps, and tell the worker the log is done. */
+        void finish() throws IOException {
+            if (!pending.isEmpty())
+                handOver(pending);
+            handOver(new ArrayList<RedoStep>());
+        }
+
+        private void handOver(List<RedoStep> steps) throws IOException {
+            try {
+                queue.put(steps);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted during recovery");
+            }
+        }
+
+        public void run() {
+            boolean done = false;
+            while (!done) {
+                List<RedoStep> steps;
+                try {
+                    steps = queue.take();
+                } catch (InterruptedException e) {
+                    failure = e;
+                    return;
+                }
+                done = steps.isEmpty();
+                // after a failure keep taking batches, so the reader never blocks
+                if (failure == null) {
+                    try {
+                        for (RedoStep step : steps)
+                            apply(step.update, step.redo, pages, headers);
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure == null) {
+                try {
+                    writeBack(pages, headers);
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the worker that redoes the specified page; a run of
+     *   REDO_RUN_PAGES adjacent pages goes to the same one
+     */
+    private static RedoWorker workerFor(RedoWorker[] workers, PageId pid) {
+        int h = pid.getTableId() * 31 + pid.getPageNumber() / REDO_RUN_PAGES;
+        h ^= h >>> 16;
+        return workers[(h & Integer.MAX_VALUE) % workers.length];
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // checkpoints no longer write pages, so leave nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+                segments.closeAll();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +1265,284 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery repeats history: it installs the after image of every
+        update from the oldest record a checkpoint still needs, and
+        restores the before images of a transaction when it meets its
+        ABORT record.  Transactions left without a COMMIT or ABORT record
+        are then rolled back and given an ABORT record, and a record torn
+        by the crash is cut off the end of the log.
+        <p>
+        The log is read on the calling thread, which hands each update to
+        the worker that owns its page (see setRecoveryThreads), so the
+        updates of a page are applied in log order while different pages
+        are redone and undone in parallel.  Workers apply updates to copies
+        of their pages in memory, and write them once at the end.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < CONTROL_SIZE)
+                    writeControl(NO_CHECKPOINT_ID, segments.getSegmentSize());
+                long start = firstNeededOffset();
+
+                // updates of the transactions not finished yet, in log order
+                LinkedHashMap<Long, List<LoggedUpdate>> live = new LinkedHashMap<Long, List<LoggedUpdate>>();
+                RedoWorker[] workers = new RedoWorker[recoveryThreads];
+                for (int i = 0; i < workers.length; i++) {
+                    workers[i] = new RedoWorker(i);
+                    workers[i].start();
+                }
+                boolean handedOver = false;
+                try {
+                    LogInput li = new LogInput(segments, start);
+                    DataInputStream in = new DataInputStream(li);
+                    long end = start;
+                    while (true) {
+                        // read the whole record before acting on it: past the
+                        // end of the log are zeros, a record torn by the crash
+                        // or old records of a reused segment
+                        int type;
+                        long recordTid;
+                        LoggedUpdate u = null;
+                        long[] active = null;
+                        try {
+                            type = in.readInt();
+                            recordTid = in.readLong();
+                            switch (type) {
+                            case BEGIN_RECORD:
+                            case COMMIT_RECORD:
+                            case ABORT_RECORD:
+                                break;
+                            case UPDATE_RECORD:
+                            case DELTA_RECORD:
+                                u = readUpdate(in, type, recordTid);
+                                break;
+                            case CHECKPOINT_RECORD:
+                                active = new long[readCount(in, DIRTY_PAGE_SIZE)];
+                                for (int i = 0; i < active.length; i++) {
+                                    active[i] = in.readLong();
+                                    in.readLong();
+                                }
+                                in.skipBytes(readCount(in, DIRTY_PAGE_SIZE) * DIRTY_PAGE_SIZE);
+                                break;
+                            default:
+                                throw new EOFException("no log record at offset " + end);
+                            }
+                            if (in.readLong() != end)
+                                break;
+                        } catch (EOFException e) {
+                            break;
+                        } catch (UTFDataFormatException e) {
+                            break;
+                        }
+
+                        switch (type) {
+                        case BEGIN_RECORD:
+                            live.put(recordTid, new ArrayList<LoggedUpdate>());
+                            break;
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                            workerFor(workers, u.pageId()).add(u, true);
+                            if (!live.containsKey(recordTid))
+                                live.put(recordTid, new ArrayList<LoggedUpdate>());
+                            live.get(recordTid).add(u);
+                            break;
+                        case COMMIT_RECORD:
+                            live.remove(recordTid);
+                            break;
+                        case ABORT_RECORD:
+                            List<LoggedUpdate> updates = live.remove(recordTid);
+                            if (updates != null)
+                                handOverUndo(workers, updates);
+                            break;
+                        case CHECKPOINT_RECORD:
+                            for (long xid : active) {
+                                if (!live.containsKey(xid))
+                                    live.put(xid, new ArrayList<LoggedUpdate>());
+                            }
+                            break;
+                        }
+                        end = li.offset;
+                    }
+
+                    currentOffset = end;
+                    buffer.reset(segments, end);
+                    tidToFirstLogRecord.clear();
+                    loggedBytes.clear();
+
+                    // roll back the losers, and log that they are finished
+                    ArrayList<Long> losers = new ArrayList<Long>(live.keySet());
+                    for (int i = losers.size() - 1; i >= 0; i--)
+                        handOverUndo(workers, live.get(losers.get(i)));
+                    for (RedoWorker w : workers)
+                        w.finish();
+                    handedOver = true;
+                    for (RedoWorker w : workers) {
+                        w.join();
+                        if (w.failure instanceof IOException)
+                            throw (IOException) w.failure;
+                        if (w.failure != null)
+                            throw new IOException("recovery failed", w.failure);
+                        for (PageId pid : w.pages.keySet())
+                            Database.getBufferPool().discardPage(pid);
+                    }
+                    for (int i = losers.size() - 1; i >= 0; i--) {
+                        long loser = losers.get(i);
+                        out.writeInt(ABORT_RECORD);
+                        out.writeLong(loser);
+                        out.writeLong(currentOffset);
+                        currentOffset = buffer.offset();
+                    }
+                    force();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted during recovery");
+                } finally {
+                    if (!handedOver) {
+                        for (RedoWorker w : workers)
+                            w.interrupt();
+                    }
+                }
             }
          }
     }
 
+    /** Hand a transaction's updates to the redo workers to undo, latest first. */
+    private static void handOverUndo(RedoWorker[] workers, List<LoggedUpdate> updates)
+        throws IOException {
+        for (int i = updates.size() - 1; i >= 0; i--)
+            workerFor(workers, updates.get(i).pageId()).add(updates.get(i), false);
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        synchronized (this) {
+            if (raf.length() < CONTROL_SIZE) {
+                System.out.println("empty log");
+                return;
+            }
+            buffer.flush();
+            long position = raf.getFilePointer();
+            try {
+                raf.seek(0);
+                System.out.println("checkpoint offset: " + raf.readLong());
+                LogInput li = new LogInput(segments, firstNeededOffset());
+                DataInputStream in = new DataInputStream(li);
+                // a log nothing was appended to yet ends at its first bad record
+                long end = currentOffset >= LONG_SIZE ? currentOffset : Long.MAX_VALUE;
+                while (li.offset < end) {
+                    long offset = li.offset;
+                    int type;
+                    try {
+                        type = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    long recordTid = in.readLong();
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(offset).append(": ");
+                    switch (type) {
+                    case ABORT_RECORD:
+                        sb.append("ABORT tid ").append(recordTid);
+                        break;
+                    case COMMIT_RECORD:
+                        sb.append("COMMIT tid ").append(recordTid);
+                        break;
+                    case BEGIN_RECORD:
+                        sb.append("BEGIN tid ").append(recordTid);
+                        break;
+                    case UPDATE_RECORD:
+                        Page before = readPageData(in);
+                        readPageData(in);
+                        sb.append("UPDATE tid ").append(recordTid).append(" ")
+                            .append(before.getClass().getSimpleName()).append(" ").append(before.getId());
+                        break;
+                    case DELTA_RECORD:
+                        LoggedUpdate u = readUpdate(in, type, recordTid);
+                        int bytes = 0;
+                        for (byte[] range : u.after)
+                            bytes += range.length;
+                        sb.append("DELTA tid ").append(recordTid).append(" ").append(u.pageId())
+                            .append(" ").append(u.offsets.length).append(" ranges, ")
+                            .append(bytes).append(" bytes");
+                        break;
+                    case CHECKPOINT_RECORD:
+                        sb.append("CHECKPOINT active");
+                        int numXactions = in.readInt();
+                        while (numXactions-- > 0) {
+                            sb.append(" ").append(in.readLong()).append("@").append(in.readLong());
+                        }
+                        sb.append(" dirty");
+                        int numDirty = in.readInt();
+                        while (numDirty-- > 0) {
+                            sb.append(" ").append(in.readInt()).append(":").append(in.readInt())
+                                .append("@").append(in.readLong());
+                        }
+                        break;
+                    default:
+                        sb.append("unknown record type ").append(type);
+                        System.out.println(sb);
+                        return;
+                    }
+                    in.readLong();
+                    System.out.println(sb);
+                }
+            } finally {
+                raf.seek(position);
+            }
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        long commit = lastCommit;
+        long lsn = currentOffset;
+        buffer.flush();
+        segments.force();
+        if (lsn > durableLsn)
+            durableLsn = lsn;
+        forces.increment();
+        synchronized (groupLock) {
+            if (commit > forcedCommit) {
+                forcedCommit = commit;
+                groupLock.notifyAll();
+            }
+        }
     }
 
+    /**
+     * A buffered input stream over the log from some offset on, which
+     * keeps track of the offset it has read up to.
+     */
+    private static class LogInput extends FilterInputStream {
+        long offset;
+
+        LogInput(LogSegments segments, long offset) {
+            super(new BufferedInputStream(segments.newInputStream(offset), 1 << 16));
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                offset++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                offset += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            offset += skipped;
+            return skipped;
+        }
+    }
 }
@@ -0,0 +1,30 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * LogPageFactory rebuilds a page from the image of it that LogFile wrote in
+ * an update record, and the id of a page from a delta record, without going
+ * through reflection. Each page class that
+ * can appear in the log is registered with a factory and a small numeric
+ * tag; see {@link LogFile#registerPageType}.
+ */
+public interface LogPageFactory {
+    /**
+     * Create the id of a page of the factory's class.
+     *
+     * @param id the page id, as {@link PageId#serialize()} returned it
+     * @return the page id
+     */
+    public PageId createId(int[] id);
+
+    /**
+     * Create the page an image describes.
+     *
+     * @param id the page id, as {@link PageId#serialize()} returned it
+     * @param data the page contents, as {@link Page#getPageData()} returned them
+     * @return the page
+     * @throws IOException if the image does not describe a valid page
+     */
+    public Page create(int[] id, byte[] data) throws IOException;
+}
@@ -0,0 +1,344 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * LogSegments stores the log as a sequence of segment files of a fixed size,
+ * named after the log's control file with the segment number appended
+ * (log.0000000000, log.0000000001, ...). The byte of the log with LSN n is
+ * at offset n % segmentSize of segment n / segmentSize, so records may run
+ * from one segment into the next.
+ * <p>
+ * Truncation drops whole segments: the oldest ones are renamed to become
+ * spare segments past the one being written, up to SPARE_SEGMENTS of them,
+ * and the rest are deleted. The segment after the one being written is
+ * created ahead of time on a background thread, so an append only has to
+ * wait for a file to be created if that thread falls behind. Appends take
+ * the lock on the table of open segments only for lookups; files are
+ * created, renamed and deleted under a separate lock.
+ * <p>
+ * Spare and pre-allocated segments hold old records or zeros past the end
+ * of the log; LogFile tells where the log really ends.
+ */
+class LogSegments {
+    /** the most segments kept for reuse past the one being written */
+    static final int SPARE_SEGMENTS = 2;
+
+    private static ExecutorService allocator;
+
+    private final File control;
+    private int segmentSize;
+    /** open segments by number; protected by this */
+    private final TreeMap<Long, FileChannel> open = new TreeMap<Long, FileChannel>();
+    /** segments written since the last force; protected by this */
+    private final TreeSet<Long> unforced = new TreeSet<Long>();
+    /** the segment appends go to, or -1; protected by this */
+    private long writing = -1;
+
+    /** guards creating, renaming and deleting segment files */
+    private final Object fileLock = new Object();
+    /** the lowest and highest segment numbers with a file; protected by fileLock */
+    private long first = 0;
+    private long last = -1;
+    private long created = 0;
+    private long recycled = 0;
+
+    /**
+     * Open the segments of the log with the specified control file.
+     *
+     * @param control the log's control file
+     * @param segmentSize the size of a segment, in bytes
+     */
+    LogSegments(File control, int segmentSize) {
+        this.control = control;
+        this.segmentSize = segmentSize;
+        synchronized (fileLock) {
+            for (long n : existing()) {
+                if (last < 0)
+                    first = n;
+                last = n;
+            }
+        }
+    }
+
+    /** @return the size of a segment, in bytes */
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the file of the specified segment */
+    File file(long segment) {
+        return new File(control.getPath() + String.format(".%010d", segment));
+    }
+
+    /** @return the numbers of the segment files there are, in order */
+    private TreeSet<Long> existing() {
+        TreeSet<Long> numbers = new TreeSet<Long>();
+        File dir = control.getAbsoluteFile().getParentFile();
+        String prefix = control.getName() + ".";
+        String[] names = dir.list();
+        if (names == null)
+            return numbers;
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.length() == prefix.length() + 10) {
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        return numbers;
+    }
+
+    /** @return the number of segment files, spares included */
+    int getSegmentCount() {
+        synchronized (fileLock) {
+            return last < first ? 0 : (int) (last - first + 1);
+        }
+    }
+
+    /** @return the number of segment files created so far */
+    long getCreatedCount() {
+        synchronized (fileLock) {
+            return created;
+        }
+    }
+
+    /** @return the number of truncated segments kept for reuse so far */
+    long getRecycledCount() {
+        synchronized (fileLock) {
+            return recycled;
+        }
+    }
+
+    /**
+     * Delete every segment, and use segments of the specified size from
+     * now on.
+     */
+    void reset(int segmentSize) throws IOException {
+        closeAll();
+        synchronized (fileLock) {
+            for (long n : existing())
+                file(n).delete();
+            first = 0;
+            last = -1;
+            this.segmentSize = segmentSize;
+        }
+        synchronized (this) {
+            writing = -1;
+        }
+    }
+
+    /** Close the open segments; they are opened again when needed. */
+    void closeAll() throws IOException {
+        ArrayList<FileChannel> channels;
+        synchronized (this) {
+            channels = new ArrayList<FileChannel>(open.values());
+            open.clear();
+            unforced.clear();
+        }
+        for (FileChannel c : channels)
+            c.close();
+    }
+
+    /**
+     * Write bytes to the log, from the specified LSN on, creating the
+     * segments they go to if they do not exist yet.
+     */
+    void write(ByteBuffer bb, long lsn) throws IOException {
+        while (bb.hasRemaining()) {
+            long segment = lsn / segmentSize;
+            int within = (int) (lsn % segmentSize);
+            int n = Math.min(bb.remaining(), segmentSize - within);
+            ByteBuffer part = bb.duplicate();
+            part.limit(part.position() + n);
+            FileChannel c = channelForWrite(segment);
+            while (part.hasRemaining())
+                within += c.write(part, within);
+            bb.position(bb.position() + n);
+            lsn += n;
+        }
+    }
+
+    /** Force the segments written since the last force to disk. */
+    void force() throws IOException {
+        ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        synchronized (this) {
+            for (long n : unforced) {
+                FileChannel c = open.get(n);
+                if (c != null)
+                    channels.add(c);
+            }
+            unforced.clear();
+        }
+        for (FileChannel c : channels)
+            c.force(true);
+    }
+
+    private FileChannel channelForWrite(long segment) throws IOException {
+        FileChannel c;
+        synchronized (this) {
+            c = open.get(segment);
+        }
+        if (c == null) {
+            ensure(segment);
+            c = channel(segment);
+            if (c == null)
+                throw new IOException("log segment " + segment + " was truncated");
+        }
+        boolean next;
+        synchronized (this) {
+            unforced.add(segment);
+            next = segment > writing;
+            if (next)
+                writing = segment;
+        }
+        if (next)
+            allocateAhead(segment + 1);
+        return c;
+    }
+
+    /** @return the channel of a segment, or null if it has no file */
+    private FileChannel channel(long segment) throws IOException {
+        synchronized (this) {
+            FileChannel c = open.get(segment);
+            if (c != null)
+                return c;
+        }
+        FileChannel c;
+        try {
+            c = FileChannel.open(file(segment).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        synchronized (this) {
+            FileChannel old = open.get(segment);
+            if (old != null) {
+                c.close();
+                return old;
+            }
+            open.put(segment, c);
+            return c;
+        }
+    }
+
+    /** Make sure the specified segment and all before it have files. */
+    private void ensure(long segment) throws IOException {
+        synchronized (fileLock) {
+            while (last < segment) {
+                RandomAccessFile raf = new RandomAccessFile(file(++last), "rw");
+                try {
+                    raf.setLength(segmentSize);
+                } finally {
+                    raf.close();
+                }
+                created++;
+            }
+        }
+    }
+
+    /** Create the specified segment on the background thread. */
+    private void allocateAhead(final long segment) {
+        allocator().execute(new Runnable() {
+            public void run() {
+                try {
+                    ensure(segment);
+                } catch (IOException e) {
+                    // the writer creates the segment itself when it gets there
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private static synchronized ExecutorService allocator() {
+        if (allocator == null) {
+            allocator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-log-allocator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return allocator;
+    }
+
+    /**
+     * Drop the segments that only hold bytes before the specified LSN,
+     * keeping up to SPARE_SEGMENTS of them for reuse past the segment being
+     * written and deleting the rest.
+     */
+    void truncate(long lsn) throws IOException {
+        long below = lsn / segmentSize;
+        ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        long writer;
+        synchronized (this) {
+            Map<Long, FileChannel> old = open.headMap(below);
+            channels.addAll(old.values());
+            unforced.removeAll(old.keySet());
+            old.clear();
+            writer = writing;
+        }
+        for (FileChannel c : channels)
+            c.close();
+
+        synchronized (fileLock) {
+            while (first < below && first <= last) {
+                File f = file(first++);
+                if (last - writer < SPARE_SEGMENTS && f.renameTo(file(last + 1))) {
+                    last++;
+                    recycled++;
+                } else {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a stream of the log from the specified LSN on, which ends
+     *   at the first segment that has no file
+     */
+    InputStream newInputStream(final long lsn) {
+        return new InputStream() {
+            long position = lsn;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                FileChannel c = channel(position / segmentSize);
+                if (c == null)
+                    return -1;
+                int within = (int) (position % segmentSize);
+                int n = c.read(ByteBuffer.wrap(b, off, Math.min(len, segmentSize - within)), within);
+                if (n <= 0)
+                    return -1;
+                position += n;
+                return n;
+            }
+        };
+    }
+}
@@ -271,6 +271,49 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return for each field of the table scanned under the alias of the
+     *   specified scan, true if the query uses it in its select list,
+     *   aggregate, GROUP BY, ORDER BY, filters or joins; or null if the
+     *   query selects all fields
+     */
+    private boolean[] referencedColumns(LogicalScanNode table) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        if (aggField != null)
+            names.add(aggField);
+        if (groupByField != null)
+            names.add(groupByField);
+        if (oByField != null)
+            names.add(oByField);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.tableAlias + "." + lf.fieldPureName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+
+        boolean[] columns = new boolean[td.numFields()];
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length != 2)
+                continue;
+            if (parts[1].equals("*") && (parts[0].equals("null") || parts[0].equals(table.alias)))
+                return null;
+            if (!parts[0].equals(table.alias))
+                continue;
+            try {
+                columns[td.fieldNameToIndex(parts[1])] = true;
+            } catch (NoSuchElementException e) {
+                // reported when the plan looks the field up
+            }
+        }
+        return columns;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -294,7 +337,8 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias,
+                         referencedColumns(table));
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil et al.). Each resident page remembers the logical
+ * times of its last K references; the victim is the evictable page whose
+ * K-th most recent reference lies furthest in the past. Pages referenced
+ * fewer than K times have an infinite backward K-distance and go first,
+ * oldest last reference first, which keeps one-off scan pages from pushing
+ * out pages that are used repeatedly.
+ * <p>
+ * Evictable pages are kept ordered by that distance, so the victim is always
+ * the first one; an access re-positions a single page.
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock;
+    private final Map<PageId, History> histories;
+    private final TreeSet<History> evictable;
+
+    /**
+     * @param k the number of references remembered per page, at least 1
+     */
+    public LruKEvictionPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("LRU-K needs k >= 1");
+        this.k = k;
+        this.histories = new HashMap<>();
+        this.evictable = new TreeSet<>();
+    }
+
+    public void pageAdded(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null) {
+            h = new History(pid);
+            histories.put(pid, h);
+        } else {
+            evictable.remove(h);
+        }
+        h.reference(++clock);
+        h.evictable = true;
+        evictable.add(h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null)
+            return;
+        if (h.evictable)
+            evictable.remove(h);
+        h.reference(++clock);
+        if (h.evictable)
+            evictable.add(h);
+    }
+
+    public void pageRemoved(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null && h.evictable)
+            evictable.remove(h);
+    }
+
+    public void setEvictable(PageId pid, boolean canEvict) {
+        History h = histories.get(pid);
+        if (h == null || h.evictable == canEvict)
+            return;
+        h.evictable = canEvict;
+        if (canEvict)
+            evictable.add(h);
+        else
+            evictable.remove(h);
+    }
+
+    public PageId chooseVictim() {
+        return evictable.isEmpty() ? null : evictable.first().pid;
+    }
+
+    /** Reference history of one resident page. */
+    private class History implements Comparable<History> {
+        final PageId pid;
+        /** the last k reference times, used as a ring */
+        final long[] times;
+        int references;
+        boolean evictable;
+
+        History(PageId pid) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void reference(long now) {
+            times[references % k] = now;
+            references++;
+        }
+
+        boolean hasFullHistory() {
+            return references >= k;
+        }
+
+        /** the K-th most recent reference, or the last one if there are fewer */
+        long distanceKey() {
+            if (hasFullHistory())
+                return times[(references - k) % k];
+            return times[(references - 1) % k];
+        }
+
+        public int compareTo(History o) {
+            if (hasFullHistory() != o.hasFullHistory())
+                return hasFullHistory() ? 1 : -1;
+            // logical times are unique per reference, so keys never tie
+            return Long.compare(distanceKey(), o.distanceKey());
+        }
+    }
+}
@@ -56,4 +56,19 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Return the log sequence number of the last logged update of this
+     * page, or 0 if none was logged while the page was in memory.  The
+     * BufferPool makes sure the log is on disk up to this LSN before it
+     * writes the page.
+     *
+     * @see LogFile#force(long)
+     */
+    public long getLSN();
+
+    /**
+     * Record the log sequence number of an update record of this page.
+     */
+    public void setLSN(long lsn);
 }
@@ -0,0 +1,81 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * PageArena is a fixed block of off-heap memory carved into page-sized
+ * frames. A BufferPool built in off-heap mode gives every resident HeapPage
+ * one of these frames to hold its bytes, so the contents of the pool live
+ * outside the Java heap and the garbage collector only sees the small page
+ * objects.
+ * <p>
+ * The memory is allocated once, when the arena is created, and frames are
+ * recycled through a free list; nothing is allocated or freed while pages
+ * move in and out of the pool.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy.Kind, int, boolean)
+ * @see HeapPage
+ */
+public class PageArena {
+
+    private final ByteBuffer memory;
+    private final int frameSize;
+    private final int numFrames;
+    private final ArrayDeque<ByteBuffer> free;
+
+    /**
+     * Create an arena.
+     *
+     * @param numFrames the number of frames to allocate
+     * @param frameSize the size of each frame in bytes
+     */
+    public PageArena(int numFrames, int frameSize) {
+        if (numFrames < 1 || frameSize < 1)
+            throw new IllegalArgumentException("invalid arena " + numFrames + " x " + frameSize);
+        this.memory = ByteBuffer.allocateDirect(numFrames * frameSize);
+        this.frameSize = frameSize;
+        this.numFrames = numFrames;
+        this.free = new ArrayDeque<ByteBuffer>(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            ByteBuffer b = memory.duplicate();
+            b.position(i * frameSize);
+            b.limit((i + 1) * frameSize);
+            free.push(b.slice());
+        }
+    }
+
+    /** @return the size of each frame in bytes */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the total number of frames in this arena */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** @return the number of frames not handed out */
+    public synchronized int getFreeFrames() {
+        return free.size();
+    }
+
+    /**
+     * Take a frame off the free list.
+     *
+     * @return a frame of {@link #getFrameSize()} bytes, or null if every frame
+     *   is in use
+     */
+    synchronized ByteBuffer allocate() {
+        return free.poll();
+    }
+
+    /**
+     * Return a frame obtained from {@link #allocate()}. The caller must not
+     * touch the frame afterwards; a page hands its frame back through
+     * {@link HeapPage#detach()}, which makes sure no reader is still on it.
+     */
+    synchronized void release(ByteBuffer frame) {
+        free.push(frame);
+    }
+}
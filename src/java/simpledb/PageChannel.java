@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * PageChannel keeps one FileChannel open on the backing file of a DbFile and
+ * does all page I/O for that file with positional reads and writes, so a
+ * page access costs a single system call instead of an open, a seek and a
+ * close.
+ * <p>
+ * The channel is opened on first use and reopened if it was closed, either
+ * by {@link #close()} or because a thread was interrupted during I/O.
+ * Positional reads and writes do not share a file position, so any number
+ * of threads can use a PageChannel at once.
+ * <p>
+ * Read-mostly files can also be read through a memory mapping with
+ * {@link #map}. The file is mapped in segments of about a gigabyte, so files
+ * larger than a single MappedByteBuffer can address are supported, and a
+ * segment is mapped again when the file has grown past its end.
+ *
+ * @see HeapFile
+ * @see BTreeFile
+ */
+public class PageChannel {
+
+    /** Upper bound on the size of one mapped segment */
+    static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    private final File f;
+    private FileChannel channel;
+
+    /** read-only mappings of consecutive segments, null where not mapped yet */
+    private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    /** size of every segment; a multiple of the block size given to map() */
+    private long segmentBytes;
+
+    /**
+     * Create a PageChannel for the specified file. Nothing is opened until
+     * the first read or write.
+     */
+    public PageChannel(File f) {
+        this.f = f;
+    }
+
+    /** @return the open channel, opening the file if necessary */
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(f, "rw");
+            } catch (FileNotFoundException e) {
+                // read-only files can still be scanned
+                if (!f.canRead())
+                    throw e;
+                raf = new RandomAccessFile(f, "r");
+            }
+            channel = raf.getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Read bytes of the file starting at position into dst until dst is
+     * full or the file ends.
+     *
+     * @return the number of bytes read, less than requested only at the end
+     *   of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        FileChannel ch = channel();
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = ch.read(dst, position + total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Return a read-only view of the specified bytes of the file, backed by
+     * a memory mapping of the file, without copying them. The view shows
+     * later writes to the file.
+     *
+     * @param position where the bytes start
+     * @param length the number of bytes; positions are expected to be
+     *   multiples of length, and length must be the same on every call
+     * @throws EOFException if the file ends before position + length
+     */
+    public synchronized ByteBuffer map(long position, int length) throws IOException {
+        if (segmentBytes == 0)
+            segmentBytes = (long) Math.max(1, MAX_SEGMENT_BYTES / length) * length;
+        int index = (int) (position / segmentBytes);
+        long segmentStart = index * segmentBytes;
+        int offset = (int) (position - segmentStart);
+
+        while (segments.size() <= index)
+            segments.add(null);
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null || segment.capacity() < offset + length) {
+            // not mapped yet, or the file grew since it was mapped
+            long size = size();
+            if (position + length > size)
+                throw new EOFException("read past end of " + f.getName() + " at " + position);
+            long mapBytes = Math.min(segmentBytes, size - segmentStart);
+            segment = channel().map(FileChannel.MapMode.READ_ONLY, segmentStart, mapBytes);
+            segments.set(index, segment);
+        }
+        ByteBuffer view = segment.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Write all remaining bytes of src to the file starting at position,
+     * growing the file if necessary.
+     */
+    public void write(ByteBuffer src, long position) throws IOException {
+        FileChannel ch = channel();
+        long pos = position;
+        while (src.hasRemaining())
+            pos += ch.write(src, pos);
+    }
+
+    /**
+     * Write all remaining bytes of the specified buffers, one after the
+     * other, to the file starting at position with a single gathering write
+     * where the operating system allows.
+     */
+    public void write(ByteBuffer[] srcs, long position) throws IOException {
+        FileChannel ch = channel();
+        long remaining = 0;
+        for (ByteBuffer src : srcs)
+            remaining += src.remaining();
+        // gathering writes use the channel position, which positional reads
+        // and writes ignore; only other gathering writes need excluding
+        synchronized (this) {
+            ch.position(position);
+            while (remaining > 0)
+                remaining -= ch.write(srcs);
+        }
+    }
+
+    /**
+     * Write all remaining bytes of src at the current end of the file.
+     * Appends by different threads must be serialized by the caller.
+     *
+     * @return the position the bytes were written at
+     */
+    public long append(ByteBuffer src) throws IOException {
+        long pos = size();
+        write(src, pos);
+        return pos;
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /** Force all writes so far to the storage device. */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /**
+     * Close the channel and drop all mappings. A later read or write opens
+     * it again. Views returned by {@link #map} stay readable.
+     */
+    public synchronized void close() {
+        segments.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing was buffered, so there is nothing to lose
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+
+/**
+ * ReadAhead watches the pages one scan requests and, once the scan reads
+ * pages in order, asks the BufferPool to read the next pages in the
+ * background so that the scan rarely waits for the disk.
+ * <p>
+ * The read-ahead window starts at {@link #MIN_WINDOW} pages. Whenever the
+ * scan catches up with a read that has not finished yet, it is consuming
+ * pages faster than they arrive, so the window doubles (up to
+ * {@link #MAX_WINDOW}). A jump to a page out of order resets the window and
+ * stops reading ahead until the scan is sequential again.
+ * <p>
+ * One ReadAhead serves a single scan and is not thread safe.
+ *
+ * @see BufferPool#prefetch(PageId)
+ */
+public class ReadAhead {
+
+    /** Pages read ahead when a sequential run is first detected. */
+    public static final int MIN_WINDOW = 2;
+    /** Upper bound for the read-ahead window. */
+    public static final int MAX_WINDOW = 32;
+
+    private final BufferPool pool;
+    private int window = MIN_WINDOW;
+    private int lastPage = -2;
+    /** pages this scan asked the pool to read ahead and has not requested yet */
+    private final ArrayDeque<HeapPageId> issued = new ArrayDeque<HeapPageId>();
+    /** highest page number read ahead in the current run */
+    private int issuedUpTo = -1;
+
+    /**
+     * Create a ReadAhead that stages pages in the specified pool.
+     */
+    public ReadAhead(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /** @return the current read-ahead window, in pages */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Report that the scan is about to request the specified page, and read
+     * ahead if the scan is sequential. Call this before fetching the page.
+     *
+     * @param pid the page about to be requested
+     * @param numPages the number of pages in the file
+     */
+    public void pageRequested(HeapPageId pid, int numPages) {
+        int pageNo = pid.getPageNumber();
+        if (!issued.isEmpty() && issued.peekFirst().equals(pid)) {
+            issued.pollFirst();
+        }
+        if (pageNo != lastPage + 1) {
+            // not sequential: drop what we read ahead for the old run
+            cancel();
+            window = MIN_WINDOW;
+            issuedUpTo = pageNo;
+            lastPage = pageNo;
+            return;
+        }
+        lastPage = pageNo;
+        if (pool.prefetchPending(pid))
+            window = Math.min(window * 2, MAX_WINDOW);
+
+        int last = Math.min(pageNo + window, numPages - 1);
+        for (int p = Math.max(issuedUpTo + 1, pageNo + 1); p <= last; p++) {
+            HeapPageId next = new HeapPageId(pid.getTableId(), p);
+            if (pool.prefetch(next))
+                issued.addLast(next);
+            else if (!pool.isResident(next) && !pool.isStaged(next))
+                break; // too many pages staged; try again on the next page
+            issuedUpTo = p;
+        }
+    }
+
+    /**
+     * Drop the pages read ahead that the scan has not requested. Call this
+     * when the scan ends.
+     */
+    public void cancel() {
+        for (HeapPageId pid : issued)
+            pool.cancelPrefetch(pid);
+        issued.clear();
+    }
+}
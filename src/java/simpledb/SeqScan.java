@@ -16,6 +16,10 @@ public class SeqScan implements OpIterator {
     private String tableAlias;
     private DbFileIterator iterator;
     private TupleDesc td;
+    /** the columns this scan reads, or null for all of them */
+    private boolean[] columns;
+    /** predicates the operators above apply, for skipping pages */
+    private ArrayList<Predicate> pagePredicates = new ArrayList<Predicate>();
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -34,7 +38,23 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates a sequential scan that only reads the specified columns of the
+     * table. The TupleDesc is still that of the whole table, but the other
+     * fields of the returned tuples may be unset, so the operators above
+     * must not look at them. A table stored in a {@link ColumnFile} then
+     * reads only the pages of those columns; other files read whole rows.
+     *
+     * @param columns
+     *            for each field of the table, true if it is read; null to
+     *            read all of them
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, boolean[] columns) {
         this.tid = tid;
+        this.columns = columns;
         reset(tableid, tableAlias);
     }
 
@@ -69,10 +89,31 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableAlias = tableAlias;
         this.tableId = tableid;
-        this.iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        this.pagePredicates.clear();
+        this.iterator = newIterator();
         updateTupleDesc();
     }
 
+    private DbFileIterator newIterator() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (pagePredicates.isEmpty())
+            return file.iterator(tid, columns);
+        return file.iterator(tid, columns, pagePredicates.toArray(new Predicate[0]));
+    }
+
+    /**
+     * Tell this scan that a Filter above it drops the tuples that don't
+     * satisfy the specified predicate, so the scan may skip pages on which
+     * no tuple does (see {@link DbFile#iterator(TransactionId, boolean[], Predicate[])}).
+     * Must be called before the scan is opened.
+     */
+    public void addPagePredicate(Predicate p) {
+        if (pagePredicates.contains(p))
+            return;
+        pagePredicates.add(p);
+        iterator = newIterator();
+    }
+
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
@@ -43,8 +43,9 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            HeapFileBulkLoader loader = new HeapFileBulkLoader(new TupleDesc(ts), fieldSeparator,
+                        Runtime.getRuntime().availableProcessors(), HeapFileBulkLoader.DEFAULT_CHUNK_BYTES);
+            loader.convert(sourceTxtFile,targetDatFile);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -0,0 +1,436 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A heap page that stores each tuple as a variable-length record at its
+ * real size, found through a slot directory, instead of in a fixed-length
+ * slot. Strings take their actual length plus two bytes rather than
+ * {@link Type#STRING_LEN} plus four, so tables with short strings fit many
+ * more tuples on a page.
+ * <p>
+ * The page starts with a four byte header: the number of entries in the
+ * slot directory and the offset of the lowest record, both unsigned shorts.
+ * The directory follows, one entry of a record offset and a record length
+ * (unsigned shorts again) per slot; an offset of zero marks an empty slot.
+ * Records are packed at the end of the page and grow down towards the
+ * directory. Within a record an int takes four bytes and a string a two
+ * byte length followed by its characters. A zero-filled page is a valid
+ * empty page, and a lowest record offset of zero stands for the end of the
+ * page. Because records are addressed through the directory, a record can
+ * move when the page is compacted without changing its RecordId.
+ * <p>
+ * Like HeapPage, the page works on its bytes in place and decodes fields
+ * lazily; everything about the page buffer, before images and arena frames
+ * is inherited, and reads and changes of the buffer use the frame lock of
+ * HeapPage the same way it does.
+ *
+ * @see HeapFile#HeapFile(java.io.File, TupleDesc, boolean, boolean)
+ */
+public class SlottedHeapPage extends HeapPage {
+
+    /** bytes before the slot directory */
+    static final int HEADER_SIZE = 4;
+    /** bytes of one slot directory entry */
+    static final int SLOT_SIZE = 4;
+
+    /** bytes of the smallest record of this table, with all strings empty */
+    private final int minRecordSize;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk,
+     * in the format described above.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Create a SlottedHeapPage that takes ownership of the specified buffer.
+     * A read-only buffer is copied the first time the page is changed.
+     */
+    SlottedHeapPage(HeapPageId id, ByteBuffer data) {
+        super(id, data);
+        if (BufferPool.getPageSize() > 0xFFFF)
+            throw new IllegalArgumentException("slotted pages are at most 64KB");
+        this.minRecordSize = minRecordSize(td);
+    }
+
+    /** @return the size of a record of the specified schema with empty strings */
+    static int minRecordSize(TupleDesc td) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++)
+            size += td.getFieldType(i) == Type.STRING_TYPE ? 2 : td.getFieldType(i).getLen();
+        return size;
+    }
+
+    /**
+     * @return true if the specified page header, read from disk, leaves room
+     *   for the smallest record of the table between the directory and the
+     *   records. Holes left by deletes are not counted.
+     */
+    static boolean hasRoom(ByteBuffer header, TupleDesc td) {
+        int slots = header.getShort(0) & 0xFFFF;
+        int start = header.getShort(2) & 0xFFFF;
+        if (start == 0)
+            start = BufferPool.getPageSize();
+        return start - HEADER_SIZE - (slots + 1) * SLOT_SIZE >= minRecordSize(td);
+    }
+
+    @Override
+    HeapPage withData(ByteBuffer data) {
+        return new SlottedHeapPage(pid, data);
+    }
+
+    @Override
+    int slotCapacity() {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (SLOT_SIZE + minRecordSize);
+    }
+
+    /** @return the number of entries in the slot directory */
+    private int slotCount(ByteBuffer buf) {
+        return buf.getShort(0) & 0xFFFF;
+    }
+
+    /** @return the offset of the lowest record */
+    private int recordStart(ByteBuffer buf) {
+        int start = buf.getShort(2) & 0xFFFF;
+        return start == 0 ? BufferPool.getPageSize() : start;
+    }
+
+    private void setHeader(ByteBuffer buf, int slots, int start) {
+        buf.putShort(0, (short) slots);
+        buf.putShort(2, (short) (start == BufferPool.getPageSize() ? 0 : start));
+    }
+
+    private int recordOffset(ByteBuffer buf, int slotId) {
+        return buf.getShort(HEADER_SIZE + slotId * SLOT_SIZE) & 0xFFFF;
+    }
+
+    private int recordLength(ByteBuffer buf, int slotId) {
+        return buf.getShort(HEADER_SIZE + slotId * SLOT_SIZE + 2) & 0xFFFF;
+    }
+
+    private void setSlot(ByteBuffer buf, int slotId, int offset, int length) {
+        buf.putShort(HEADER_SIZE + slotId * SLOT_SIZE, (short) offset);
+        buf.putShort(HEADER_SIZE + slotId * SLOT_SIZE + 2, (short) length);
+    }
+
+    /** @return the bytes not taken by the header, the directory or records */
+    private int freeBytes(ByteBuffer buf) {
+        int slots = slotCount(buf);
+        int used = HEADER_SIZE + slots * SLOT_SIZE;
+        for (int i = 0; i < slots; i++)
+            used += recordLength(buf, i);
+        return BufferPool.getPageSize() - used;
+    }
+
+    /** @return the first empty directory entry, or slotCount if there is none */
+    private int firstEmptySlot(ByteBuffer buf) {
+        int slots = slotCount(buf);
+        for (int i = 0; i < slots; i++) {
+            if (recordOffset(buf, i) == 0)
+                return i;
+        }
+        return slots;
+    }
+
+    /** @return the number of bytes the specified tuple takes as a record */
+    private int recordSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                size += 2 + ((StringField) t.getField(i)).getValue().length();
+            else
+                size += td.getFieldType(i).getLen();
+        }
+        return size;
+    }
+
+    /** @return a copy of the record in the specified slot */
+    private byte[] record(ByteBuffer buf, int slotId) {
+        return copy(buf, recordOffset(buf, slotId), recordLength(buf, slotId));
+    }
+
+    @Override
+    Field readField(int slotId, int field) {
+        // the record is copied out and checked before it is parsed, as a
+        // directory read from a recycled frame could point anywhere
+        byte[] record = null;
+        long stamp = startRead();
+        try {
+            record = record(buffer(), slotId);
+            if (!validate(stamp))
+                record = null;
+        } catch (RuntimeException e) {
+            // the page left its frame meanwhile; read it again below
+        }
+        if (record == null) {
+            stamp = lockRead();
+            try {
+                record = record(buffer(), slotId);
+            } finally {
+                unlockRead(stamp);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        int offset = 0;
+        for (int i = 0; i < field; i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                offset += 2 + (buf.getShort(offset) & 0xFFFF);
+            else
+                offset += td.getFieldType(i).getLen();
+        }
+        if (td.getFieldType(field) != Type.STRING_TYPE)
+            return td.getFieldType(field).parse(buf, offset);
+        int strLen = buf.getShort(offset) & 0xFFFF;
+        byte bs[] = new byte[strLen];
+        for (int i = 0; i < strLen; i++)
+            bs[i] = buf.get(offset + 2 + i);
+        return new StringField(new String(bs), Type.STRING_LEN);
+    }
+
+    /**
+     * Returns the number of tuples of the smallest possible size that still
+     * fit on this page. A tuple with longer strings may not fit even if this
+     * is not zero; see {@link #hasRoomFor}.
+     */
+    @Override
+    public int getNumEmptySlots() {
+        int free;
+        int reusable = 0;
+        long stamp = lockRead();
+        try {
+            ByteBuffer buf = buffer();
+            free = freeBytes(buf);
+            for (int i = 0; i < slotCount(buf); i++) {
+                if (recordOffset(buf, i) == 0)
+                    reusable++;
+            }
+        } finally {
+            unlockRead(stamp);
+        }
+        if ((long) reusable * minRecordSize >= free)
+            return free / minRecordSize;
+        return reusable + (free - reusable * minRecordSize) / (minRecordSize + SLOT_SIZE);
+    }
+
+    @Override
+    public boolean hasRoomFor(Tuple t) {
+        int need = recordSize(t);
+        long stamp = lockRead();
+        try {
+            ByteBuffer buf = buffer();
+            if (firstEmptySlot(buf) == slotCount(buf))
+                need += SLOT_SIZE;
+            return need <= freeBytes(buf);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean isSlotUsed(int i) {
+        long stamp = startRead();
+        try {
+            boolean used = isSlotUsed(buffer(), i);
+            if (validate(stamp))
+                return used;
+        } catch (RuntimeException e) {
+            // the page left its frame meanwhile; read it again below
+        }
+        stamp = lockRead();
+        try {
+            return isSlotUsed(buffer(), i);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private boolean isSlotUsed(ByteBuffer buf, int i) {
+        return i >= 0 && i < slotCount(buf) && recordOffset(buf, i) != 0;
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty directory
+     * entry or a new one at the end of the directory, compacting the records
+     * first if the free space is split up by deletes.
+     *
+     * @throws DbException if the tuple does not fit or the tupledesc is
+     *         mismatched
+     */
+    @Override
+    public void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in addTuple");
+        if (!hasRoomFor(t))
+            throw new DbException("called addTuple on page without room for the tuple.");
+
+        long stamp = lockRead();
+        try {
+            insertRecord(t);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    /** Insert t, which fits, under lockRead() */
+    private void insertRecord(Tuple t) {
+        prepareWrite();
+        ByteBuffer buf = buffer();
+        int slots = slotCount(buf);
+        int slotId = firstEmptySlot(buf);
+        if (slotId == slots)
+            slots++;
+        int size = recordSize(t);
+        if (recordStart(buf) - size < HEADER_SIZE + slots * SLOT_SIZE)
+            compact(buf);
+
+        int offset = recordStart(buf) - size;
+        int pos = offset;
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.STRING_TYPE) {
+                String s = ((StringField) f).getValue();
+                buf.putShort(pos, (short) s.length());
+                pos += 2;
+                for (int j = 0; j < s.length(); j++)
+                    buf.put(pos++, (byte) s.charAt(j));
+            } else {
+                buf.putInt(pos, ((IntField) f).getValue());
+                pos += 4;
+            }
+        }
+        setSlot(buf, slotId, offset, size);
+        setHeader(buf, slots, offset);
+        Debug.log(1, "SlottedHeapPage.addTuple: new tuple, tableId = %d pageId = %d slotId = %d",
+                pid.getTableId(), pid.getPageNumber(), slotId);
+        t.setRecordId(new RecordId(pid, slotId));
+        remember(slotId, t);
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its bytes are zeroed and its
+     * directory entry emptied; empty entries at the end of the directory are
+     * dropped.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    @Override
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if ((rid.getPageId().getPageNumber() != pid.getPageNumber()) || (rid.getPageId().getTableId() != pid.getTableId()))
+            throw new DbException("tried to delete tuple on invalid page or table");
+        int slotId = rid.getTupleNumber();
+        if (!isSlotUsed(slotId))
+            throw new DbException("tried to delete null tuple.");
+        long stamp = lockRead();
+        try {
+            deleteRecord(slotId);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    /** Empty the specified slot, which is in use, under lockRead() */
+    private void deleteRecord(int slotId) {
+        prepareWrite();
+        forget(slotId);
+        ByteBuffer buf = buffer();
+        int offset = recordOffset(buf, slotId);
+        int length = recordLength(buf, slotId);
+        for (int i = 0; i < length; i++)
+            buf.put(offset + i, (byte) 0);
+        setSlot(buf, slotId, 0, 0);
+
+        int slots = slotCount(buf);
+        while (slots > 0 && recordOffset(buf, slots - 1) == 0)
+            slots--;
+        int start = recordStart(buf);
+        if (slots == 0)
+            start = BufferPool.getPageSize();
+        else if (offset == start)
+            start += length;
+        setHeader(buf, slots, start);
+    }
+
+    /**
+     * Move all records to the end of the page, in slot order, so the free
+     * space is in one piece. Slot numbers don't change.
+     */
+    private void compact(ByteBuffer buf) {
+        int slots = slotCount(buf);
+        int pageSize = BufferPool.getPageSize();
+        byte[] packed = new byte[pageSize];
+        int start = pageSize;
+        for (int i = 0; i < slots; i++) {
+            int offset = recordOffset(buf, i);
+            if (offset == 0)
+                continue;
+            int length = recordLength(buf, i);
+            start -= length;
+            for (int j = 0; j < length; j++)
+                packed[start + j] = buf.get(offset + j);
+            setSlot(buf, i, start, length);
+        }
+        int directoryEnd = HEADER_SIZE + slots * SLOT_SIZE;
+        for (int i = directoryEnd; i < pageSize; i++)
+            buf.put(i, packed[i]);
+        setHeader(buf, slots, start);
+    }
+
+    @Override
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int next = nextUsedSlot(0);
+
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            public Tuple next() {
+                if (next < 0)
+                    throw new NoSuchElementException();
+                Tuple t = tuple(next);
+                next = nextUsedSlot(next + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** @return the first used slot at or after from, or -1 if none */
+    private int nextUsedSlot(int from) {
+        long stamp = startRead();
+        try {
+            int next = nextUsedSlot(buffer(), from);
+            if (validate(stamp))
+                return next;
+        } catch (RuntimeException e) {
+            // the page left its frame meanwhile; read it again below
+        }
+        stamp = lockRead();
+        try {
+            return nextUsedSlot(buffer(), from);
+        } finally {
+            unlockRead(stamp);
+        }
+    }
+
+    private int nextUsedSlot(ByteBuffer buf, int from) {
+        int slots = slotCount(buf);
+        for (int i = from; i < slots; i++) {
+            if (recordOffset(buf, i) != 0)
+                return i;
+        }
+        return -1;
+    }
+}
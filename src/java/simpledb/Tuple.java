@@ -20,6 +20,11 @@ public class Tuple implements Serializable {
     private Field[] fields;
     private int tupleSize;
 
+    /** The page the unset fields of this tuple are decoded from when first
+    asked for, or null once the tuple is fully materialized */
+    private transient HeapPage source;
+    private int sourceSlot;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -29,10 +34,35 @@ public class Tuple implements Serializable {
      */
     public Tuple(TupleDesc td) {
         this.tupleDesc = td;
-        this.tupleSize = tupleDesc.getSize();
+        this.tupleSize = tupleDesc.numFields();
         this.fields = new Field[tupleSize];
     }
 
+    /**
+     * Create a tuple whose fields are decoded from the specified slot of a
+     * page the first time they are read.
+     */
+    Tuple(HeapPage source, int slot) {
+        this(source.td);
+        this.source = source;
+        this.sourceSlot = slot;
+    }
+
+    /**
+     * Decode every field that has not been read yet and detach this tuple
+     * from its page. HeapPage calls this before it reuses the slot.
+     */
+    void materialize() {
+        HeapPage page = source;
+        if (page == null)
+            return;
+        for (int i = 0; i < page.td.numFields(); i++) {
+            if (fields[i] == null)
+                fields[i] = page.readField(sourceSlot, i);
+        }
+        source = null;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -80,7 +110,15 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         if (i < 0 || i >= tupleSize) return null;
-        return fields[i];
+        Field f = fields[i];
+        if (f == null) {
+            HeapPage page = source;
+            if (page != null && i < page.td.numFields()) {
+                f = page.readField(sourceSlot, i);
+                fields[i] = f;
+            }
+        }
+        return f;
     }
 
     /**
@@ -107,6 +145,7 @@ public class Tuple implements Serializable {
      *        An iterator which iterates over all the fields of this tuple
      * */
     public Iterator<Field> fields() {
+        materialize();
         return Arrays.asList(fields).iterator();
     }
 
@@ -167,7 +167,10 @@ public class TupleDesc implements Serializable {
      *         Note that tuples from a given TupleDesc are of a fixed size.
      */
     public int getSize() {
-        return numFields() * Type.INT_TYPE.getLen();
+        int size = 0;
+        for (int i = 0; i < numFields(); i++)
+            size += getFieldType(i).getLen();
+        return size;
     }
 
     /**
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). First-time pages enter a FIFO
+ * (A1in); when they are evicted from it their ids are remembered in a ghost
+ * FIFO (A1out). A page that comes back while its id is still remembered is
+ * promoted to the main LRU queue (Am). Pages touched only once therefore
+ * never compete with the hot set in Am.
+ * <p>
+ * All queues are linked hash sets, so every operation is O(1).
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    /** target size of A1in */
+    private final int kin;
+    /** number of ghost ids remembered in A1out */
+    private final int kout;
+
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+    /** non-evictable resident pages, mapped to true if they belong to Am */
+    private final Map<PageId, Boolean> pinned;
+    /** resident A1in pages, pinned or not */
+    private int a1inResident;
+
+    /**
+     * @param capacity the number of frames in the pool
+     */
+    public TwoQueueEvictionPolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+        this.pinned = new HashMap<>();
+    }
+
+    public void pageAdded(PageId pid) {
+        if (pinned.containsKey(pid) || a1in.contains(pid) || am.contains(pid)) {
+            pageAccessed(pid);
+            return;
+        }
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+            a1inResident++;
+        }
+    }
+
+    public void pageAccessed(PageId pid) {
+        // hits in A1in are deliberately ignored; correlated references
+        // right after the first one do not make a page hot
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    public void pageRemoved(PageId pid) {
+        boolean inA1in;
+        Boolean pinnedInAm = pinned.remove(pid);
+        if (pinnedInAm != null) {
+            inA1in = !pinnedInAm;
+        } else {
+            inA1in = a1in.remove(pid);
+            am.remove(pid);
+        }
+        if (inA1in) {
+            a1inResident--;
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    public void setEvictable(PageId pid, boolean evictable) {
+        if (evictable) {
+            Boolean inAm = pinned.remove(pid);
+            if (inAm != null)
+                (inAm ? am : a1in).add(pid);
+        } else if (am.remove(pid)) {
+            pinned.put(pid, true);
+        } else if (a1in.remove(pid)) {
+            pinned.put(pid, false);
+        }
+    }
+
+    public PageId chooseVictim() {
+        if (!a1in.isEmpty() && (a1inResident > kin || am.isEmpty()))
+            return a1in.iterator().next();
+        if (!am.isEmpty())
+            return am.iterator().next();
+        return null;
+    }
+}
@@ -0,0 +1,203 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ZoneMap keeps, for each page of a HeapFile and each int column, the
+ * smallest and largest value on the page, so that a scan with a predicate
+ * on an int column can skip pages whose range cannot match.
+ * <p>
+ * The map lives beside the file, like its {@link FreeSpaceMap}, and starts
+ * out knowing nothing: a page's zone is learned the first time a scan reads
+ * the page while it has no uncommitted changes, and pages the file
+ * allocates start with an empty zone. Inserts widen the zone of their page.
+ * Deletes leave it alone; a zone only ever grows, so it still covers every
+ * value on the page, including those a rolled back delete puts back. A
+ * zone is never learned from a dirty page, which may lack tuples that an
+ * abort would put back. A page whose zone is not known is always read.
+ *
+ * @Threadsafe
+ * @see HeapFile#iterator(TransactionId, boolean[], Predicate[])
+ */
+public class ZoneMap {
+
+    /** the int columns the map keeps ranges for */
+    private final int[] columns;
+    /** per column in columns, the smallest and largest value of each page */
+    private int[][] min;
+    private int[][] max;
+    /** bit i is set if the zone of page i is known */
+    private final BitSet known = new BitSet();
+
+    private final LongAdder pagesSkipped = new LongAdder();
+    private final LongAdder pagesRead = new LongAdder();
+
+    /** Create an empty zone map for a table with the specified schema. */
+    public ZoneMap(TupleDesc td) {
+        int n = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                n++;
+        }
+        columns = new int[n];
+        n = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                columns[n++] = i;
+        }
+        min = new int[n][0];
+        max = new int[n][0];
+    }
+
+    /** @return the position of the specified field in columns, or -1 */
+    private int indexOf(int field) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == field)
+                return i;
+        }
+        return -1;
+    }
+
+    /** Make room for the specified page and give it an empty zone. */
+    private void clear(int pageNo) {
+        if (columns.length > 0 && pageNo >= min[0].length) {
+            int length = Math.max(pageNo + 1, min[0].length * 2);
+            for (int i = 0; i < columns.length; i++) {
+                min[i] = Arrays.copyOf(min[i], length);
+                max[i] = Arrays.copyOf(max[i], length);
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            min[i][pageNo] = Integer.MAX_VALUE;
+            max[i][pageNo] = Integer.MIN_VALUE;
+        }
+        known.set(pageNo);
+    }
+
+    private void widen(int pageNo, Tuple t) {
+        for (int i = 0; i < columns.length; i++) {
+            int v = ((IntField) t.getField(columns[i])).getValue();
+            if (v < min[i][pageNo])
+                min[i][pageNo] = v;
+            if (v > max[i][pageNo])
+                max[i][pageNo] = v;
+        }
+    }
+
+    /** @return true if the zone of the specified page is known */
+    public synchronized boolean isKnown(int pageNo) {
+        return known.get(pageNo);
+    }
+
+    /** Record that the specified page was just allocated and is empty. */
+    public synchronized void pageAllocated(int pageNo) {
+        clear(pageNo);
+    }
+
+    /**
+     * Learn the zone of the specified page from its current contents, if it
+     * is not known yet and the page has no uncommitted changes.
+     */
+    public synchronized void learn(int pageNo, HeapPage page) {
+        if (known.get(pageNo) || page.isDirty() != null)
+            return;
+        clear(pageNo);
+        if (columns.length == 0)
+            return;
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            widen(pageNo, it.next());
+    }
+
+    /** Widen the zone of the specified page to cover a tuple inserted into it. */
+    public synchronized void tupleInserted(int pageNo, Tuple t) {
+        if (known.get(pageNo))
+            widen(pageNo, t);
+    }
+
+    /**
+     * @return the smallest value of the specified int field on the specified
+     *   page, or Integer.MAX_VALUE if the page has no tuples
+     * @throws IllegalArgumentException if the zone is not known or the field
+     *   is not an int column
+     */
+    public synchronized int getMin(int pageNo, int field) {
+        int i = indexOf(field);
+        if (i < 0 || !known.get(pageNo))
+            throw new IllegalArgumentException("no zone for page " + pageNo + " field " + field);
+        return min[i][pageNo];
+    }
+
+    /**
+     * @return the largest value of the specified int field on the specified
+     *   page, or Integer.MIN_VALUE if the page has no tuples
+     * @throws IllegalArgumentException if the zone is not known or the field
+     *   is not an int column
+     */
+    public synchronized int getMax(int pageNo, int field) {
+        int i = indexOf(field);
+        if (i < 0 || !known.get(pageNo))
+            throw new IllegalArgumentException("no zone for page " + pageNo + " field " + field);
+        return max[i][pageNo];
+    }
+
+    /**
+     * @return false if the zone of the specified page shows that no tuple on
+     *   it satisfies the predicate; true if some may, or if the zone or the
+     *   predicate's column is not known
+     */
+    public synchronized boolean mayMatch(int pageNo, Predicate p) {
+        int i = indexOf(p.getField());
+        if (i < 0 || !known.get(pageNo) || !(p.getOperand() instanceof IntField))
+            return true;
+        int lo = min[i][pageNo], hi = max[i][pageNo];
+        if (lo > hi)
+            return false;
+        int v = ((IntField) p.getOperand()).getValue();
+        switch (p.getOp()) {
+        case EQUALS:
+            return lo <= v && v <= hi;
+        case NOT_EQUALS:
+            return lo != v || hi != v;
+        case GREATER_THAN:
+            return hi > v;
+        case GREATER_THAN_OR_EQ:
+            return hi >= v;
+        case LESS_THAN:
+            return lo < v;
+        case LESS_THAN_OR_EQ:
+            return lo <= v;
+        default:
+            return true;
+        }
+    }
+
+    /** Count a page a scan skipped because of its zone. */
+    void pageSkipped() {
+        pagesSkipped.increment();
+    }
+
+    /** Count a page a scan with predicates had to read. */
+    void pageRead() {
+        pagesRead.increment();
+    }
+
+    /** @return the number of pages scans with predicates skipped */
+    public long getPagesSkipped() {
+        return pagesSkipped.sum();
+    }
+
+    /** @return the number of pages scans with predicates read */
+    public long getPagesRead() {
+        return pagesRead.sum();
+    }
+
+    /** Reset the skipped and read counters to zero. */
+    public void resetStatistics() {
+        pagesSkipped.reset();
+        pagesRead.reset();
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkBuilderTest extends SimpleDbTestBase {
+
+	/**
+	 * Build a tree over a heap file with the specified number of rows and
+	 * check its structure and contents.
+	 */
+	private BTreeBulkBuilder buildAndCheck(int rows, long memoryBytes, double fillFactor) throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		HeapFile source = SystemTestUtil.createRandomHeapFile(2, rows, 1000, null, tuples);
+		File bFile = File.createTempFile("bulkbtree", ".dat");
+		bFile.deleteOnExit();
+
+		BTreeBulkBuilder builder = new BTreeBulkBuilder(0, memoryBytes, fillFactor);
+		BTreeFile bf = builder.build(source, bFile);
+		assertEquals(rows, builder.getTupleCount());
+		assertEquals(builder.getPagesWritten(), bf.numPages());
+
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+
+		// walk the leaves from the leftmost one
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+		BTreePageId pid = rootPtr.getRootId();
+		while(pid.pgcateg() == BTreePageId.INTERNAL) {
+			pid = ((BTreeInternalPage) bf.readPage(pid)).iterator().next().getLeftChild();
+		}
+		while(pid != null) {
+			BTreeLeafPage leaf = (BTreeLeafPage) bf.readPage(pid);
+			Iterator<Tuple> it = leaf.iterator();
+			while(it.hasNext()) {
+				keys.add(((IntField) it.next().getField(0)).getValue());
+			}
+			pid = leaf.getRightSiblingId();
+		}
+
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(ArrayList<Integer> t : tuples) {
+			expected.add(t.get(0));
+		}
+		Collections.sort(expected);
+		assertEquals(expected, keys);
+		return builder;
+	}
+
+	/**
+	 * Unit test for BTreeBulkBuilder.build(): many runs merged in several
+	 * passes still give a valid tree with every tuple in key order.
+	 */
+	@Test public void manyRuns() throws Exception {
+		// about 50 tuples per run, so 4000 rows need two merge passes
+		BTreeBulkBuilder builder = buildAndCheck(4000, 50 * 72, 1.0);
+		assertTrue(builder.getRunCount() > BTreeBulkBuilder.MERGE_FAN_IN);
+		assertEquals(1, builder.getMergePasses());
+		assertTrue(builder.getThroughputMBps() > 0);
+	}
+
+	/**
+	 * Unit test for BTreeBulkBuilder.build(): a lower fill factor leaves
+	 * room on the leaves, and trees of one and of several levels come out
+	 * valid.
+	 */
+	@Test public void fillFactor() throws Exception {
+		int full = buildAndCheck(20000, BTreeBulkBuilder.DEFAULT_MEMORY_BYTES, 1.0).getPagesWritten();
+		int loose = buildAndCheck(20000, BTreeBulkBuilder.DEFAULT_MEMORY_BYTES, 0.6).getPagesWritten();
+		assertTrue(loose > full * 3 / 2);
+
+		assertEquals(1, buildAndCheck(10, BTreeBulkBuilder.DEFAULT_MEMORY_BYTES, 1.0).getPagesWritten());
+		assertEquals(1, buildAndCheck(0, BTreeBulkBuilder.DEFAULT_MEMORY_BYTES, 1.0).getPagesWritten());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkBuilderTest.class);
+	}
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 12;
+
+    @After public void tearDown() {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    /** Insert one tuple on every page of f, leaving each page dirty. */
+    private void dirtyEveryPage(HeapFile f, TransactionId tid) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+            Tuple victim = p.iterator().next();
+            bp.deleteTuple(tid, victim);
+            bp.insertTuple(tid, f.getId(), Utility.getHeapTuple(-i, 2));
+        }
+    }
+
+    private boolean anyDirty(BufferPool bp, HeapFile f, TransactionId tid) throws Exception {
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            if (bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY).isDirty() != null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Unit test for BufferPool.writeDirtyPages(): every dirty page is logged
+     * and written, adjacent pages share a write, and the pages end up clean
+     * and evictable.
+     */
+    @Test public void writeDirtyPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(2 * TABLE_PAGES);
+        TransactionId tid = new TransactionId();
+        dirtyEveryPage(f, tid);
+
+        int records = Database.getLogFile().getTotalRecords();
+        assertEquals(TABLE_PAGES, bp.writeDirtyPages());
+        assertTrue(Database.getLogFile().getTotalRecords() - records >= TABLE_PAGES);
+        assertEquals(TABLE_PAGES, bp.getPagesWrittenCount());
+        assertEquals(1, bp.getPageWriteCount());
+
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            HeapPage cached = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            assertNull(cached.isDirty());
+            HeapPage onDisk = (HeapPage) f.readPage(pid);
+            assertArrayEquals(cached.getPageData(), onDisk.getPageData());
+        }
+        assertEquals(0, bp.writeDirtyPages());
+
+        // once the pages are written, a full pool can take another page
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        bp = Database.resetBufferPool(TABLE_PAGES);
+        dirtyEveryPage(f, tid);
+        bp.writeDirtyPages();
+        bp.getPage(tid, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for the background writer: pages dirtied while it runs are
+     * cleaned without the caller writing anything.
+     */
+    @Test public void backgroundWriterCleansPages() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(2 * TABLE_PAGES);
+        TransactionId tid = new TransactionId();
+        bp.startBackgroundWriter(10);
+        assertTrue(bp.isBackgroundWriterRunning());
+        dirtyEveryPage(f, tid);
+
+        // a page dirtied again after a pass is written again, so wait for
+        // all of them to be clean rather than for a number of writes
+        long deadline = System.currentTimeMillis() + 10000;
+        while (anyDirty(bp, f, tid) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        bp.stopBackgroundWriter();
+        assertFalse(bp.isBackgroundWriterRunning());
+
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            HeapPageId pid = new HeapPageId(f.getId(), i);
+            HeapPage cached = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+            assertNull(cached.isDirty());
+            assertArrayEquals(cached.getPageData(), f.readPage(pid).getPageData());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
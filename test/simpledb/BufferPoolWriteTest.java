@@ -81,6 +81,32 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
         }
     }
     
+    /**
+     * Unit test for BufferPool.insertTuples()
+     */
+    @Test public void insertTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 504 * 2 + 1; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().insertTuples(tid, empty.getId(), tuples.iterator());
+
+        // the pages are filled one after the other
+        for (int i = 0; i < tuples.size(); ++i) {
+            PageId pid = tuples.get(i).getRecordId().getPageId();
+            assertEquals(i / 504, pid.getPageNumber());
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            assertEquals(tid, p.isDirty());
+        }
+        HeapPage last = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+        assertEquals(503, last.getNumEmptySlots());
+
+        // a later insert goes to the page with room
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(2, t.getRecordId().getPageId().getPageNumber());
+    }
+
     /**
      * Unit test for BufferPool.deleteTuple()
      */
@@ -0,0 +1,119 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 20;
+    private static final int DIMENSION_PAGES = 4;
+    private static final int FACT_PAGES = 60;
+
+    /**
+     * Reads every page of the small table a few times (the OLTP part) with a
+     * full scan of the big table (the report) in between, and returns the
+     * pool hit rate of the small-table reads.
+     */
+    private double mixedWorkloadHitRate(BufferPool bp, HeapFile dimension, HeapFile fact,
+            boolean useRing) throws Exception {
+        TransactionId tid = new TransactionId();
+        long hits = 0, requests = 0;
+        for (int round = 0; round < 3; round++) {
+            long before = bp.getHitCount();
+            for (int i = 0; i < dimension.numPages(); i++)
+                bp.getPage(tid, new HeapPageId(dimension.getId(), i), Permissions.READ_ONLY);
+            hits += bp.getHitCount() - before;
+            requests += dimension.numPages();
+
+            BufferRing ring = useRing ? new BufferRing() : null;
+            for (int i = 0; i < fact.numPages(); i++)
+                bp.getPage(tid, new HeapPageId(fact.getId(), i), Permissions.READ_ONLY, ring);
+        }
+        return (double) hits / requests;
+    }
+
+    /**
+     * Unit test for BufferPool.getPage() with a BufferRing: a large scan
+     * leaves the pool's working set alone.
+     */
+    @Test public void ringKeepsWorkingSet() throws Exception {
+        HeapFile dimension = SystemTestUtil.createRandomHeapFile(2, 504 * DIMENSION_PAGES, null, null);
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(2, 504 * FACT_PAGES, null, null);
+        assertEquals(FACT_PAGES, fact.numPages());
+
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        assertTrue(bp.useScanRing(fact.numPages()));
+        assertFalse(bp.useScanRing(dimension.numPages()));
+
+        double poolOnly = mixedWorkloadHitRate(bp, dimension, fact, false);
+        bp = Database.resetBufferPool(POOL_PAGES);
+        double withRing = mixedWorkloadHitRate(bp, dimension, fact, true);
+        System.out.println("BufferRingTest: small-table hit rate " + poolOnly
+                + " without ring, " + withRing + " with ring");
+
+        // only the very first reads of the small table miss
+        assertEquals(2.0 / 3, withRing, 0.001);
+        assertTrue(withRing > poolOnly);
+        assertEquals(FACT_PAGES * 3, bp.getRingMissCount());
+    }
+
+    /**
+     * Unit test for BufferPool.useScanRing(): a table that fits in the pool
+     * but takes more than SCAN_RING_THRESHOLD of it is scanned through a
+     * ring, which keeps the small table resident next to it.
+     */
+    @Test public void ringForTableSmallerThanPool() throws Exception {
+        int factPages = POOL_PAGES * 3 / 4;
+        HeapFile dimension = SystemTestUtil.createRandomHeapFile(2, 504 * POOL_PAGES / 2, null, null);
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(2, 504 * factPages, null, null);
+        assertTrue(fact.numPages() < POOL_PAGES);
+        assertTrue(fact.numPages() > POOL_PAGES * BufferPool.SCAN_RING_THRESHOLD);
+
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        assertTrue(bp.useScanRing(fact.numPages()));
+        double poolOnly = mixedWorkloadHitRate(bp, dimension, fact, false);
+        bp = Database.resetBufferPool(POOL_PAGES);
+        double withRing = mixedWorkloadHitRate(bp, dimension, fact, true);
+
+        assertEquals(2.0 / 3, withRing, 0.001);
+        assertTrue(withRing > poolOnly);
+    }
+
+    /**
+     * Unit test for HeapFile.iterator(): scans through a ring still see all
+     * tuples, and rewinding re-reads pages that left the ring.
+     */
+    @Test public void scanThroughRing() throws Exception {
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(2, 504 * FACT_PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = fact.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.rewind();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(2 * 504 * FACT_PAGES, count);
+        assertEquals(0, bp.getMissCount());
+        assertEquals(2 * FACT_PAGES, bp.getRingMissCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
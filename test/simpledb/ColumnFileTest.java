@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ColumnFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 1000;
+
+    private TupleDesc td;
+    private File file;
+    private ColumnFile cf;
+    private ArrayList<String> expected;
+
+    /**
+     * Create a columnar table of int, string, int rows through the BufferPool
+     * and write it out.
+     */
+    @Before public void setUp() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+                new String[] { "id", "name", "score" });
+        file = File.createTempFile("columns", ".dat");
+        file.deleteOnExit();
+        cf = open();
+        expected = new ArrayList<String>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++)
+            expected.add(insert(tid, i).toString());
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private ColumnFile open() {
+        ColumnFile f = new ColumnFile(file, td);
+        Database.getCatalog().addTable(f, "columns" + SystemTestUtil.getUUID());
+        for (int i = 0; i < td.numFields(); i++)
+            f.getColumnFile(i).deleteOnExit();
+        return f;
+    }
+
+    private Tuple insert(TransactionId tid, int i) throws Exception {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("name" + i % 100, Type.STRING_LEN));
+        t.setField(2, new IntField(i % 7));
+        Database.getBufferPool().insertTuple(tid, cf.getId(), t);
+        return t;
+    }
+
+    private ArrayList<Tuple> scan(DbFileIterator it) throws Exception {
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next());
+        it.close();
+        return rows;
+    }
+
+    private ArrayList<String> strings(ArrayList<Tuple> tuples) {
+        ArrayList<String> rows = new ArrayList<String>();
+        for (Tuple t : tuples)
+            rows.add(t.toString());
+        return rows;
+    }
+
+    /**
+     * Unit test for ColumnFile.insertTuple(), deleteTuple() and iterator():
+     * rows come back in order, deleted rows disappear, and a reopened file
+     * appends after the rows on disk.
+     */
+    @Test public void insertScanDelete() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertEquals(expected, strings(scan(cf.iterator(tid))));
+
+        ArrayList<Tuple> all = scan(cf.iterator(tid));
+        ArrayList<String> kept = new ArrayList<String>();
+        for (int i = 0; i < all.size(); i++) {
+            if (i % 3 == 1)
+                Database.getBufferPool().deleteTuple(tid, all.get(i));
+            else
+                kept.add(all.get(i).toString());
+        }
+        // the last row stays, so reopening doesn't reuse row numbers
+        assertEquals(kept, strings(scan(cf.iterator(tid))));
+        Database.getBufferPool().flushAllPages();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        cf = open();
+        kept.add(insert(tid, ROWS).toString());
+        assertEquals(kept, strings(scan(cf.iterator(tid))));
+    }
+
+    /**
+     * Unit test for ColumnFile.iterator(TransactionId, boolean[]): a scan of
+     * one column reads only that column's pages.
+     */
+    @Test public void projection() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().resetStatistics();
+        SeqScan ss = new SeqScan(tid, cf.getId(), "c", new boolean[] { false, false, true });
+        ss.open();
+        int rows = 0;
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            assertNull(t.getField(0));
+            assertNull(t.getField(1));
+            assertEquals(rows % 7, ((IntField) t.getField(2)).getValue());
+            rows++;
+        }
+        ss.close();
+        assertEquals(ROWS, rows);
+        assertEquals(cf.numPages(2), Database.getBufferPool().getMissCount());
+        assertTrue(cf.numPages(2) * 10 < cf.numPages());
+    }
+
+    /**
+     * Unit test for LogicalPlan.physicalPlan(): the scan of a columnar table
+     * reads only the columns the select list and the filter refer to.
+     */
+    @Test public void logicalPlanPushdown() throws Exception {
+        TransactionId tid = new TransactionId();
+        String name = Database.getCatalog().getTableName(cf.getId());
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(cf.getId(), "c");
+        lp.addProjectField("c.id", null);
+        lp.addFilter("c.score", Predicate.Op.EQUALS, "3");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(cf.getId(), 1000));
+
+        Database.getBufferPool().resetStatistics();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int rows = 0;
+        while (plan.hasNext()) {
+            assertEquals(3, ((IntField) plan.next().getField(0)).getValue() % 7);
+            rows++;
+        }
+        plan.close();
+        assertEquals((ROWS + 3) / 7, rows);
+        assertEquals(cf.numPages(0) + cf.numPages(2), Database.getBufferPool().getMissCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
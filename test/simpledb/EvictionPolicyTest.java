@@ -0,0 +1,122 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for EvictionPolicy.setEvictable(): no policy may offer a
+     * page that has been marked as not evictable.
+     */
+    @Test public void skipsPinnedPages() {
+        for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+            EvictionPolicy policy = kind.create(4);
+            for (int i = 0; i < 4; i++)
+                policy.pageAdded(pid(i));
+            for (int i = 0; i < 3; i++)
+                policy.setEvictable(pid(i), false);
+            assertEquals(kind.toString(), pid(3), policy.chooseVictim());
+
+            policy.setEvictable(pid(3), false);
+            assertNull(kind.toString(), policy.chooseVictim());
+
+            policy.setEvictable(pid(1), true);
+            assertEquals(kind.toString(), pid(1), policy.chooseVictim());
+            policy.pageRemoved(pid(1));
+            assertNull(kind.toString(), policy.chooseVictim());
+        }
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a referenced page gets a second
+     * chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy();
+        for (int i = 0; i < 3; i++)
+            policy.pageAdded(pid(i));
+        // the first sweep clears every bit and comes back to page 0
+        assertEquals(pid(0), policy.chooseVictim());
+        policy.pageAccessed(pid(0));
+        assertEquals(pid(1), policy.chooseVictim());
+    }
+
+    /**
+     * Unit test for LruKEvictionPolicy: pages referenced fewer than K times
+     * are evicted before pages with a full history.
+     */
+    @Test public void lruKPrefersSingleReferences() {
+        EvictionPolicy policy = new LruKEvictionPolicy(2);
+        policy.pageAdded(pid(0));
+        policy.pageAccessed(pid(0));
+        policy.pageAdded(pid(1));
+        policy.pageAdded(pid(2));
+        assertEquals(pid(1), policy.chooseVictim());
+        policy.pageRemoved(pid(1));
+        assertEquals(pid(2), policy.chooseVictim());
+        policy.pageRemoved(pid(2));
+        assertEquals(pid(0), policy.chooseVictim());
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a page that returns while its id
+     * is remembered in A1out is promoted past the first-time pages.
+     */
+    @Test public void twoQueuePromotesGhosts() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(8);
+        policy.pageAdded(pid(0));
+        policy.pageRemoved(pid(0));
+        policy.pageAdded(pid(0)); // now in Am
+        for (int i = 1; i < 5; i++)
+            policy.pageAdded(pid(i));
+        // A1in may hold a quarter of the frames before Am gives up pages
+        for (int i = 1; i < 3; i++) {
+            assertEquals(pid(i), policy.chooseVictim());
+            policy.pageRemoved(pid(i));
+        }
+        assertEquals(pid(0), policy.chooseVictim());
+    }
+
+    /**
+     * Unit test for BufferPool with each policy: dirty pages stay resident
+     * and a full pool of dirty pages refuses new ones.
+     */
+    @Test public void poolKeepsDirtyPages() throws Exception {
+        for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+            Database.reset();
+            HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+            BufferPool bp = Database.resetBufferPool(new BufferPool(2, kind));
+            TransactionId tid = new TransactionId();
+            Page p0 = bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+            p0.markDirty(true, tid);
+            bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+            bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+            assertSame(kind.toString(), p0,
+                    bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY));
+
+            bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY).markDirty(true, tid);
+            try {
+                bp.getPage(tid, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+                fail(kind + ": expected DbException with only dirty pages resident");
+            } catch (DbException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
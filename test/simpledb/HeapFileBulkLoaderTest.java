@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class HeapFileBulkLoaderTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 5000;
+
+    private TupleDesc td;
+    private File input;
+    private ArrayList<String> expected;
+
+    /**
+     * Write an input file of int,string rows with some blank lines and
+     * padding, and no newline after the last row.
+     */
+    @Before public void setUp() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        input = File.createTempFile("bulkload", ".txt");
+        input.deleteOnExit();
+        expected = new ArrayList<String>();
+        PrintWriter w = new PrintWriter(new FileWriter(input));
+        for (int i = 0; i < ROWS; i++) {
+            int value = i % 2 == 0 ? i : -i;
+            String name = "name" + (i * 7919 % 1000);
+            w.print(" " + value + ", " + name + " ");
+            if (i < ROWS - 1)
+                w.print(i % 100 == 0 ? "\r\n\n" : "\n");
+            expected.add(value + "\t" + name);
+        }
+        w.close();
+    }
+
+    private File tempOutput() throws IOException {
+        File f = File.createTempFile("bulkload", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private ArrayList<String> scan(HeapFile f) throws Exception {
+        ArrayList<String> rows = new ArrayList<String>();
+        DbFileIterator it = f.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            rows.add(((IntField) t.getField(0)).getValue() + "\t"
+                    + ((StringField) t.getField(1)).getValue());
+        }
+        it.close();
+        return rows;
+    }
+
+    /**
+     * Unit test for HeapFileBulkLoader.load(): many small chunks encoded by
+     * several threads keep the input order and register the table.
+     */
+    @Test public void loadInChunks() throws Exception {
+        HeapFileBulkLoader loader = new HeapFileBulkLoader(td, ',', 3, 8192);
+        HeapFile f = loader.load(input, tempOutput(), "bulk");
+
+        assertEquals(f.getId(), Database.getCatalog().getTableId("bulk"));
+        assertEquals(ROWS, loader.getRowsLoaded());
+        assertEquals(f.numPages(), loader.getPagesWritten());
+        assertEquals(expected, scan(f));
+    }
+
+    /**
+     * Unit test for HeapFileBulkLoader.convert(): input that fits in one
+     * chunk is encoded exactly like HeapFileEncoder does.
+     */
+    @Test public void sameAsEncoder() throws Exception {
+        // HeapFileEncoder needs every line terminated
+        input = File.createTempFile("bulkload", ".txt");
+        input.deleteOnExit();
+        PrintWriter w = new PrintWriter(new FileWriter(input));
+        for (String row : expected)
+            w.print(row.replace('\t', ',') + "\n");
+        w.close();
+
+        File loaded = tempOutput();
+        new HeapFileBulkLoader(td, ',', 2, HeapFileBulkLoader.DEFAULT_CHUNK_BYTES).convert(input, loaded);
+        File encoded = tempOutput();
+        HeapFileEncoder.convert(input, encoded, BufferPool.getPageSize(), 2, new Type[] {
+                Type.INT_TYPE, Type.STRING_TYPE });
+        assertArrayEquals(Files.readAllBytes(encoded.toPath()), Files.readAllBytes(loaded.toPath()));
+
+        // an empty input still gives one page
+        File empty = tempOutput();
+        File out = tempOutput();
+        new HeapFileBulkLoader(td).convert(empty, out);
+        assertEquals(BufferPool.getPageSize(), out.length());
+    }
+
+    /**
+     * Unit test for HeapFileBulkLoader.convert(): a malformed line is
+     * reported with its line number.
+     */
+    @Test public void badLine() throws Exception {
+        PrintWriter w = new PrintWriter(new FileWriter(input, true));
+        w.print("\nx12,bad\n");
+        w.close();
+        try {
+            new HeapFileBulkLoader(td, ',', 2, 4096).convert(input, tempOutput());
+            fail("expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("line " + (ROWS + ROWS / 100 + 1)));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileBulkLoaderTest.class);
+    }
+}
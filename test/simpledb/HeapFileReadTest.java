@@ -77,6 +77,51 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.close(): the file is reopened on the next read,
+     * also after the catalog was cleared and the table added again.
+     */
+    @Test
+    public void readPageAfterClose() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.readPage(pid);
+        hf.close();
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+
+        Database.getCatalog().clear();
+        Database.getCatalog().addTable(hf);
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() on a memory-mapped file: pages are
+     * views of the file until changed, and the mapping follows the file as
+     * it grows.
+     */
+    @Test
+    public void readMappedPage() throws Exception {
+        HeapFile mapped = new HeapFile(hf.getFile(), td, true);
+        Database.getCatalog().addTable(mapped);
+        assertTrue(mapped.isMapped());
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertEquals(484, page.getNumEmptySlots());
+
+        // changing the page doesn't touch the file until it is written
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        assertEquals(484, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+        mapped.writePage(page);
+        assertEquals(483, ((HeapPage) mapped.readPage(pid)).getNumEmptySlots());
+
+        // grow the file by a page
+        HeapPage second = new HeapPage(new HeapPageId(mapped.getId(), 1), HeapPage.createEmptyPageData());
+        second.insertTuple(Utility.getHeapTuple(8, 2));
+        mapped.writePage(second);
+        assertEquals(2, mapped.numPages());
+        Tuple t = ((HeapPage) mapped.readPage(second.getId())).iterator().next();
+        assertEquals(8, ((IntField) t.getField(0)).getValue());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
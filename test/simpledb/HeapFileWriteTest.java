@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.io.RandomAccessFile;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +45,95 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple(): inserts go to pages with room
+     * without visiting full pages, and reuse space freed by deletes.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        for (int i = 0; i < 504 * 3; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+        // the file grew by one extent after its first page, and its trailer
+        assertEquals((1 + HeapFile.EXTENT_PAGES) * BufferPool.getPageSize() + HeapFile.TRAILER_SIZE,
+                empty.getFile().length());
+
+        BufferPool bp = Database.getBufferPool();
+        bp.resetStatistics();
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(4, empty.numPages());
+        assertEquals(1, bp.getHitCount() + bp.getMissCount());
+
+        // a delete makes room on the first page again
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        Tuple victim = it.next();
+        it.close();
+        empty.deleteTuple(tid, victim);
+        Tuple t = Utility.getHeapTuple(7, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(4, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.numPages(): the unused pages of an extent are
+     * not counted after the file is opened again, and are handed out to
+     * later inserts.
+     */
+    @Test public void reopenKeepsExtentReserved() throws Exception {
+        for (int i = 0; i < 504 * 2; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        long length = empty.getFile().length();
+        assertEquals((1 + HeapFile.EXTENT_PAGES) * BufferPool.getPageSize() + HeapFile.TRAILER_SIZE,
+                length);
+
+        // as after a restart: a new HeapFile, and nothing cached
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(2, reopened.numPages());
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(504 * 2, n);
+
+        reopened.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        assertEquals(3, reopened.numPages());
+        assertEquals(length, reopened.getFile().length());
+    }
+
+    /**
+     * Unit test for HeapFile.numPages(): if the trailer of an extent never
+     * reached the disk, all pages of the extent are counted after the file
+     * is opened again, and no tuple is lost.
+     */
+    @Test public void tornExtentCountsAllPages() throws Exception {
+        for (int i = 0; i < 504 * 2; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        RandomAccessFile raf = new RandomAccessFile(empty.getFile(), "rw");
+        raf.setLength(raf.length() - HeapFile.TRAILER_SIZE);
+        raf.close();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        HeapFile reopened = Utility.openHeapFile(2, empty.getFile());
+        assertEquals(1 + HeapFile.EXTENT_PAGES, reopened.numPages());
+        DbFileIterator it = reopened.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(504 * 2, n);
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,31 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.iterator(): fields are decoded only when read,
+     * and only once.
+     */
+    @Test public void lazyDecoding() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        HeapPage.resetDecodeStatistics();
+        Iterator<Tuple> it = page.iterator();
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, HeapPage.getTuplesDecoded());
+        assertEquals(EXAMPLE_VALUES.length, HeapPage.getFieldsDecoded());
+
+        // a second pass hands out the same tuples
+        it = page.iterator();
+        it.next().getField(1);
+        assertEquals(EXAMPLE_VALUES.length, HeapPage.getTuplesDecoded());
+        assertEquals(EXAMPLE_VALUES.length + 1, HeapPage.getFieldsDecoded());
+    }
+
     /**
      * JUnit suite target
      */
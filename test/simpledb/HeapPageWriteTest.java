@@ -126,6 +126,21 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.deleteTuple(): tuples read before their slot
+     * was reused keep their values.
+     */
+    @Test public void deleteKeepsReadTuples() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(-7, 2));
+
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0], ((IntField) first.getField(0)).getValue());
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][1], ((IntField) first.getField(1)).getValue());
+        assertEquals(-7, ((IntField) page.iterator().next().getField(1)).getValue());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,192 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private LockManager locks;
+    private PageId p0, p1;
+    private TransactionId tid1, tid2;
+
+    @Before public void setUp() {
+        locks = new LockManager(4);
+        locks.setTimeout(20);
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+    }
+
+    /** @return true if tid got the lock, false if it timed out */
+    private boolean tryAcquire(TransactionId tid, PageId pid, Permissions perm) {
+        try {
+            locks.acquire(tid, pid, perm);
+            return true;
+        } catch (TransactionAbortedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): shared locks are compatible with
+     * each other and nothing else, and a waiter that times out holds
+     * nothing.
+     */
+    @Test public void sharedAndExclusive() throws Exception {
+        assertTrue(tryAcquire(tid1, p0, Permissions.READ_ONLY));
+        assertTrue(tryAcquire(tid2, p0, Permissions.READ_ONLY));
+        assertFalse(tryAcquire(tid2, p0, Permissions.READ_WRITE));
+        assertTrue(locks.holdsLock(tid2, p0));
+        assertFalse(locks.holdsExclusive(tid2, p0));
+
+        assertTrue(tryAcquire(tid1, p1, Permissions.READ_WRITE));
+        assertFalse(tryAcquire(tid2, p1, Permissions.READ_ONLY));
+        assertFalse(locks.holdsLock(tid2, p1));
+        assertEquals(2, locks.getTimeoutCount());
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): the only reader of a page can
+     * upgrade its lock, and keeps it when it asks to read again.
+     */
+    @Test public void upgrade() throws Exception {
+        assertTrue(tryAcquire(tid1, p0, Permissions.READ_ONLY));
+        assertTrue(tryAcquire(tid1, p0, Permissions.READ_WRITE));
+        assertTrue(locks.holdsExclusive(tid1, p0));
+        assertTrue(tryAcquire(tid1, p0, Permissions.READ_ONLY));
+        assertTrue(locks.holdsExclusive(tid1, p0));
+        assertFalse(tryAcquire(tid2, p0, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for LockManager.release() and releaseAll(): released locks
+     * wake up waiters, and a completed transaction holds nothing.
+     */
+    @Test public void releaseWakesWaiters() throws Exception {
+        locks.setTimeout(10000);
+        locks.acquire(tid1, p0, Permissions.READ_WRITE);
+        locks.acquire(tid1, p1, Permissions.READ_ONLY);
+        assertEquals(2, locks.lockedPages(tid1).size());
+
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(tid2, p0, Permissions.READ_WRITE);
+                } catch (TransactionAbortedException e) {
+                    // holdsLock below fails
+                }
+            }
+        };
+        waiter.start();
+        while (locks.getWaitCount() == 0)
+            Thread.sleep(1);
+        locks.releaseAll(tid1);
+        waiter.join(5000);
+        assertTrue(locks.holdsExclusive(tid2, p0));
+        assertTrue(locks.lockedPages(tid1).isEmpty());
+        assertFalse(locks.holdsLock(tid1, p1));
+
+        locks.release(tid2, p0);
+        assertFalse(locks.holdsLock(tid2, p0));
+        locks.acquire(tid1, p0, Permissions.READ_WRITE);
+    }
+
+    /** Start a thread that locks a page, and releases everything if aborted. */
+    private Thread grabber(final TransactionId tid, final PageId pid, final Permissions perm,
+                           final boolean[] aborted) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    locks.acquire(tid, pid, perm);
+                } catch (TransactionAbortedException e) {
+                    aborted[0] = true;
+                    locks.releaseAll(tid);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Unit test for deadlock detection: when an older transaction closes a
+     * cycle, the younger waiter is aborted and the older one gets its lock.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        locks.setTimeout(10000);
+        locks.acquire(tid1, p0, Permissions.READ_WRITE);
+        locks.acquire(tid2, p1, Permissions.READ_WRITE);
+
+        boolean[] aborted = new boolean[1];
+        Thread waiter = grabber(tid2, p0, Permissions.READ_WRITE, aborted);
+        while (locks.getWaitCount() == 0)
+            Thread.sleep(1);
+        locks.acquire(tid1, p1, Permissions.READ_WRITE);
+        waiter.join(5000);
+
+        assertTrue(aborted[0]);
+        assertTrue(locks.holdsExclusive(tid1, p1));
+        assertTrue(locks.lockedPages(tid2).isEmpty());
+        assertEquals(1, locks.getDeadlockCount());
+        assertEquals(1, locks.getAbortCount());
+        assertEquals(0, locks.getTimeoutCount());
+        assertTrue(locks.getWaitNanos(tid1) > 0);
+    }
+
+    /**
+     * Unit test for deadlock detection: two readers that both upgrade
+     * deadlock, and the younger one is aborted at once.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        locks.setTimeout(10000);
+        locks.acquire(tid1, p0, Permissions.READ_ONLY);
+        locks.acquire(tid2, p0, Permissions.READ_ONLY);
+
+        boolean[] aborted = new boolean[1];
+        Thread waiter = grabber(tid1, p0, Permissions.READ_WRITE, aborted);
+        while (locks.getWaitCount() == 0)
+            Thread.sleep(1);
+        assertFalse(tryAcquire(tid2, p0, Permissions.READ_WRITE));
+        locks.releaseAll(tid2);
+        waiter.join(5000);
+
+        assertFalse(aborted[0]);
+        assertTrue(locks.holdsExclusive(tid1, p0));
+        assertEquals(1, locks.getDeadlockCount());
+        assertEquals(0, locks.getTimeoutCount());
+    }
+
+    /**
+     * Unit test for LockManager.acquire(): with no timeout set, a
+     * transaction waiting behind a slow one that is not deadlocked with it
+     * is never aborted.
+     */
+    @Test public void noTimeoutByDefault() throws Exception {
+        locks = new LockManager(4);
+        locks.acquire(tid1, p0, Permissions.READ_WRITE);
+
+        boolean[] aborted = new boolean[1];
+        Thread waiter = grabber(tid2, p0, Permissions.READ_WRITE, aborted);
+        Thread.sleep(200);
+        assertTrue(waiter.isAlive());
+        locks.releaseAll(tid1);
+        waiter.join(5000);
+
+        assertFalse(aborted[0]);
+        assertTrue(locks.holdsExclusive(tid2, p0));
+        assertEquals(0, locks.getTimeoutCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
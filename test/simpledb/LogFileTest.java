@@ -0,0 +1,440 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    /** A page class LogFile does not know about. */
+    public static class UnregisteredPage extends HeapPage {
+        public UnregisteredPage(HeapPageId id, byte[] data) throws IOException {
+            super(id, data);
+        }
+    }
+
+    private File logPath;
+    private LogFile log;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        logPath = File.createTempFile("logfile", ".log");
+        logPath.deleteOnExit();
+        log = new LogFile(logPath);
+        File f = File.createTempFile("logfile", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getPath(), 2);
+        for (int i = 1; i < 3; i++)
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+    }
+
+    @After public void tearDown() throws Exception {
+        File[] segments = logPath.getAbsoluteFile().getParentFile().listFiles();
+        for (File f : segments) {
+            if (f.getName().startsWith(logPath.getName() + "."))
+                f.delete();
+        }
+    }
+
+    private byte[] image(Page p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(bytes), p);
+        return bytes.toByteArray();
+    }
+
+    private Page read(byte[] image) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+        Page p = log.readPageData(in);
+        assertEquals(-1, in.read());
+        return p;
+    }
+
+    private void assertRoundTrip(Page p) throws IOException {
+        Page read = read(image(p));
+        assertEquals(p.getClass(), read.getClass());
+        assertEquals(p.getId(), read.getId());
+        assertTrue(Arrays.equals(p.getPageData(), read.getPageData()));
+    }
+
+    /** @return a page of hf with the specified tuples inserted */
+    private HeapPage page(int pgNo, int... values) throws Exception {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+        for (int v : values)
+            p.insertTuple(Utility.getHeapTuple(new int[] { v, v }));
+        return p;
+    }
+
+    private byte[] onDisk(int pgNo) {
+        return hf.readPage(new HeapPageId(hf.getId(), pgNo)).getPageData();
+    }
+
+    /** @return the number of log bytes the record of an update takes */
+    private long logged(TransactionId tid, HeapPage p) throws IOException {
+        long lsn = log.logWrite(tid, p.getBeforeImage(), p);
+        return log.getNextLsn() - lsn;
+    }
+
+    /**
+     * Unit test for LogFile.writePageData() and readPageData(): images of
+     * the registered page classes carry a one byte tag and come back as
+     * the same page.
+     */
+    @Test public void registeredPageImages() throws Exception {
+        HeapPage heap = page(0, 1, 2, 3);
+        assertRoundTrip(heap);
+        int size = BufferPool.getPageSize();
+        assertEquals(1 + 1 + 2 * 4 + 4 + size, image(heap).length);
+
+        File f = File.createTempFile("logfile", ".btree");
+        f.deleteOnExit();
+        BTreeFile bf = new BTreeFile(f, 1, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        int table = bf.getId();
+        BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(table, 1, BTreePageId.LEAF),
+                BTreeLeafPage.createEmptyPageData(), 1);
+        leaf.insertTuple(Utility.getHeapTuple(new int[] { 4, 5 }));
+        assertRoundTrip(leaf);
+        assertEquals(1, ((BTreeLeafPage) read(image(leaf))).keyField);
+        assertRoundTrip(new BTreeInternalPage(new BTreePageId(table, 2, BTreePageId.INTERNAL),
+                BTreeInternalPage.createEmptyPageData(), 1));
+        assertRoundTrip(new BTreeHeaderPage(new BTreePageId(table, 3, BTreePageId.HEADER),
+                BTreeHeaderPage.createEmptyPageData()));
+        assertRoundTrip(new BTreeRootPtrPage(new BTreePageId(table, 0, BTreePageId.ROOT_PTR),
+                BTreeRootPtrPage.createEmptyPageData()));
+    }
+
+    /**
+     * Unit test for LogFile.registerPageType(): a page class nobody
+     * registered is logged by name and read back through reflection,
+     * until it is registered.
+     */
+    @Test public void unregisteredPageImages() throws Exception {
+        UnregisteredPage p = new UnregisteredPage(new HeapPageId(hf.getId(), 0), page(0, 7).getPageData());
+        byte[] named = image(p);
+        assertEquals(LogFile.REFLECTIVE_PAGE, named[0]);
+        assertRoundTrip(p);
+
+        LogFile.registerPageType(200, UnregisteredPage.class, new LogPageFactory() {
+            public PageId createId(int[] id) {
+                return new HeapPageId(id[0], id[1]);
+            }
+            public Page create(int[] id, byte[] data) throws IOException {
+                return new UnregisteredPage(new HeapPageId(id[0], id[1]), data);
+            }
+        });
+        try {
+            byte[] tagged = image(p);
+            assertEquals((byte) 200, tagged[0]);
+            assertTrue(tagged.length < named.length);
+            assertRoundTrip(p);
+            // old images stay readable
+            assertEquals(UnregisteredPage.class, read(named).getClass());
+        } finally {
+            LogFile.unregisterPageType(UnregisteredPage.class);
+        }
+        assertEquals(LogFile.REFLECTIVE_PAGE, image(p)[0]);
+    }
+
+    /**
+     * Unit test for LogFile.rollback() and recover(): an abort restores the
+     * pages the transaction wrote, and recovery installs the updates of
+     * committed transactions and undoes the rest.
+     */
+    @Test public void rollbackAndRecover() throws Exception {
+        byte[] empty = onDisk(0);
+        TransactionId aborted = new TransactionId();
+        TransactionId committed = new TransactionId();
+        TransactionId loser = new TransactionId();
+
+        log.logXactionBegin(aborted);
+        HeapPage p0 = page(0, 1);
+        log.force(log.logWrite(aborted, p0.getBeforeImage(), p0));
+        hf.writePage(p0);
+        HeapPage p0again = page(0, 2);
+        log.force(log.logWrite(aborted, p0again.getBeforeImage(), p0again));
+        hf.writePage(p0again);
+        log.logAbort(aborted);
+        assertTrue(Arrays.equals(empty, onDisk(0)));
+
+        log.logXactionBegin(committed);
+        log.logXactionBegin(loser);
+        HeapPage p1 = page(1, 3);
+        log.logWrite(committed, p1.getBeforeImage(), p1);
+        log.logCommit(committed);
+        HeapPage p2 = page(2, 4);
+        log.force(log.logWrite(loser, p2.getBeforeImage(), p2));
+        hf.writePage(p2);
+        byte[] p1After = p1.getPageData();
+
+        // the committed update never reached the table, the loser's did
+        log = new LogFile(logPath);
+        log.recover();
+        assertTrue(Arrays.equals(empty, onDisk(0)));
+        assertTrue(Arrays.equals(p1After, onDisk(1)));
+        assertTrue(Arrays.equals(empty, onDisk(2)));
+
+        // recovery logged the loser's abort, so a second pass agrees
+        hf.writePage(p2);
+        log = new LogFile(logPath);
+        log.recover();
+        assertTrue(Arrays.equals(p1After, onDisk(1)));
+        assertTrue(Arrays.equals(empty, onDisk(2)));
+    }
+
+    /**
+     * Unit test for LogFile.recover() with several workers: each page
+     * gets its redo and the undo of a loser in log order, and pages are
+     * written out whether or not they existed in the file.
+     */
+    @Test public void parallelRecover() throws Exception {
+        int pages = 3 * LogFile.REDO_RUN_PAGES;
+        TransactionId committed = new TransactionId();
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(committed);
+        log.logXactionBegin(loser);
+        byte[][] after = new byte[pages][];
+        for (int i = 0; i < pages; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(new int[] { i, i }));
+            log.logWrite(committed, p.getBeforeImage(), p);
+            after[i] = p.getPageData();
+            p.setBeforeImage();
+            p.insertTuple(Utility.getHeapTuple(new int[] { -i, -i }));
+            log.logWrite(loser, p.getBeforeImage(), p);
+        }
+        log.logCommit(committed);
+
+        log = new LogFile(logPath);
+        log.setRecoveryThreads(4);
+        log.recover();
+        for (int i = 0; i < pages; i++)
+            assertTrue(Arrays.equals(after[i], onDisk(i)));
+    }
+
+    /**
+     * Unit test for LogFile.logWrite() with DELTA records: a small change
+     * is logged as the bytes it changed, and a large one, or any once the
+     * delta limit is 0, as full page images.
+     */
+    @Test public void deltaRecords() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        int size = BufferPool.getPageSize();
+        assertTrue(logged(tid, page(0, 1)) < 100);
+
+        HeapPage full = page(1);
+        for (int i = 0; full.getNumEmptySlots() > 0; i++)
+            full.insertTuple(Utility.getHeapTuple(new int[] { i * 7919 + 1, -i }));
+        assertTrue(logged(tid, full) > 2 * size);
+
+        log.setDeltaLimit(0);
+        assertTrue(logged(tid, page(2, 1)) > 2 * size);
+    }
+
+    /**
+     * Unit test for LogFile.rollback() and recover() with DELTA records:
+     * a transaction that logs a page twice, changing bytes back the second
+     * time, is redone and undone byte for byte.
+     */
+    @Test public void deltaRollbackAndRecover() throws Exception {
+        byte[] empty = onDisk(0);
+        int size = BufferPool.getPageSize();
+        TransactionId committed = new TransactionId();
+        log.logXactionBegin(committed);
+        HeapPage p = page(0, 1, 2);
+        assertTrue(logged(committed, p) < size);
+        p.deleteTuple(p.iterator().next());
+        assertTrue(logged(committed, p) < size);
+        log.logCommit(committed);
+        byte[] committedData = p.getPageData();
+        p.setBeforeImage();
+
+        TransactionId aborted = new TransactionId();
+        log.logXactionBegin(aborted);
+        p.insertTuple(Utility.getHeapTuple(new int[] { 3, 3 }));
+        long lsn = log.getNextLsn();
+        assertTrue(logged(aborted, p) < size);
+        log.force(lsn);
+        hf.writePage(p);
+        log.logAbort(aborted);
+        assertTrue(Arrays.equals(committedData, onDisk(0)));
+
+        // none of it reached the table: recovery replays the deltas
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0), empty));
+        log = new LogFile(logPath);
+        log.recover();
+        assertTrue(Arrays.equals(committedData, onDisk(0)));
+
+        // the table already has every update: replaying changes nothing
+        log = new LogFile(logPath);
+        log.recover();
+        assertTrue(Arrays.equals(committedData, onDisk(0)));
+    }
+
+    /**
+     * Unit test for LogFile.logCommit() with group commit: concurrent
+     * committers share one force of the log.
+     */
+    @Test public void groupCommit() throws Exception {
+        final int committers = 4;
+        final TransactionId[] tids = new TransactionId[committers];
+        for (int i = 0; i < committers; i++) {
+            tids[i] = new TransactionId();
+            log.logXactionBegin(tids[i]);
+        }
+        // the leader forces once all of them have committed
+        log.setGroupCommit(5000000, committers);
+        long forces = log.getForceCount();
+        final IOException[] failure = new IOException[1];
+        Thread[] threads = new Thread[committers];
+        for (int i = 0; i < committers; i++) {
+            final TransactionId tid = tids[i];
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        log.logCommit(tid);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertNull(failure[0]);
+        assertEquals(committers, log.getCommitCount());
+        assertEquals(forces + 1, log.getForceCount());
+
+        // without a window a lone commit forces at once
+        log.setGroupCommit(0, committers);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        assertEquals(forces + 2, log.getForceCount());
+    }
+
+    /**
+     * Unit test for LogFile.logWrite() and force(long): records stay in
+     * the log buffer until a force, a force up to a record already on disk
+     * does nothing, and LSNs keep growing across a checkpoint.
+     */
+    @Test public void bufferedRecordsAndLsns() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p = page(0, 1);
+        long first = log.logWrite(tid, p.getBeforeImage(), p);
+        long second = log.logWrite(tid, p.getBeforeImage(), p);
+        assertTrue(second > first);
+        assertEquals(0, log.getLogWriteCount());
+
+        long forces = log.getForceCount();
+        log.force(first);
+        assertEquals(forces + 1, log.getForceCount());
+        assertEquals(log.getNextLsn(), log.getDurableLsn());
+        assertEquals(1, log.getLogWriteCount());
+        log.force(second);
+        assertEquals(forces + 1, log.getForceCount());
+
+        log.logCommit(tid);
+        log.logCheckpoint();
+        TransactionId next = new TransactionId();
+        log.logXactionBegin(next);
+        assertTrue(log.logWrite(next, p.getBeforeImage(), p) > second);
+    }
+
+    /**
+     * Unit test for log segments: a checkpoint drops the segments before
+     * it, keeping a few for reuse, and recovery reads a log written into
+     * reused segments without mistaking their old records for new ones.
+     */
+    @Test public void segmentTruncation() throws Exception {
+        log = new LogFile(logPath, 4096);
+        log.setDeltaLimit(0);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage p = page(2, 1);
+        for (int i = 0; i < 10; i++)
+            log.logWrite(tid, p.getBeforeImage(), p);
+        log.logCommit(tid);
+        assertTrue(log.getSegmentCount() > 20);
+
+        long end = log.getNextLsn();
+        log.logCheckpoint();
+        assertTrue(log.getSegmentCount() <= LogSegments.SPARE_SEGMENTS + 1);
+        assertTrue(log.getSegmentsRecycled() > 0);
+
+        // written over old records, and never installed in the heap file
+        TransactionId next = new TransactionId();
+        log.logXactionBegin(next);
+        HeapPage q = page(1, 5);
+        assertTrue(log.logWrite(next, q.getBeforeImage(), q) > end);
+        log.logCommit(next);
+        byte[] committed = q.getPageData();
+        assertFalse(Arrays.equals(committed, onDisk(1)));
+
+        log = new LogFile(logPath, 4096);
+        log.recover();
+        assertTrue(Arrays.equals(committed, onDisk(1)));
+    }
+
+    /**
+     * Unit test for BufferPool page writes: a written page remembers the
+     * LSN of its update record, and the log is on disk past it.
+     */
+    @Test public void pageLsn() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        Page p = Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(0, p.getLSN());
+        Database.getBufferPool().flushAllPages();
+        assertTrue(p.getLSN() >= LogFile.LONG_SIZE);
+        assertTrue(Database.getLogFile().getDurableLsn() > p.getLSN());
+    }
+
+    /**
+     * Unit test for LogFile.logCheckpoint(): a checkpoint writes no pages,
+     * and recovery still redoes an update logged before it for a page that
+     * was dirty at the checkpoint and never written.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        LogFile dblog = Database.getLogFile();
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        dblog.logXactionBegin(tid);
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        // the update is logged, but its page write never happens
+        dblog.force(dblog.logWrite(tid, p.getBeforeImage(), p));
+        dblog.logCommit(tid);
+        byte[] committed = p.getPageData();
+        assertTrue(bp.dirtyPageTable().containsKey(pid));
+
+        dblog.logCheckpoint();
+        assertNotNull(p.isDirty());
+        assertFalse(Arrays.equals(committed, onDisk(0)));
+
+        log = new LogFile(dblog.logFile);
+        log.recover();
+        assertTrue(Arrays.equals(committed, onDisk(0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
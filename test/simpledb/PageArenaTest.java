@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 10;
+
+    /**
+     * Unit test for PageArena: frames are page sized, distinct and recycled.
+     */
+    @Test public void allocateAndRelease() {
+        PageArena arena = new PageArena(3, BufferPool.getPageSize());
+        assertEquals(3, arena.getFreeFrames());
+        ByteBuffer a = arena.allocate();
+        ByteBuffer b = arena.allocate();
+        ByteBuffer c = arena.allocate();
+        assertNull(arena.allocate());
+        assertTrue(a.isDirect());
+        assertEquals(BufferPool.getPageSize(), a.capacity());
+
+        a.put(0, (byte) 1);
+        assertEquals(0, b.get(0));
+        assertEquals(0, c.get(0));
+
+        arena.release(b);
+        assertEquals(1, arena.getFreeFrames());
+        assertSame(b, arena.allocate());
+    }
+
+    /**
+     * Unit test for an off-heap BufferPool: resident heap pages live in
+     * frames, and pages that were evicted keep their contents.
+     */
+    @Test public void pagesLiveInFrames() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 3 * POOL_PAGES, null, tuples);
+        BufferPool bp = Database.resetBufferPool(
+                new BufferPool(POOL_PAGES, EvictionPolicy.Kind.CLOCK, 1, true));
+        assertTrue(bp.isOffHeap());
+        TransactionId tid = new TransactionId();
+
+        HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(first.isFramed());
+        assertEquals(1, bp.getFramesInUse());
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertEquals(POOL_PAGES, bp.getFramesInUse());
+
+        // the first page was evicted by the scan and copied off its frame
+        assertFalse(first.isFramed());
+        Iterator<Tuple> it = first.iterator();
+        for (int i = 0; i < 504; i++) {
+            Tuple t = it.next();
+            assertEquals(tuples.get(i).get(0).intValue(), ((IntField) t.getField(0)).getValue());
+            assertEquals(tuples.get(i).get(1).intValue(), ((IntField) t.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for an off-heap BufferPool: updates are made in the frame and
+     * written back from it.
+     */
+    @Test public void updatesInFrames() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+        BufferPool bp = Database.resetBufferPool(
+                new BufferPool(POOL_PAGES, EvictionPolicy.Kind.CLOCK, 1, true));
+        TransactionId tid = new TransactionId();
+
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(-1));
+        t.setField(1, new IntField(-2));
+        bp.insertTuple(tid, f.getId(), t);
+        HeapPage page = (HeapPage) bp.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_ONLY);
+        assertTrue(page.isFramed());
+        assertEquals(11, page.numSlots - page.getNumEmptySlots());
+        bp.transactionComplete(tid);
+
+        bp.flushAllPages();
+        bp.discardPage(page.getId());
+        assertFalse(page.isFramed());
+        assertEquals(0, bp.getFramesInUse());
+
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(-1);
+        row.add(-2);
+        tuples.add(row);
+        SystemTestUtil.matchTuples(f, tuples);
+    }
+
+    /**
+     * Unit test for an off-heap BufferPool: threads that read tuples while
+     * other threads evict their pages, and hand the frames to other pages,
+     * still read the values of the right page, including from tuples whose
+     * fields are first read after their page left the pool.
+     */
+    @Test public void readsDuringEviction() throws Exception {
+        final ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 4 * POOL_PAGES, null, tuples);
+        final BufferPool bp = Database.resetBufferPool(
+                new BufferPool(POOL_PAGES, EvictionPolicy.Kind.CLOCK, 1, true));
+        final int pages = f.numPages();
+        final AtomicInteger wrong = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final Random r = new Random(i);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        Tuple[] held = new Tuple[0];
+                        int heldFrom = 0;
+                        for (int n = 0; n < 200; n++) {
+                            TransactionId tid = new TransactionId();
+                            int pageNo = r.nextInt(pages);
+                            HeapPage page = (HeapPage) bp.getPage(tid,
+                                    new HeapPageId(f.getId(), pageNo), Permissions.READ_ONLY);
+                            // read the tuples of the last page now that it may have
+                            // been evicted, and keep this one's for the next round
+                            check(held, heldFrom);
+                            ArrayList<Tuple> onPage = new ArrayList<Tuple>();
+                            Iterator<Tuple> it = page.iterator();
+                            while (it.hasNext())
+                                onPage.add(it.next());
+                            held = onPage.toArray(new Tuple[0]);
+                            heldFrom = pageNo * 504;
+                            bp.transactionComplete(tid);
+                        }
+                        check(held, heldFrom);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+
+                private void check(Tuple[] held, int from) {
+                    for (int k = 0; k < held.length; k++) {
+                        ArrayList<Integer> row = tuples.get(from + k);
+                        if (((IntField) held[k].getField(0)).getValue() != row.get(0)
+                                || ((IntField) held[k].getField(1)).getValue() != row.get(1))
+                            wrong.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        assertEquals(0, failures.get());
+        assertEquals(0, wrong.get());
+        assertTrue(bp.getFramesInUse() <= POOL_PAGES);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
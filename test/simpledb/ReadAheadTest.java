@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 40;
+
+    /**
+     * Unit test for HeapFile.iterator() with read-ahead: a sequential scan
+     * reads pages ahead, uses every page it read ahead and sees all tuples.
+     */
+    @Test public void sequentialScanReadsAhead() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, tuples);
+        BufferPool bp = Database.resetBufferPool(2 * TABLE_PAGES);
+
+        SystemTestUtil.matchTuples(f, tuples);
+        assertTrue(bp.getPrefetchCount() > 0);
+        assertEquals(bp.getPrefetchCount(), bp.getPrefetchHitCount());
+        // the table is big enough to be scanned through a ring
+        assertEquals(TABLE_PAGES, bp.getMissCount() + bp.getRingMissCount());
+        for (int i = 0; i < TABLE_PAGES; i++)
+            assertFalse(bp.isStaged(new HeapPageId(f.getId(), i)));
+    }
+
+    /**
+     * Unit test for ReadAhead: out-of-order requests don't read ahead, and
+     * the pool never stages more than its share of pages.
+     */
+    @Test public void onlySequentialRunsReadAhead() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        BufferPool bp = Database.resetBufferPool(20);
+        TransactionId tid = new TransactionId();
+        ReadAhead ra = new ReadAhead(bp);
+
+        int[] order = { 5, 17, 3, 30, 11 };
+        for (int pageNo : order) {
+            HeapPageId pid = new HeapPageId(f.getId(), pageNo);
+            ra.pageRequested(pid, TABLE_PAGES);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        assertEquals(0, bp.getPrefetchCount());
+
+        for (int pageNo = 12; pageNo < TABLE_PAGES; pageNo++) {
+            HeapPageId pid = new HeapPageId(f.getId(), pageNo);
+            ra.pageRequested(pid, TABLE_PAGES);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        assertTrue(bp.getPrefetchCount() > 0);
+        assertEquals(bp.getPrefetchCount(), bp.getPrefetchHitCount());
+        ra.cancel();
+
+        // staging is bounded
+        bp = Database.resetBufferPool(20);
+        int maxStaged = (int) (20 * BufferPool.READ_AHEAD_FRACTION);
+        for (int pageNo = 0; pageNo < TABLE_PAGES; pageNo++)
+            assertEquals(pageNo < maxStaged, bp.prefetch(new HeapPageId(f.getId(), pageNo)));
+        for (int pageNo = 0; pageNo < maxStaged; pageNo++)
+            bp.cancelPrefetch(new HeapPageId(f.getId(), pageNo));
+        assertTrue(bp.prefetch(new HeapPageId(f.getId(), TABLE_PAGES - 1)));
+    }
+
+    /**
+     * Unit test for BufferPool.prefetch(): a staged copy is dropped when the
+     * page is discarded, and staging never makes a page resident.
+     */
+    @Test public void stagedCopyInvalidated() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        BufferPool bp = Database.resetBufferPool(10);
+        HeapPageId pid = new HeapPageId(f.getId(), 1);
+
+        assertTrue(bp.prefetch(pid));
+        assertFalse(bp.prefetch(pid));
+        assertTrue(bp.isStaged(pid));
+        assertFalse(bp.isResident(pid));
+        bp.discardPage(pid);
+        assertFalse(bp.isStaged(pid));
+
+        assertTrue(bp.prefetch(pid));
+        bp.getPage(new TransactionId(), pid, Permissions.READ_ONLY);
+        assertTrue(bp.isResident(pid));
+        assertFalse(bp.isStaged(pid));
+        assertEquals(1, bp.getPrefetchHitCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private TupleDesc td;
+    private HeapPageId pid;
+
+    @Before public void addTable() throws Exception {
+        td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("name" + (i % 37 == 0 ? "-" + i * 31 : ""), Type.STRING_LEN));
+        return t;
+    }
+
+    private ArrayList<String> contents(HeapPage page) {
+        ArrayList<String> rows = new ArrayList<String>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            rows.add(it.next().toString());
+        return rows;
+    }
+
+    /**
+     * Unit test for SlottedHeapPage.insertTuple() and deleteTuple(): short
+     * strings fit many more tuples than the fixed format, deletes leave
+     * record ids alone, and the space they free is reused after compaction.
+     */
+    @Test public void insertDeleteCompact() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        assertEquals(0, contents(page).size());
+
+        ArrayList<String> expected = new ArrayList<String>();
+        int i = 0;
+        while (page.hasRoomFor(tuple(i))) {
+            Tuple t = tuple(i);
+            page.insertTuple(t);
+            assertEquals(expected.size(), t.getRecordId().getTupleNumber());
+            expected.add(t.toString());
+            i++;
+        }
+        assertTrue(expected.size() > 5 * HeapPage.slotsPerPage(td));
+        assertEquals(expected, contents(page));
+        try {
+            page.insertTuple(tuple(i));
+            fail("expected a DbException");
+        } catch (DbException e) {
+            // the page is full
+        }
+
+        // delete every other tuple; the rest keep their slots
+        ArrayList<Tuple> all = new ArrayList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            all.add(it.next());
+        ArrayList<String> kept = new ArrayList<String>();
+        for (int j = 0; j < all.size(); j++) {
+            if (j % 2 == 0)
+                page.deleteTuple(all.get(j));
+            else
+                kept.add(all.get(j).toString());
+        }
+        assertEquals(kept, contents(page));
+        for (int j = 1; j < all.size(); j += 2)
+            assertEquals(j, all.get(j).getRecordId().getTupleNumber());
+
+        // refilling compacts the records and reuses the empty slots first
+        int refilled = 0;
+        while (page.hasRoomFor(tuple(i))) {
+            Tuple t = tuple(i++);
+            page.insertTuple(t);
+            if (refilled * 2 < all.size())
+                assertEquals(refilled * 2, t.getRecordId().getTupleNumber());
+            refilled++;
+        }
+        assertTrue(refilled >= all.size() / 2);
+        // tuples handed out before the compaction still read their records
+        for (int j = 1; j < all.size(); j += 2)
+            assertEquals(kept.get(j / 2), all.get(j).toString());
+
+        // the bytes give the same page back
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        assertEquals(contents(page), contents(copy));
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for a slotted HeapFile: tuples inserted through the
+     * BufferPool come back from a scan after a flush, on fewer pages than
+     * the fixed format needs, and page images survive the log.
+     */
+    @Test public void slottedHeapFile() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, td, false, true);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertTrue(hf.isSlotted());
+
+        int rows = 3000;
+        ArrayList<String> expected = new ArrayList<String>();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = tuple(i);
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            expected.add(t.toString());
+        }
+        Database.getBufferPool().flushAllPages();
+        assertTrue(hf.numPages() < rows / HeapPage.slotsPerPage(td) / 4);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        ArrayList<String> scanned = new ArrayList<String>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            scanned.add(it.next().toString());
+        it.close();
+        assertEquals(expected, scanned);
+
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 0),
+                Permissions.READ_ONLY);
+        assertTrue(page.getBeforeImage() instanceof SlottedHeapPage);
+
+        File log = File.createTempFile("slotted", ".log");
+        log.deleteOnExit();
+        LogFile lf = new LogFile(log);
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        lf.writePageData(raf, page);
+        raf.seek(0);
+        Page read = lf.readPageData(raf);
+        raf.close();
+        assertTrue(read instanceof SlottedHeapPage);
+        assertEquals(contents(page), contents((HeapPage) read));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
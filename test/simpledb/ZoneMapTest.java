@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 10000;
+
+    private HeapFile empty;
+
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("zonemap", ".dat");
+        f.deleteOnExit();
+        empty = Utility.openHeapFile(2, f);
+        Database.resetBufferPool(200);
+    }
+
+    /** @return the tuples of the table that satisfy ts op v, through a Filter */
+    private ArrayList<Integer> select(HeapFile hf, Predicate.Op op, int v) throws Exception {
+        TransactionId tid = new TransactionId();
+        Filter filter = new Filter(new Predicate(0, op, new IntField(v)),
+                new SeqScan(tid, hf.getId(), "t"));
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        filter.open();
+        while (filter.hasNext())
+            values.add(((IntField) filter.next().getField(0)).getValue());
+        filter.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return values;
+    }
+
+    /**
+     * Unit test for ZoneMap through HeapFile.insertTuple(): pages of an
+     * append-ordered table are skipped unless their range can match.
+     */
+    @Test public void skipOnInsertedPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(new int[] { i, -i }));
+        Database.getBufferPool().transactionComplete(tid);
+        ZoneMap zones = empty.getZoneMap();
+        int pages = empty.numPages();
+        assertTrue(pages > 10);
+        assertEquals(0, zones.getMin(0, 0));
+        assertEquals(-(ROWS - 1), zones.getMin(pages - 1, 1));
+
+        zones.resetStatistics();
+        ArrayList<Integer> values = select(empty, Predicate.Op.GREATER_THAN, ROWS - 100);
+        assertEquals(99, values.size());
+        assertEquals(1, zones.getPagesRead());
+        assertEquals(pages - 1, zones.getPagesSkipped());
+
+        zones.resetStatistics();
+        assertEquals(1, select(empty, Predicate.Op.EQUALS, 1234).size());
+        assertEquals(1, zones.getPagesRead());
+        assertEquals(ROWS - 1, select(empty, Predicate.Op.NOT_EQUALS, 1234).size());
+
+        // two filters both narrow the pages read
+        zones.resetStatistics();
+        Filter both = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(600)),
+                new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(-500)),
+                        new SeqScan(tid, empty.getId(), "t")));
+        both.open();
+        int n = 0;
+        while (both.hasNext()) {
+            both.next();
+            n++;
+        }
+        both.close();
+        assertEquals(99, n);
+        assertEquals(2, zones.getPagesRead());
+    }
+
+    /** @return a table of ROWS tuples (i, i % 10) written without a zone map */
+    private HeapFile encoded() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(i % 10);
+            tuples.add(t);
+        }
+        File f = File.createTempFile("zonemap", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        return Utility.openHeapFile(2, f);
+    }
+
+    /**
+     * Unit test for ZoneMap: pages written without the map are read once
+     * and skipped from then on; deletes never hide the tuples still on a
+     * page, and tuples inserted later widen the zone.
+     */
+    @Test public void learnAndMaintain() throws Exception {
+        HeapFile hf = encoded();
+        ZoneMap zones = hf.getZoneMap();
+        int pages = hf.numPages();
+
+        assertEquals(10, select(hf, Predicate.Op.LESS_THAN, 10).size());
+        assertEquals(pages, zones.getPagesRead());
+        zones.resetStatistics();
+        assertEquals(10, select(hf, Predicate.Op.LESS_THAN, 10).size());
+        assertEquals(1, zones.getPagesRead());
+
+        // empty the first page; the scan goes on past it
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> first = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getRecordId().getPageId().getPageNumber() == 0)
+                first.add(t);
+        }
+        it.close();
+        for (Tuple t : first)
+            Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(0, select(hf, Predicate.Op.LESS_THAN, 10).size());
+        assertEquals(ROWS - first.size(), select(hf, Predicate.Op.GREATER_THAN_OR_EQ, 0).size());
+
+        // an insert lands on the emptied page and widens its zone
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { ROWS * 2, 0 }));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS * 2, zones.getMax(0, 0));
+        assertEquals(1, select(hf, Predicate.Op.GREATER_THAN, ROWS).size());
+    }
+
+    /**
+     * Unit test for ZoneMap.learn(): a transaction that scans a page after
+     * deleting from it does not teach the map a zone that the rollback of
+     * the delete makes wrong.
+     */
+    @Test public void abortedDeleteNotLearned() throws Exception {
+        HeapFile hf = encoded();
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        Tuple smallest = page.iterator().next();
+        assertEquals(0, ((IntField) smallest.getField(0)).getValue());
+        Database.getBufferPool().deleteTuple(tid, smallest);
+
+        // the first scan of the page sees the delete
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(ROWS - 1, n);
+        assertFalse(hf.getZoneMap().isKnown(0));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        assertEquals(1, select(hf, Predicate.Op.EQUALS, 0).size());
+        assertEquals(0, hf.getZoneMap().getMin(0, 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
@@ -0,0 +1,42 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds a B+ tree over a table with a sort budget much smaller than the
+ * table and prints the build throughput, next to the time the in-memory
+ * BTreeFileEncoder path takes over the same text input.
+ */
+public class BTreeBulkBuildTest extends SimpleDbTestBase {
+    private static final int ROWS = 400000;
+    private static final long MEMORY_BYTES = 4L << 20;
+
+    @Test public void testBulkBuild() throws Exception {
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        File bFile = File.createTempFile("bulkbtree", ".dat");
+        bFile.deleteOnExit();
+
+        BTreeBulkBuilder builder = new BTreeBulkBuilder(0, MEMORY_BYTES, 1.0);
+        // the first build warms up the JIT
+        builder.build(source, bFile);
+        BTreeFile bf = builder.build(source, bFile);
+        assertEquals(ROWS, builder.getTupleCount());
+        assertEquals(builder.getPagesWritten(), bf.numPages());
+        double tableMB = (double) source.numPages() * BufferPool.getPageSize() / (1 << 20);
+
+        System.out.printf("BTreeBulkBuildTest: %d rows (%.1f MB) with a %d MB budget: %d runs, "
+                + "%d leaf+internal pages, %.1f MB/s%n", ROWS, tableMB, MEMORY_BYTES >> 20,
+                builder.getRunCount(), builder.getPagesWritten(), builder.getThroughputMBps());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeBulkBuildTest.class);
+    }
+}
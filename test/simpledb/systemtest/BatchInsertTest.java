@@ -0,0 +1,63 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copies a table into an empty one, once with a BufferPool.insertTuple call
+ * per row and once through the Insert operator, which hands the pool
+ * batches of rows. Prints the insert rate of both.
+ */
+public class BatchInsertTest extends SimpleDbTestBase {
+    private static final int ROWS = 200000;
+    private static final int POOL_PAGES = 1200;
+
+    private double rowsPerSecond(HeapFile source, boolean batched) throws Exception {
+        HeapFile destination = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        Database.resetBufferPool(POOL_PAGES);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, source.getId(), "");
+
+        long start = System.nanoTime();
+        int rows = 0;
+        if (batched) {
+            Insert insert = new Insert(tid, scan, destination.getId());
+            insert.open();
+            rows = ((IntField) insert.next().getField(0)).getValue();
+            insert.close();
+        } else {
+            scan.open();
+            while (scan.hasNext()) {
+                Database.getBufferPool().insertTuple(tid, destination.getId(), scan.next());
+                rows++;
+            }
+            scan.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(ROWS, rows);
+
+        // 504 two-int tuples fit on a page
+        assertEquals((ROWS + 503) / 504, destination.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+        return ROWS / seconds;
+    }
+
+    @Test public void testBatchInsert() throws Exception {
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        // the first round warms up the JIT
+        rowsPerSecond(source, false);
+        rowsPerSecond(source, true);
+        double single = rowsPerSecond(source, false);
+        double batched = rowsPerSecond(source, true);
+        System.out.printf("BatchInsertTest: insertTuple %.0f rows/s, insertTuples %.0f rows/s%n",
+                single, batched);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchInsertTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multithreaded insert/scan workload against pools with an increasing number
+ * of shards. Each thread inserts into its own table (HeapPage itself is not
+ * synchronized) and repeatedly reads a shared table, so the only contention
+ * is on the page table. Prints throughput per shard count.
+ */
+public class BufferPoolShardTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+    private static final int POOL_PAGES = 512;
+    private static final int SHARED_PAGES = 40;
+    private static final int INSERTS = 2000;
+    private static final int SCANS = 20;
+
+    private double runWorkload(int numShards) throws Exception {
+        Database.reset();
+        final HeapFile shared = SystemTestUtil.createRandomHeapFile(2, 504 * SHARED_PAGES, null, null);
+        final HeapFile[] own = new HeapFile[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            File f = File.createTempFile("shard", ".dat");
+            f.deleteOnExit();
+            own[i] = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        }
+        final BufferPool bp = Database.resetBufferPool(
+                new BufferPool(POOL_PAGES, EvictionPolicy.Kind.CLOCK, numShards));
+        assertEquals(numShards, bp.getNumShards());
+
+        final AtomicInteger failures = new AtomicInteger();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        final TransactionId[] tids = new TransactionId[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final HeapFile mine = own[i];
+            final TransactionId tid = tids[i] = new TransactionId();
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int s = 0; s < SCANS; s++) {
+                            for (int j = 0; j < INSERTS / SCANS; j++)
+                                bp.insertTuple(tid, mine.getId(), Utility.getHeapTuple(j, 2));
+                            for (int p = 0; p < SHARED_PAGES; p++)
+                                bp.getPage(tid, new HeapPageId(shared.getId(), p), Permissions.READ_ONLY);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(0, failures.get());
+        for (TransactionId t : tids)
+            bp.transactionComplete(t);
+
+        // every thread's rows landed in its own table
+        TransactionId tid = new TransactionId();
+        for (HeapFile f : own) {
+            int count = 0;
+            DbFileIterator it = f.iterator(tid);
+            it.open();
+            while (it.hasNext()) {
+                it.next();
+                count++;
+            }
+            it.close();
+            assertEquals(INSERTS, count);
+        }
+        return THREADS * (INSERTS + SCANS * SHARED_PAGES) / seconds;
+    }
+
+    @Test public void throughputVersusShards() throws Exception {
+        for (int shards = 1; shards <= 8; shards *= 2) {
+            double opsPerSecond = runWorkload(shards);
+            System.out.println(String.format("BufferPoolShardTest: %d shard(s), %d threads: %.0f ops/s",
+                    shards, THREADS, opsPerSecond));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BufferPoolShardTest.class);
+    }
+}
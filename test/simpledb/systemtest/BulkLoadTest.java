@@ -0,0 +1,71 @@
+package simpledb.systemtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Converts the same text file with HeapFileEncoder and with
+ * HeapFileBulkLoader, and prints the input throughput of both.
+ */
+public class BulkLoadTest extends SimpleDbTestBase {
+    private static final int ROWS = 1000000;
+    private static final int COLUMNS = 3;
+
+    @Test public void testBulkLoad() throws Exception {
+        File input = File.createTempFile("bulkload", ".txt");
+        input.deleteOnExit();
+        BufferedWriter w = new BufferedWriter(new FileWriter(input));
+        Random r = new Random(42);
+        for (int i = 0; i < ROWS; i++)
+            w.write(i + "," + r.nextInt() + "," + r.nextInt(1000) + "\n");
+        w.close();
+        double mb = input.length() / (double) (1 << 20);
+
+        File encoded = File.createTempFile("encoded", ".dat");
+        encoded.deleteOnExit();
+        File loaded = File.createTempFile("loaded", ".dat");
+        loaded.deleteOnExit();
+        TupleDesc td = Utility.getTupleDesc(COLUMNS);
+        HeapFileBulkLoader loader = new HeapFileBulkLoader(td);
+
+        // the first round warms up the JIT
+        double encoderSeconds = 0, loaderSeconds = 0;
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            HeapFileEncoder.convert(input, encoded, BufferPool.getPageSize(), COLUMNS);
+            encoderSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            loader.convert(input, loaded);
+            loaderSeconds = (System.nanoTime() - start) / 1e9;
+        }
+        assertEquals(ROWS, loader.getRowsLoaded());
+
+        HeapFile f = loader.load(input, loaded, "loaded");
+        int rows = 0;
+        DbFileIterator it = f.iterator(new TransactionId());
+        it.open();
+        while (it.hasNext()) {
+            assertEquals(rows, ((IntField) it.next().getField(0)).getValue());
+            rows++;
+        }
+        it.close();
+        assertEquals(ROWS, rows);
+
+        System.out.printf("BulkLoadTest: HeapFileEncoder %.1f MB/s, HeapFileBulkLoader %.1f MB/s (%d threads)%n",
+                mb / encoderSeconds, mb / loaderSeconds, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BulkLoadTest.class);
+    }
+}
@@ -0,0 +1,109 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Takes checkpoints of a large pool full of dirty pages while another thread
+ * commits transactions, once with the pages flushed inside the checkpoint as
+ * it used to be done and once fuzzily, and prints how long the checkpoints
+ * took and the longest a commit waited meanwhile.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4000;
+    private static final int DIRTY_PAGES = 3000;
+    private static final int ROUNDS = 3;
+
+    private volatile boolean committing;
+
+    /** Dirty DIRTY_PAGES pages of a fresh table, in a committed transaction. */
+    private void dirty(LogFile log) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        for (int i = 0; i < DIRTY_PAGES; i++) {
+            HeapPage p = new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(new int[] { i, i }));
+            hf.writePage(p);
+        }
+        for (int i = 0; i < DIRTY_PAGES; i++) {
+            HeapPage p = (HeapPage) bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, p.iterator().next());
+        }
+        log.logCommit(tid);
+    }
+
+    /** @return the checkpoint time and the longest commit meanwhile, in ms */
+    private double[] checkpoint(final LogFile log, boolean flush) throws Exception {
+        dirty(log);
+        final long[] longest = new long[1];
+        final IOException[] failure = new IOException[1];
+        committing = true;
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    while (committing) {
+                        long start = System.nanoTime();
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                        longest[0] = Math.max(longest[0], System.nanoTime() - start);
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        committer.start();
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        if (flush) {
+            // the checkpoint as it was: pages flushed with both locks held
+            synchronized (Database.getBufferPool()) {
+                synchronized (log) {
+                    Database.getBufferPool().flushAllPages();
+                    log.logCheckpoint();
+                }
+            }
+        } else {
+            log.logCheckpoint();
+        }
+        long checkpoint = System.nanoTime() - start;
+        Thread.sleep(50);
+        committing = false;
+        committer.join();
+        assertNull(failure[0]);
+        assertEquals(flush, Database.getBufferPool().dirtyPageTable().isEmpty());
+        Database.getBufferPool().flushAllPages();
+        return new double[] { checkpoint / 1e6, longest[0] / 1e6 };
+    }
+
+    @Test public void testCheckpointPause() throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        LogFile log = Database.getLogFile();
+        double[] flushing = { Double.MAX_VALUE, 0 }, fuzzy = { Double.MAX_VALUE, 0 };
+        for (int round = 0; round < ROUNDS; round++) {
+            double[] f = checkpoint(log, true);
+            flushing[0] = Math.min(flushing[0], f[0]);
+            flushing[1] = Math.max(flushing[1], f[1]);
+            f = checkpoint(log, false);
+            fuzzy[0] = Math.min(fuzzy[0], f[0]);
+            fuzzy[1] = Math.max(fuzzy[1], f[1]);
+        }
+
+        System.out.printf("CheckpointTest: %d dirty pages; flushing checkpoint %.1f ms, longest commit %.1f ms; "
+                + "fuzzy checkpoint %.1f ms, longest commit %.1f ms%n", DIRTY_PAGES,
+                flushing[0], flushing[1], fuzzy[0], fuzzy[1]);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sums two columns of a wide table stored as a HeapFile and as a ColumnFile,
+ * and prints the pages each scan reads and its throughput.
+ */
+public class ColumnScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 200000;
+    private static final int COLUMNS = 20;
+    private static final boolean[] READ = new boolean[COLUMNS];
+    static {
+        READ[3] = true;
+        READ[7] = true;
+    }
+
+    private long sum(int tableId, boolean[] columns) throws Exception {
+        SeqScan ss = new SeqScan(new TransactionId(), tableId, "t", columns);
+        long sum = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            sum += ((IntField) t.getField(3)).getValue() + ((IntField) t.getField(7)).getValue();
+        }
+        ss.close();
+        return sum;
+    }
+
+    @Test public void testColumnScan() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, null);
+
+        File f = File.createTempFile("columnscan", ".dat");
+        f.deleteOnExit();
+        ColumnFile cf = new ColumnFile(f, hf.getTupleDesc());
+        Database.getCatalog().addTable(cf, SystemTestUtil.getUUID());
+        for (int i = 0; i < COLUMNS; i++)
+            cf.getColumnFile(i).deleteOnExit();
+        Database.resetBufferPool(4 * COLUMNS);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        ArrayList<Tuple> batch = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            batch.add(it.next());
+            if (batch.size() == 1000 || !it.hasNext()) {
+                Database.getBufferPool().insertTuples(tid, cf.getId(), batch.iterator());
+                Database.getBufferPool().flushAllPages();
+                batch.clear();
+            }
+        }
+        it.close();
+
+        // the first round warms up the JIT
+        long heapSum = 0, columnSum = 0;
+        double heapSeconds = 0, columnSeconds = 0;
+        long heapPages = 0, columnPages = 0;
+        for (int round = 0; round < 2; round++) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            long start = System.nanoTime();
+            heapSum = sum(hf.getId(), null);
+            heapSeconds = (System.nanoTime() - start) / 1e9;
+            heapPages = Database.getBufferPool().getMissCount() + Database.getBufferPool().getRingMissCount();
+
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            start = System.nanoTime();
+            columnSum = sum(cf.getId(), READ);
+            columnSeconds = (System.nanoTime() - start) / 1e9;
+            columnPages = Database.getBufferPool().getMissCount() + Database.getBufferPool().getRingMissCount();
+        }
+        assertEquals(heapSum, columnSum);
+        assertEquals(cf.numPages(READ), columnPages);
+
+        System.out.printf("ColumnScanTest: 2 of %d columns, %d rows: HeapFile %d pages in %.3f s, "
+                + "ColumnFile %d pages in %.3f s%n", COLUMNS, ROWS, heapPages, heapSeconds,
+                columnPages, columnSeconds);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ColumnScanTest.class);
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Commits transactions from a growing number of threads, with and without
+ * a group commit window, and prints commits per second and per log force.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int COMMITS_PER_THREAD = 200;
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+    private static final long WINDOW_MICROS = 500;
+
+    /** @return commits per second */
+    private double commit(final LogFile log, int threads) throws Exception {
+        final IOException[] failure = new IOException[1];
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < COMMITS_PER_THREAD; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : committers)
+            t.start();
+        for (Thread t : committers)
+            t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertNull(failure[0]);
+        return threads * COMMITS_PER_THREAD / seconds;
+    }
+
+    @Test public void testGroupCommit() throws Exception {
+        File f = File.createTempFile("groupcommit", ".log");
+        f.deleteOnExit();
+        for (long window : new long[] { 0, WINDOW_MICROS }) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("GroupCommitTest: window %d us:", window));
+            for (int threads : THREADS) {
+                LogFile log = new LogFile(f);
+                log.setGroupCommit(window, threads);
+                double rate = commit(log, threads);
+                assertEquals(threads * COMMITS_PER_THREAD, log.getCommitCount());
+                assertTrue(log.getForceCount() <= log.getCommitCount());
+                sb.append(String.format(" %d threads %.0f commits/s (%.1f per force);", threads, rate,
+                        (double) log.getCommitCount() / log.getForceCount()));
+            }
+            System.out.println(sb);
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
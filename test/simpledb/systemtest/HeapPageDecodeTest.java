@@ -0,0 +1,81 @@
+package simpledb.systemtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Loads every page of a wide table straight from its file and reads either
+ * one column or all of them, the way a selective Filter or a Project would
+ * compared to a full scan. Prints CPU time and allocation per page load.
+ */
+public class HeapPageDecodeTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 8;
+    private static final int PAGES = 20;
+    private static final int ROUNDS = 50;
+
+    /** @return bytes allocated so far by this thread, or -1 if unknown */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private long loadPages(HeapFile f, int columnsRead) {
+        long tuples = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int p = 0; p < PAGES; p++) {
+                HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), p));
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    Tuple t = it.next();
+                    for (int c = 0; c < columnsRead; c++)
+                        t.getField(c);
+                    tuples++;
+                }
+            }
+        }
+        return tuples;
+    }
+
+    private void measure(HeapFile f, int columnsRead) {
+        // warm up the JIT before timing
+        loadPages(f, columnsRead);
+        HeapPage.resetDecodeStatistics();
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        long tuples = loadPages(f, columnsRead);
+        long nanos = System.nanoTime() - start;
+        bytes = allocatedBytes() - bytes;
+
+        assertEquals(tuples, HeapPage.getTuplesDecoded());
+        assertEquals(tuples * columnsRead, HeapPage.getFieldsDecoded());
+        int loads = ROUNDS * PAGES;
+        System.out.println("HeapPageDecodeTest: " + columnsRead + " of " + COLUMNS
+                + " columns: " + (nanos / loads) + " ns/page, "
+                + (bytes < 0 ? "n/a" : Long.toString(bytes / loads)) + " bytes/page");
+    }
+
+    @Test public void testDecodeCost() throws Exception {
+        int rows = 125 * PAGES; // 125 eight-int tuples per 4k page
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, null, null);
+        assertEquals(PAGES, f.numPages());
+
+        measure(f, 1);
+        measure(f, COLUMNS);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HeapPageDecodeTest.class);
+    }
+}
@@ -0,0 +1,164 @@
+package simpledb.systemtest;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs many threads of short transactions, first against a bare
+ * LockManager with one stripe and with the default number, then through
+ * the BufferPool inserting into a shared table, breaking deadlocks with
+ * lock timeouts alone and then with deadlock detection, and prints the
+ * transactions per second, the lock waits, the deadlocks and the aborts.
+ */
+public class LockStressTest extends SimpleDbTestBase {
+    private static final int THREADS = 16;
+    private static final int LOCK_TXNS = 20000;
+    private static final int TABLE_PAGES = 4096;
+    private static final int READS = 8;
+    private static final int INSERT_TXNS = 40;
+    private static final long TIMEOUT_MILLIS = 20;
+
+    /** @return the transactions per second against a bare lock manager */
+    private double lockTable(final LockManager locks) throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final Random r = new Random(i);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int n = 0; n < LOCK_TXNS / THREADS; n++) {
+                            TransactionId tid = new TransactionId();
+                            try {
+                                for (int k = 0; k < READS; k++)
+                                    locks.acquire(tid, new HeapPageId(1, r.nextInt(TABLE_PAGES)),
+                                            Permissions.READ_ONLY);
+                                locks.acquire(tid, new HeapPageId(1, r.nextInt(TABLE_PAGES)),
+                                        Permissions.READ_WRITE);
+                            } catch (TransactionAbortedException e) {
+                                // counted by the lock manager
+                            }
+                            locks.releaseAll(tid);
+                        }
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(0, failures.get());
+        return LOCK_TXNS / seconds;
+    }
+
+    @Test public void testLockTable() throws Exception {
+        StringBuilder sb = new StringBuilder("LockStressTest: lock table, " + THREADS + " threads:");
+        for (int stripes : new int[] { 1, LockManager.DEFAULT_STRIPES }) {
+            LockManager locks = new LockManager(stripes);
+            double best = 0;
+            for (int round = 0; round < 3; round++)
+                best = Math.max(best, lockTable(locks));
+            sb.append(String.format(" %d stripe(s) %.0f txn/s, %d waits, %d deadlocks;", stripes, best,
+                    locks.getWaitCount(), locks.getDeadlockCount()));
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * Insert into a shared table from many threads, retrying aborted
+     * transactions, and check every committed insert and no aborted one
+     * made it.
+     *
+     * @param detection true to break deadlocks by detecting them, false to
+     *   rely on a short lock timeout
+     */
+    private void inserts(boolean detection) throws Exception {
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        LockManager locks = bp.getLockManager();
+        locks.setDeadlockDetection(detection);
+        if (!detection)
+            locks.setTimeout(TIMEOUT_MILLIS);
+        final int pages = hf.numPages();
+        final AtomicInteger committed = new AtomicInteger();
+        final AtomicInteger aborted = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final Random r = new Random(i);
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        int done = 0;
+                        while (done < INSERT_TXNS) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            try {
+                                bp.getPage(t.getId(), new HeapPageId(hf.getId(), r.nextInt(pages)),
+                                        Permissions.READ_ONLY);
+                                bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(done, 2));
+                                t.commit();
+                                committed.incrementAndGet();
+                                done++;
+                            } catch (TransactionAbortedException e) {
+                                t.transactionComplete(true);
+                                aborted.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(0, failures.get());
+
+        // every committed insert is there, and no aborted one
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        int count = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(504 * 4 + THREADS * INSERT_TXNS, count);
+
+        System.out.printf("LockStressTest: inserts, %d threads, %s: %.0f commits/s, %d aborts, "
+                + "%d lock waits, %d deadlocks, %.1f ms waiting, longest transaction wait %.1f ms%n",
+                THREADS, detection ? "deadlock detection" : TIMEOUT_MILLIS + " ms timeout",
+                committed.get() / seconds, aborted.get(), locks.getWaitCount(), locks.getDeadlockCount(),
+                locks.getTotalWaitNanos() / 1e6, locks.getLongestWaitNanos() / 1e6);
+    }
+
+    @Test public void testConcurrentInserts() throws Exception {
+        inserts(false);
+        inserts(true);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LockStressTest.class);
+    }
+}
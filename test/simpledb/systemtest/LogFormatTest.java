@@ -0,0 +1,88 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logs the same updates with compact page images and with the images that
+ * name their page classes, recovers from each log, and prints the log bytes
+ * per update and the records recovery reads per second.
+ */
+public class LogFormatTest extends SimpleDbTestBase {
+    private static final int ROWS = 25000;
+    private static final int UPDATES = 4000;
+    private static final int UPDATES_PER_TRANSACTION = 10;
+    private static final int ROUNDS = 6;
+
+    /** @return the records recovery read per second, after logging UPDATES updates to log */
+    private double logAndRecover(HeapFile hf, File log, long[] bytes) throws Exception {
+        log.delete();
+        LogFile lf = new LogFile(log);
+        // compare page images, not the deltas of these unchanged pages
+        lf.setDeltaLimit(0);
+        int records = 0;
+        TransactionId tid = null;
+        for (int i = 0; i < UPDATES; i++) {
+            if (i % UPDATES_PER_TRANSACTION == 0) {
+                tid = new TransactionId();
+                lf.logXactionBegin(tid);
+                records++;
+            }
+            Page p = hf.readPage(new HeapPageId(hf.getId(), i % hf.numPages()));
+            lf.logWrite(tid, p, p);
+            records++;
+            if (i % UPDATES_PER_TRANSACTION == UPDATES_PER_TRANSACTION - 1) {
+                lf.logCommit(tid);
+                records++;
+            }
+        }
+        bytes[0] = lf.getNextLsn();
+
+        long start = System.nanoTime();
+        new LogFile(log).recover();
+        return records / ((System.nanoTime() - start) / 1e9);
+    }
+
+    @Test public void testLogFormat() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        File log = File.createTempFile("logformat", ".log");
+        log.deleteOnExit();
+
+        // recovery is dominated by page writes and the JIT, so keep the
+        // best of several rounds
+        long[] compactBytes = new long[1], namedBytes = new long[1];
+        double compactRate = 0, namedRate = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            compactRate = Math.max(compactRate, logAndRecover(hf, log, compactBytes));
+            LogFile.unregisterPageType(HeapPage.class);
+            try {
+                namedRate = Math.max(namedRate, logAndRecover(hf, log, namedBytes));
+            } finally {
+                LogFile.registerPageType(1, HeapPage.class, new LogPageFactory() {
+                    public PageId createId(int[] id) {
+                        return new HeapPageId(id[0], id[1]);
+                    }
+                    public Page create(int[] id, byte[] data) throws IOException {
+                        return new HeapPage(new HeapPageId(id[0], id[1]), data);
+                    }
+                });
+            }
+        }
+        assertTrue(compactBytes[0] < namedBytes[0]);
+
+        System.out.printf("LogFormatTest: %d updates; class names %.1f bytes/update, %.0f records/s recovered; "
+                + "compact %.1f bytes/update, %.0f records/s recovered%n", UPDATES,
+                (double) namedBytes[0] / UPDATES, namedRate, (double) compactBytes[0] / UPDATES, compactRate);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogFormatTest.class);
+    }
+}
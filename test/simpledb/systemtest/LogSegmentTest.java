@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Appends full page images to a log of small segments from one thread while
+ * another takes checkpoints that truncate it, and prints the longest append
+ * and checkpoint, and how many segments were created and reused.
+ */
+public class LogSegmentTest extends SimpleDbTestBase {
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int CHECKPOINTS = 50;
+
+    private volatile boolean appending;
+
+    @Test public void testAppendDuringTruncation() throws Exception {
+        File f = File.createTempFile("logsegments", ".log");
+        f.deleteOnExit();
+        final LogFile log = new LogFile(f, SEGMENT_SIZE);
+        log.setDeltaLimit(0);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        final HeapPage p = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        p.insertTuple(Utility.getHeapTuple(new int[] { 1, 1 }));
+
+        final long[] stats = new long[2]; // appends, longest append in ns
+        final IOException[] failure = new IOException[1];
+        appending = true;
+        Thread appender = new Thread() {
+            public void run() {
+                try {
+                    while (appending) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        for (int i = 0; i < 8; i++) {
+                            long start = System.nanoTime();
+                            log.logWrite(tid, p.getBeforeImage(), p);
+                            stats[0]++;
+                            stats[1] = Math.max(stats[1], System.nanoTime() - start);
+                        }
+                        log.logCommit(tid);
+                    }
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        appender.start();
+        long longest = 0;
+        for (int i = 0; i < CHECKPOINTS; i++) {
+            Thread.sleep(20);
+            long start = System.nanoTime();
+            log.logCheckpoint();
+            longest = Math.max(longest, System.nanoTime() - start);
+        }
+        appending = false;
+        appender.join();
+        assertNull(failure[0]);
+        assertTrue(log.getSegmentsRecycled() > 0);
+
+        System.out.printf("LogSegmentTest: %d appends of %d MB, longest append %.1f ms; "
+                + "longest checkpoint %.1f ms; %d segments created, %d reused, %d left%n",
+                stats[0], log.getNextLsn() >> 20, stats[1] / 1e6, longest / 1e6,
+                log.getSegmentsCreated(), log.getSegmentsRecycled(), log.getSegmentCount());
+
+        File[] files = f.getAbsoluteFile().getParentFile().listFiles();
+        for (File s : files) {
+            if (s.getName().startsWith(f.getName() + "."))
+                s.delete();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogSegmentTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Inserts tuples one per transaction, logging each page write with DELTA
+ * records and with full page images, and prints the log bytes per inserted
+ * tuple and how long recovery from each log takes.
+ */
+public class LogVolumeTest extends SimpleDbTestBase {
+    private static final int TUPLES = 5000;
+
+    /** @return the log bytes per tuple, after inserting TUPLES tuples and recovering */
+    private double insertAndRecover(HeapFile hf, File log, int deltaLimit, double[] recoverySeconds)
+        throws Exception {
+        log.delete();
+        LogFile lf = new LogFile(log);
+        lf.setDeltaLimit(deltaLimit);
+        HeapPage p = null;
+        int pgNo = 0;
+        for (int i = 0; i < TUPLES; i++) {
+            if (p == null || p.getNumEmptySlots() == 0) {
+                HeapPageId pid = new HeapPageId(hf.getId(), pgNo++);
+                p = new HeapPage(pid, HeapPage.createEmptyPageData());
+                hf.writePage(p);
+            }
+            TransactionId tid = new TransactionId();
+            lf.logXactionBegin(tid);
+            p.insertTuple(Utility.getHeapTuple(new int[] { i, i * 31 }));
+            lf.force(lf.logWrite(tid, p.getBeforeImage(), p));
+            lf.logCommit(tid);
+            p.setBeforeImage();
+        }
+        byte[] last = p.getPageData();
+        long bytes = lf.getNextLsn();
+
+        // the table never saw the inserts; recovery has to install them all
+        for (int i = 0; i < pgNo; i++)
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+        long start = System.nanoTime();
+        new LogFile(log).recover();
+        recoverySeconds[0] = (System.nanoTime() - start) / 1e9;
+        assertTrue(Arrays.equals(last, hf.readPage(p.getId()).getPageData()));
+        return (double) bytes / TUPLES;
+    }
+
+    @Test public void testLogVolume() throws Exception {
+        File f = File.createTempFile("logvolume", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getPath(), 2);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        File log = File.createTempFile("logvolume", ".log");
+        log.deleteOnExit();
+
+        double[] deltaSeconds = new double[1], fullSeconds = new double[1];
+        double delta = insertAndRecover(hf, log, Integer.MAX_VALUE, deltaSeconds);
+        double full = insertAndRecover(hf, log, 0, fullSeconds);
+        assertTrue(delta < full);
+
+        System.out.printf("LogVolumeTest: %d inserts; full images %.1f log bytes/tuple, recovered in %.3f s; "
+                + "deltas %.1f log bytes/tuple, recovered in %.3f s%n", TUPLES,
+                full, fullSeconds[0], delta, deltaSeconds[0]);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogVolumeTest.class);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Repeated sequential scans over a table several times larger than the
+ * buffer pool, read once through the FileChannel and once through a memory
+ * mapping of the same file. Every scan misses the pool, so the difference is
+ * the cost of readPage. Prints readPage and scan throughput for both.
+ */
+public class MappedScanTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 64;
+    private static final int TABLE_PAGES = 1000;
+    private static final int SCANS = 5;
+
+    private double scanSeconds(File file, TupleDesc td, boolean mapped, int expectedRows)
+            throws Exception {
+        HeapFile f = new HeapFile(file, td, mapped);
+        Database.getCatalog().addTable(f);
+        Database.resetBufferPool(POOL_PAGES);
+        TransactionId tid = new TransactionId();
+
+        // the first scan warms up the JIT and the OS page cache
+        long start = 0;
+        for (int i = 0; i <= SCANS; i++) {
+            if (i == 1)
+                start = System.nanoTime();
+            SeqScan scan = new SeqScan(tid, f.getId(), "t");
+            scan.open();
+            int rows = 0;
+            while (scan.hasNext()) {
+                scan.next().getField(0);
+                rows++;
+            }
+            scan.close();
+            assertEquals(expectedRows, rows);
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private double readSeconds(File file, TupleDesc td, boolean mapped) throws Exception {
+        HeapFile f = new HeapFile(file, td, mapped);
+        Database.getCatalog().addTable(f);
+        long start = 0;
+        for (int i = 0; i <= SCANS; i++) {
+            if (i == 1)
+                start = System.nanoTime();
+            for (int p = 0; p < TABLE_PAGES; p++) {
+                HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), p));
+                assertEquals(0, page.getNumEmptySlots());
+            }
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    @Test public void testMappedScan() throws Exception {
+        int rows = 504 * TABLE_PAGES;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        assertEquals(TABLE_PAGES, f.numPages());
+
+        double mb = (double) SCANS * TABLE_PAGES * BufferPool.getPageSize() / (1 << 20);
+        double channel = readSeconds(f.getFile(), f.getTupleDesc(), false);
+        double mapped = readSeconds(f.getFile(), f.getTupleDesc(), true);
+        System.out.printf("MappedScanTest: readPage channel %.1f MB/s, mmap %.1f MB/s%n",
+                mb / channel, mb / mapped);
+
+        channel = scanSeconds(f.getFile(), f.getTupleDesc(), false, rows);
+        mapped = scanSeconds(f.getFile(), f.getTupleDesc(), true, rows);
+        System.out.printf("MappedScanTest: SeqScan channel %.1f MB/s, mmap %.1f MB/s%n",
+                mb / channel, mb / mapped);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(MappedScanTest.class);
+    }
+}
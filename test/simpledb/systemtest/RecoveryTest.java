@@ -0,0 +1,98 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Logs committed inserts spread over a table, then recovers from the log
+ * with different numbers of recovery threads, and prints the restart time
+ * for each log size and thread count.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int PAGES = 4000;
+    private static final int[] UPDATES = { 20000, 80000 };
+    private static final int UPDATES_PER_TRANSACTION = 10;
+    private static final int ROUNDS = 3;
+
+    private long logBytes;
+
+    /** Log UPDATES inserts to random pages of hf, in committed transactions. */
+    private HeapPage[] log(HeapFile hf, File f, int updates) throws Exception {
+        f.delete();
+        LogFile lf = new LogFile(f);
+        HeapPage[] pages = new HeapPage[PAGES];
+        for (int i = 0; i < PAGES; i++)
+            pages[i] = new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData());
+        Random r = new Random(updates);
+        TransactionId tid = null;
+        for (int i = 0; i < updates; i++) {
+            if (i % UPDATES_PER_TRANSACTION == 0) {
+                tid = new TransactionId();
+                lf.logXactionBegin(tid);
+            }
+            HeapPage p = pages[r.nextInt(PAGES)];
+            p.insertTuple(Utility.getHeapTuple(new int[] { i, i }));
+            lf.logWrite(tid, p.getBeforeImage(), p);
+            p.setBeforeImage();
+            if (i % UPDATES_PER_TRANSACTION == UPDATES_PER_TRANSACTION - 1)
+                lf.logCommit(tid);
+        }
+        logBytes = lf.getNextLsn();
+        return pages;
+    }
+
+    /** @return the time recovery took, in seconds */
+    private double recover(HeapFile hf, File f, int threads) throws Exception {
+        // the table never saw the inserts; recovery has to install them all
+        for (int i = 0; i < PAGES; i++)
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), i), HeapPage.createEmptyPageData()));
+        LogFile lf = new LogFile(f);
+        lf.setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        lf.recover();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    @Test public void testParallelRecovery() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        File f = File.createTempFile("recovery", ".log");
+        f.deleteOnExit();
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threads = cores > 4 ? new int[] { 1, 2, 4, cores } : new int[] { 1, 2, 4 };
+
+        for (int updates : UPDATES) {
+            HeapPage[] pages = log(hf, f, updates);
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("RecoveryTest: %d updates, %.1f MB of log:", updates, logBytes / 1e6));
+            for (int t : threads) {
+                // the JIT and the page cache favor later rounds; keep the best
+                double best = Double.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++)
+                    best = Math.min(best, recover(hf, f, t));
+                for (int i = 0; i < PAGES; i += PAGES / 16) {
+                    byte[] onDisk = hf.readPage(new HeapPageId(hf.getId(), i)).getPageData();
+                    assertArrayEquals(pages[i].getPageData(), onDisk);
+                }
+                sb.append(String.format(" %d threads %.3f s;", t, best));
+            }
+            System.out.println(sb);
+        }
+
+        File[] files = f.getAbsoluteFile().getParentFile().listFiles();
+        for (File s : files) {
+            if (s.getName().startsWith(f.getName() + "."))
+                s.delete();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
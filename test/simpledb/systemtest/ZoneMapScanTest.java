@@ -0,0 +1,70 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a selective range filter over an append-ordered table twice, once
+ * while the zone map is learned and once with it, and prints the pages each
+ * scan skipped and read.
+ */
+public class ZoneMapScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 500000;
+    private static final int MATCHES = 1000;
+
+    private int count(HeapFile hf) throws Exception {
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(ROWS - MATCHES - 1)),
+                new SeqScan(new TransactionId(), hf.getId(), "t"));
+        int n = 0;
+        filter.open();
+        while (filter.hasNext()) {
+            filter.next();
+            n++;
+        }
+        filter.close();
+        return n;
+    }
+
+    @Test public void testZoneMapScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(i * 7 % 1000);
+            t.add(i % 13);
+            tuples.add(t);
+        }
+        File f = File.createTempFile("zonemapscan", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 3);
+        tuples = null;
+        HeapFile hf = Utility.openHeapFile(3, f);
+        ZoneMap zones = hf.getZoneMap();
+
+        long start = System.nanoTime();
+        assertEquals(MATCHES, count(hf));
+        double learnSeconds = (System.nanoTime() - start) / 1e9;
+        long learnRead = zones.getPagesRead();
+
+        zones.resetStatistics();
+        start = System.nanoTime();
+        assertEquals(MATCHES, count(hf));
+        double skipSeconds = (System.nanoTime() - start) / 1e9;
+        assertTrue(zones.getPagesSkipped() > zones.getPagesRead());
+
+        System.out.printf("ZoneMapScanTest: %d pages; first scan read %d pages in %.3f s, "
+                + "second scan skipped %d and read %d pages in %.3f s%n", hf.numPages(), learnRead,
+                learnSeconds, zones.getPagesSkipped(), zones.getPagesRead(), skipSeconds);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ZoneMapScanTest.class);
+    }
+}